@@ -0,0 +1,192 @@
+package eu.scape_project;
+
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.scape_project.model.IntellectualEntity;
+
+/**
+ * Ingests entities asynchronously after a simulated processing delay. Every
+ * accepted entity is scheduled on a pool of worker threads for the time its
+ * delay has passed, so it is ingested as soon as it is due instead of on the
+ * next tick of a polling loop. The number of pending entities is bounded,
+ * entities submitted while the queue is full are rejected, and clients are
+ * expected to retry later.
+ */
+public class AsyncIngestEngine {
+
+    public static final String PROPERTY_WORKERS = "scape-tck.async.workers";
+
+    public static final String PROPERTY_QUEUE_SIZE = "scape-tck.async.queue-size";
+
+    public static final String PROPERTY_DELAY = "scape-tck.async.delay";
+
+    private static final Logger LOG = LoggerFactory.getLogger(AsyncIngestEngine.class);
+
+    private final Ingester ingester;
+
+    private final ScheduledThreadPoolExecutor executor;
+
+    private final int queueSize;
+
+    private final Semaphore slots;
+
+    private final long delay;
+
+    private final Random random = new Random();
+
+    /* the entities accepted but not ingested yet by their id */
+    private final ConcurrentMap<String, IntellectualEntity> pending =
+            new ConcurrentHashMap<String, IntellectualEntity>();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    public AsyncIngestEngine(Ingester ingester) {
+        this(ingester, Integer.getInteger(PROPERTY_WORKERS, 2), Integer.getInteger(PROPERTY_QUEUE_SIZE, 10000),
+                Long.getLong(PROPERTY_DELAY, 1000L));
+    }
+
+    /**
+     * @param workers
+     *            the number of threads ingesting the entities
+     * @param queueSize
+     *            the maximum number of pending entities
+     * @param delay
+     *            the minimum time in milliseconds until an entity is
+     *            ingested, the actual delay is chosen randomly between this
+     *            and twice this value
+     */
+    public AsyncIngestEngine(Ingester ingester, int workers, int queueSize, long delay) {
+        if (workers < 1 || queueSize < 1 || delay < 0) {
+            throw new IllegalArgumentException("Invalid async ingest configuration: " + workers +
+                    " workers, queue of " + queueSize + ", delay of " + delay + " ms");
+        }
+        this.ingester = ingester;
+        this.queueSize = queueSize;
+        this.slots = new Semaphore(queueSize);
+        this.delay = delay;
+        this.executor = new ScheduledThreadPoolExecutor(workers, new ThreadFactory() {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "async-ingest-" + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Start the worker threads, which would otherwise be started by the first
+     * submissions
+     */
+    public void start() {
+        executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * Schedule the ingestion of an entity, which has to have an identifier.
+     * Accepted entities are passed to {@link Ingester#accepted} before they
+     * are scheduled, rejected ones are not passed to the ingester at all.
+     *
+     * @return <code>false</code> if the entity has been rejected because the
+     *         queue is full
+     * @throws Exception
+     *             if {@link Ingester#accepted} failed, the entity is not
+     *             scheduled then
+     */
+    public boolean submit(final IntellectualEntity entity) throws Exception {
+        if (!slots.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        final String id = entity.getIdentifier().getValue();
+        try {
+            ingester.accepted(entity);
+        } catch (Exception e) {
+            slots.release();
+            throw e;
+        }
+        pending.put(id, entity);
+        long due = (delay > 0) ? delay + (long) (random.nextDouble() * delay) : 0;
+        executor.schedule(new Runnable() {
+            public void run() {
+                try {
+                    ingester.ingest(entity);
+                } catch (Exception e) {
+                    LOG.error("async ingest of entity " + id + " failed", e);
+                } finally {
+                    pending.remove(id, entity);
+                    slots.release();
+                }
+            }
+        }, due, TimeUnit.MILLISECONDS);
+        return true;
+    }
+
+    /**
+     * Get an entity which has been accepted but not ingested yet
+     *
+     * @return the entity or <code>null</code>
+     */
+    public IntellectualEntity getPending(String id) {
+        return pending.get(id);
+    }
+
+    /**
+     * Get the number of accepted entities which have not been ingested yet
+     */
+    public int getPendingCount() {
+        return queueSize - slots.availablePermits();
+    }
+
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    /**
+     * Get the number of seconds after which a rejected client should retry,
+     * by then the entities pending now are due
+     */
+    public long getRetryAfter() {
+        return Math.max(1, (2 * delay + 999) / 1000);
+    }
+
+    /**
+     * Stop the workers, entities which are not ingested yet are discarded
+     */
+    public void close() throws InterruptedException {
+        executor.shutdownNow();
+        executor.awaitTermination(10, TimeUnit.SECONDS);
+        if (rejected.get() > 0) {
+            LOG.info("rejected " + rejected.get() + " async ingests because the queue was full");
+        }
+    }
+
+    /**
+     * The callbacks of the engine
+     */
+    public interface Ingester {
+
+        /**
+         * Called when an entity has been accepted, before its ingestion can
+         * start
+         */
+        void accepted(IntellectualEntity entity) throws Exception;
+
+        /**
+         * Ingest a due entity
+         */
+        void ingest(IntellectualEntity entity) throws Exception;
+    }
+}
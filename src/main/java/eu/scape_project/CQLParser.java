@@ -0,0 +1,606 @@
+package eu.scape_project;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.apache.lucene.analysis.Analyzer;
+import org.apache.lucene.analysis.TokenStream;
+import org.apache.lucene.analysis.tokenattributes.CharTermAttribute;
+import org.apache.lucene.document.NumericField;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.BooleanClause;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.MatchAllDocsQuery;
+import org.apache.lucene.search.NumericRangeQuery;
+import org.apache.lucene.search.PhraseQuery;
+import org.apache.lucene.search.PrefixQuery;
+import org.apache.lucene.search.Query;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.search.TermQuery;
+import org.apache.lucene.search.TermRangeQuery;
+import org.apache.lucene.search.WildcardQuery;
+import org.apache.lucene.search.spans.SpanNearQuery;
+import org.apache.lucene.search.spans.SpanQuery;
+import org.apache.lucene.search.spans.SpanTermQuery;
+
+/**
+ * Compiles CQL queries into Lucene queries. Supported are the boolean
+ * operators <code>and</code>, <code>or</code>, <code>not</code> and
+ * <code>prox</code>, parenthesized clauses, index qualified clauses like
+ * <code>dc.title=scape</code> and the relations <code>=</code>,
+ * <code>==</code>, <code>exact</code>, <code>adj</code>, <code>any</code>,
+ * <code>all</code>, <code>&lt;&gt;</code>, <code>&lt;</code>,
+ * <code>&gt;</code>, <code>&lt;=</code> and <code>&gt;=</code>. Terms may
+ * be masked with <code>*</code> and <code>?</code> and several words in a
+ * term are searched as a phrase. Comparisons on numeric fields are compiled
+ * into numeric range queries. A trailing <code>sortBy</code> clause sorts the
+ * results by numeric or exact fields, e.g.
+ * <code>dc.title=scape sortBy mix.imageWidth/sort.descending</code>.
+ * <p>
+ * The Dublin Core indexes are mapped to the field named by the element, e.g.
+ * <code>dc.title</code> to <code>title</code>, all other indexes to the field
+ * of the same name, e.g. <code>marc.245a</code>. Clauses without an index or
+ * with <code>cql.serverChoice</code> search all default fields and
+ * <code>rec.identifier</code> searches the <code>id</code> field. Index
+ * names are case insensitive. Instances are thread safe.
+ */
+public class CQLParser {
+
+    private final Analyzer analyzer;
+
+    private final String[] defaultFields;
+
+    private final Set<String> exactFields;
+
+    private final Set<String> numericFields;
+
+    /* the mixed case field names by their lower case names */
+    private final Map<String, String> fieldNames = new HashMap<String, String>();
+
+    public CQLParser(Analyzer analyzer, String[] defaultFields, Set<String> exactFields) {
+        this(analyzer, defaultFields, exactFields, Collections.<String> emptySet());
+    }
+
+    /**
+     * @param analyzer
+     *            the analyzer splitting the terms of analyzed fields into
+     *            words
+     * @param defaultFields
+     *            the fields searched by clauses without an index
+     * @param exactFields
+     *            the fields which are not analyzed and only match the
+     *            complete term
+     * @param numericFields
+     *            the fields indexed as long {@link NumericField}s
+     */
+    public CQLParser(Analyzer analyzer, String[] defaultFields, Set<String> exactFields, Set<String> numericFields) {
+        this.analyzer = analyzer;
+        this.defaultFields = defaultFields;
+        this.exactFields = exactFields;
+        this.numericFields = numericFields;
+        for (String field : exactFields) {
+            fieldNames.put(field.toLowerCase(), field);
+        }
+        for (String field : numericFields) {
+            fieldNames.put(field.toLowerCase(), field);
+        }
+    }
+
+    public Query parse(String cql) throws ParseException {
+        return compile(cql).getQuery();
+    }
+
+    /**
+     * Compile a query and its optional sortBy clause
+     */
+    public CompiledQuery compile(String cql) throws ParseException {
+        Tokenizer tokens = new Tokenizer(cql);
+        Query query = parseQuery(tokens);
+        Sort sort = null;
+        Token next = tokens.peek();
+        if (next != null && next.isTerm() && !next.quoted && next.text.equalsIgnoreCase("sortBy")) {
+            tokens.next();
+            sort = parseSort(tokens);
+        }
+        if (tokens.peek() != null) {
+            throw new ParseException("Unexpected '" + tokens.peek().text + "' in " + cql);
+        }
+        return new CompiledQuery(query, sort);
+    }
+
+    /**
+     * Normalize a query for caching by collapsing all whitespace outside of
+     * quoted terms
+     */
+    public static String normalize(String cql) {
+        StringBuilder normalized = new StringBuilder(cql.length());
+        boolean quoted = false;
+        boolean space = false;
+        for (int i = 0; i < cql.length(); i++) {
+            char c = cql.charAt(i);
+            if (!quoted && Character.isWhitespace(c)) {
+                space = normalized.length() > 0;
+                continue;
+            }
+            if (space) {
+                normalized.append(' ');
+                space = false;
+            }
+            normalized.append(c);
+            if (c == '\\' && quoted && i + 1 < cql.length()) {
+                normalized.append(cql.charAt(++i));
+            } else if (c == '"') {
+                quoted = !quoted;
+            }
+        }
+        return normalized.toString();
+    }
+
+    /* booleans all have the same precedence and associate to the left */
+    private Query parseQuery(Tokenizer tokens) throws ParseException {
+        Query left = parseClause(tokens);
+        Token next;
+        while ((next = tokens.peek()) != null && next.isBoolean()) {
+            tokens.next();
+            String op = next.text.toLowerCase();
+            Map<String, Token[]> modifiers = parseModifiers(tokens);
+            Query right = parseClause(tokens);
+            if (op.equals("prox")) {
+                left = proximity(left, right, modifiers);
+            } else {
+                BooleanQuery combined = new BooleanQuery();
+                if (op.equals("and")) {
+                    combined.add(left, Occur.MUST);
+                    combined.add(right, Occur.MUST);
+                } else if (op.equals("or")) {
+                    combined.add(left, Occur.SHOULD);
+                    combined.add(right, Occur.SHOULD);
+                } else {
+                    combined.add(left, Occur.MUST);
+                    combined.add(right, Occur.MUST_NOT);
+                }
+                left = combined;
+            }
+        }
+        return left;
+    }
+
+    private Sort parseSort(Tokenizer tokens) throws ParseException {
+        List<SortField> keys = new ArrayList<SortField>();
+        Token index;
+        while ((index = tokens.next()) != null) {
+            if (!index.isTerm()) {
+                throw new ParseException("Unexpected '" + index.text + "' in sortBy of " + tokens.cql);
+            }
+            Map<String, Token[]> modifiers = parseModifiers(tokens);
+            boolean reverse = modifiers.containsKey("sort.descending") || modifiers.containsKey("descending");
+            for (String field : resolve(index.text)) {
+                if (numericFields.contains(field)) {
+                    keys.add(new SortField(field, SortField.LONG, reverse));
+                } else if (exactFields.contains(field)) {
+                    keys.add(new SortField(field, SortField.STRING, reverse));
+                } else {
+                    throw new ParseException("Unable to sort by the analyzed index " + index.text);
+                }
+            }
+        }
+        if (keys.isEmpty()) {
+            throw new ParseException("Missing index after sortBy in " + tokens.cql);
+        }
+        return new Sort(keys.toArray(new SortField[keys.size()]));
+    }
+
+    private Query parseClause(Tokenizer tokens) throws ParseException {
+        Token first = tokens.next();
+        if (first == null) {
+            throw new ParseException("Unexpected end of query " + tokens.cql);
+        }
+        if (first.isSymbol("(")) {
+            Query query = parseQuery(tokens);
+            Token close = tokens.next();
+            if (close == null || !close.isSymbol(")")) {
+                throw new ParseException("Missing ')' in " + tokens.cql);
+            }
+            return query;
+        }
+        if (!first.isTerm()) {
+            throw new ParseException("Unexpected '" + first.text + "' in " + tokens.cql);
+        }
+        Token relation = tokens.peek();
+        if (relation != null && relation.isRelation() && !first.quoted) {
+            tokens.next();
+            parseModifiers(tokens);
+            Token term = tokens.next();
+            if (term == null || !term.isTerm()) {
+                throw new ParseException("Missing term after '" + relation.text + "' in " + tokens.cql);
+            }
+            return clause(first.text, relation.text.toLowerCase(), term.text);
+        }
+        return clause("cql.serverChoice", "=", first.text);
+    }
+
+    /* modifiers like /distance<=3 or /unit=word, the values are the
+     * comparison and the value token if given */
+    private Map<String, Token[]> parseModifiers(Tokenizer tokens) throws ParseException {
+        Map<String, Token[]> modifiers = new HashMap<String, Token[]>();
+        while (tokens.peek() != null && tokens.peek().isSymbol("/")) {
+            tokens.next();
+            Token name = tokens.next();
+            if (name == null || !name.isTerm()) {
+                throw new ParseException("Missing modifier name in " + tokens.cql);
+            }
+            Token comparison = tokens.peek();
+            if (comparison != null && comparison.isSymbol() && !comparison.isSymbol("/") &&
+                    !comparison.isSymbol("(") && !comparison.isSymbol(")")) {
+                tokens.next();
+                Token value = tokens.next();
+                if (value == null || !value.isTerm()) {
+                    throw new ParseException("Missing value of modifier " + name.text + " in " + tokens.cql);
+                }
+                modifiers.put(name.text.toLowerCase(), new Token[] { comparison, value });
+            } else {
+                modifiers.put(name.text.toLowerCase(), new Token[0]);
+            }
+        }
+        return modifiers;
+    }
+
+    private Query clause(String index, String relation, String term) throws ParseException {
+        String[] fields = resolve(index);
+        if (fields.length == 1) {
+            return clause(fields[0], relation, term, index);
+        }
+        BooleanQuery query = new BooleanQuery();
+        for (String field : fields) {
+            query.add(clause(field, relation, term, index), Occur.SHOULD);
+        }
+        return query;
+    }
+
+    private String[] resolve(String index) {
+        String name = index.toLowerCase();
+        if (name.equals("cql.serverchoice") || name.equals("cql.anywhere")) {
+            return defaultFields;
+        }
+        if (name.equals("rec.identifier")) {
+            return new String[] { "id" };
+        }
+        if (name.startsWith("dc.")) {
+            name = name.substring(3);
+        }
+        // index names are case insensitive, the fields are lower case apart from a few known ones
+        String field = fieldNames.get(name);
+        return new String[] { (field == null) ? name : field };
+    }
+
+    private Query clause(String field, String relation, String term, String index) throws ParseException {
+        boolean exact = exactFields.contains(field);
+        if (numericFields.contains(field) && !relation.equals("<>")) {
+            return numeric(field, relation, term, index);
+        }
+        if (relation.equals("<>")) {
+            BooleanQuery not = new BooleanQuery();
+            not.add(new MatchAllDocsQuery(), Occur.MUST);
+            not.add(clause(field, "=", term, index), Occur.MUST_NOT);
+            return not;
+        }
+        if (relation.equals("<") || relation.equals(">") || relation.equals("<=") || relation.equals(">=")) {
+            String value = exact ? term : term.toLowerCase();
+            boolean lower = relation.startsWith(">");
+            return new TermRangeQuery(field, lower ? value : null, lower ? null : value, relation.endsWith("="),
+                    relation.endsWith("="));
+        }
+        if (!relation.equals("=") && !relation.equals("==") && !relation.equals("exact") && !relation.equals("adj") &&
+                !relation.equals("any") && !relation.equals("all")) {
+            throw new ParseException("Unsupported relation '" + relation + "' on " + index);
+        }
+        if (exact) {
+            return masked(term) ? mask(field, term) : new TermQuery(new Term(field, term));
+        }
+        List<Query> words = new ArrayList<Query>();
+        PhraseQuery phrase = new PhraseQuery();
+        int position = -1;
+        for (String word : term.trim().split("\\s+")) {
+            if (masked(word)) {
+                words.add(mask(field, word.toLowerCase()));
+                phrase = null;
+            } else {
+                List<String> tokens = analyze(field, word);
+                if (tokens.isEmpty()) {
+                    // a stop word, which left a gap in the positions of the indexed words
+                    position++;
+                }
+                for (String token : tokens) {
+                    Term t = new Term(field, token);
+                    words.add(new TermQuery(t));
+                    position++;
+                    if (phrase != null) {
+                        phrase.add(t, position);
+                    }
+                }
+            }
+        }
+        if (words.size() == 1) {
+            return words.get(0);
+        }
+        if (phrase != null && !words.isEmpty() && !relation.equals("any") && !relation.equals("all")) {
+            return phrase;
+        }
+        // an empty query, e.g. of a term consisting of stop words only, matches nothing
+        BooleanQuery query = new BooleanQuery();
+        for (Query word : words) {
+            query.add(word, relation.equals("any") ? Occur.SHOULD : Occur.MUST);
+        }
+        return query;
+    }
+
+    private static Query numeric(String field, String relation, String term, String index) throws ParseException {
+        long value;
+        try {
+            value = Long.parseLong(term.trim());
+        } catch (NumberFormatException e) {
+            throw new ParseException("Invalid number '" + term + "' for " + index);
+        }
+        if (relation.equals("<")) {
+            return NumericRangeQuery.newLongRange(field, null, value, true, false);
+        } else if (relation.equals("<=")) {
+            return NumericRangeQuery.newLongRange(field, null, value, true, true);
+        } else if (relation.equals(">")) {
+            return NumericRangeQuery.newLongRange(field, value, null, false, true);
+        } else if (relation.equals(">=")) {
+            return NumericRangeQuery.newLongRange(field, value, null, true, true);
+        } else if (relation.equals("=") || relation.equals("==") || relation.equals("exact")) {
+            return NumericRangeQuery.newLongRange(field, value, value, true, true);
+        }
+        throw new ParseException("Unsupported relation '" + relation + "' on " + index);
+    }
+
+    private static boolean masked(String term) {
+        return term.indexOf('*') >= 0 || term.indexOf('?') >= 0;
+    }
+
+    private static Query mask(String field, String term) {
+        if (term.indexOf('*') == term.length() - 1 && term.indexOf('?') < 0) {
+            return new PrefixQuery(new Term(field, term.substring(0, term.length() - 1)));
+        }
+        return new WildcardQuery(new Term(field, term));
+    }
+
+    private List<String> analyze(String field, String text) throws ParseException {
+        List<String> tokens = new ArrayList<String>();
+        try {
+            TokenStream stream = analyzer.reusableTokenStream(field, new StringReader(text));
+            CharTermAttribute term = stream.addAttribute(CharTermAttribute.class);
+            stream.reset();
+            while (stream.incrementToken()) {
+                tokens.add(term.toString());
+            }
+            stream.end();
+            stream.close();
+        } catch (IOException e) {
+            throw new ParseException("Unable to analyze '" + text + "': " + e.getMessage());
+        }
+        return tokens;
+    }
+
+    /* prox only combines single terms and phrases, which are turned into
+     * span queries on each field both sides search */
+    private Query proximity(Query left, Query right, Map<String, Token[]> modifiers) throws ParseException {
+        int slop = 0;
+        Token[] distance = modifiers.get("distance");
+        if (distance != null && distance.length == 2) {
+            int value;
+            try {
+                value = Integer.parseInt(distance[1].text);
+            } catch (NumberFormatException e) {
+                throw new ParseException("Invalid distance " + distance[1].text);
+            }
+            if (distance[0].isSymbol("<=")) {
+                slop = value - 1;
+            } else if (distance[0].isSymbol("<")) {
+                slop = value - 2;
+            } else {
+                throw new ParseException("Unsupported distance comparison '" + distance[0].text + "'");
+            }
+            if (slop < 0) {
+                throw new ParseException("Invalid distance " + distance[0].text + distance[1].text);
+            }
+        }
+        Token[] unit = modifiers.get("unit");
+        if (unit != null && (unit.length != 2 || !unit[1].text.equalsIgnoreCase("word"))) {
+            throw new ParseException("Only word proximity is supported");
+        }
+        boolean ordered = modifiers.containsKey("ordered");
+        Map<String, SpanQuery> leftSpans = spans(left);
+        Map<String, SpanQuery> rightSpans = spans(right);
+        BooleanQuery query = new BooleanQuery();
+        for (Map.Entry<String, SpanQuery> span : leftSpans.entrySet()) {
+            SpanQuery other = rightSpans.get(span.getKey());
+            if (other != null) {
+                query.add(new SpanNearQuery(new SpanQuery[] { span.getValue(), other }, slop, ordered), Occur.SHOULD);
+            }
+        }
+        if (query.clauses().size() == 1) {
+            return query.clauses().get(0).getQuery();
+        }
+        return query;
+    }
+
+    private static Map<String, SpanQuery> spans(Query query) throws ParseException {
+        Map<String, SpanQuery> spans = new LinkedHashMap<String, SpanQuery>();
+        if (query instanceof TermQuery) {
+            Term t = ((TermQuery) query).getTerm();
+            spans.put(t.field(), new SpanTermQuery(t));
+        } else if (query instanceof PhraseQuery) {
+            Term[] terms = ((PhraseQuery) query).getTerms();
+            int[] positions = ((PhraseQuery) query).getPositions();
+            SpanQuery[] clauses = new SpanQuery[terms.length];
+            for (int i = 0; i < terms.length; i++) {
+                clauses[i] = new SpanTermQuery(terms[i]);
+            }
+            // the gaps left by stop words
+            int slop = positions[terms.length - 1] - positions[0] - terms.length + 1;
+            spans.put(terms[0].field(), new SpanNearQuery(clauses, slop, true));
+        } else if (query instanceof BooleanQuery) {
+            for (BooleanClause clause : ((BooleanQuery) query).clauses()) {
+                if (clause.getOccur() != Occur.SHOULD) {
+                    throw new ParseException("prox can only combine terms and phrases");
+                }
+                spans.putAll(spans(clause.getQuery()));
+            }
+        } else {
+            throw new ParseException("prox can only combine terms and phrases");
+        }
+        return spans;
+    }
+
+    /**
+     * A compiled query together with the sort order of its sortBy clause
+     */
+    public static final class CompiledQuery {
+
+        private final Query query;
+
+        private final Sort sort;
+
+        private CompiledQuery(Query query, Sort sort) {
+            this.query = query;
+            this.sort = sort;
+        }
+
+        public Query getQuery() {
+            return query;
+        }
+
+        /**
+         * @return the sort order or <code>null</code> to sort by relevance
+         */
+        public Sort getSort() {
+            return sort;
+        }
+    }
+
+    private static final class Token {
+
+        private final String text;
+
+        private final boolean quoted;
+
+        private final boolean symbol;
+
+        private Token(String text, boolean quoted, boolean symbol) {
+            this.text = text;
+            this.quoted = quoted;
+            this.symbol = symbol;
+        }
+
+        private boolean isSymbol() {
+            return symbol;
+        }
+
+        private boolean isSymbol(String s) {
+            return symbol && text.equals(s);
+        }
+
+        private boolean isTerm() {
+            return !symbol;
+        }
+
+        private boolean isBoolean() {
+            if (symbol || quoted) {
+                return false;
+            }
+            String op = text.toLowerCase();
+            return op.equals("and") || op.equals("or") || op.equals("not") || op.equals("prox");
+        }
+
+        private boolean isRelation() {
+            if (symbol) {
+                return !text.equals("(") && !text.equals(")") && !text.equals("/");
+            }
+            if (quoted) {
+                return false;
+            }
+            String rel = text.toLowerCase();
+            return rel.equals("exact") || rel.equals("adj") || rel.equals("any") || rel.equals("all");
+        }
+    }
+
+    private static final class Tokenizer {
+
+        private final String cql;
+
+        private int pos;
+
+        private Token peeked;
+
+        private Tokenizer(String cql) {
+            this.cql = cql;
+        }
+
+        private Token peek() throws ParseException {
+            if (peeked == null) {
+                peeked = read();
+            }
+            return peeked;
+        }
+
+        private Token next() throws ParseException {
+            Token token = peek();
+            peeked = null;
+            return token;
+        }
+
+        private Token read() throws ParseException {
+            while (pos < cql.length() && Character.isWhitespace(cql.charAt(pos))) {
+                pos++;
+            }
+            if (pos == cql.length()) {
+                return null;
+            }
+            char c = cql.charAt(pos);
+            if (c == '(' || c == ')' || c == '/') {
+                pos++;
+                return new Token(String.valueOf(c), false, true);
+            }
+            if (c == '=' || c == '<' || c == '>') {
+                int start = pos++;
+                if (pos < cql.length() && (cql.charAt(pos) == '=' || (c == '<' && cql.charAt(pos) == '>'))) {
+                    pos++;
+                }
+                return new Token(cql.substring(start, pos), false, true);
+            }
+            if (c == '"') {
+                StringBuilder term = new StringBuilder();
+                pos++;
+                while (pos < cql.length() && cql.charAt(pos) != '"') {
+                    if (cql.charAt(pos) == '\\' && pos + 1 < cql.length()) {
+                        pos++;
+                    }
+                    term.append(cql.charAt(pos++));
+                }
+                if (pos == cql.length()) {
+                    throw new ParseException("Unterminated quoted term in " + cql);
+                }
+                pos++;
+                return new Token(term.toString(), true, false);
+            }
+            int start = pos;
+            while (pos < cql.length() && "()/=<>\"".indexOf(cql.charAt(pos)) < 0 &&
+                    !Character.isWhitespace(cql.charAt(pos))) {
+                pos++;
+            }
+            return new Token(cql.substring(start, pos), false, false);
+        }
+    }
+}
@@ -0,0 +1,274 @@
+package eu.scape_project;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A read-through cache in front of another {@link Storage}, which keeps the
+ * most recently read versions in memory. The cache is bounded by the total
+ * size of the cached versions and evicts the least recently used ones first.
+ * Cached versions can be kept off-heap in direct buffers, which are filled
+ * straight from the underlying storage, so that a large cache doesn't add to
+ * the garbage collected heap. Versions too large to be cached are passed
+ * through: blobs of them are opened straight on the underlying storage, so
+ * that they are still streamed without being copied. Versions are
+ * invalidated when they are saved.
+ */
+public class CachingStorage implements Storage {
+
+    public static final String PROPERTY_CACHE_SIZE = "scape-tck.cache.size";
+
+    public static final String PROPERTY_CACHE_OFF_HEAP = "scape-tck.cache.off-heap";
+
+    private static final int GENERATION_STRIPES = 256;
+
+    private final Storage storage;
+
+    private final long maxSize;
+
+    private final long maxEntrySize;
+
+    private final boolean offHeap;
+
+    /* in access order, so that the eldest entry is the least recently used */
+    private final LinkedHashMap<String, ByteBuffer> entries = new LinkedHashMap<String, ByteBuffer>(256, 0.75f, true);
+
+    private long size = 0;
+
+    /* incremented on every invalidation of a key in the stripe, so that reads
+     * racing with a save don't put stale versions into the cache, while reads
+     * of unrelated versions are still cached */
+    private final AtomicLongArray generations = new AtomicLongArray(GENERATION_STRIPES);
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param storage
+     *            the storage to read through to
+     * @param maxSize
+     *            the maximum number of bytes of all cached versions
+     * @param offHeap
+     *            whether to keep the cached versions in direct buffers
+     */
+    public CachingStorage(Storage storage, long maxSize, boolean offHeap) {
+        this.storage = storage;
+        this.maxSize = maxSize;
+        // a single huge version shouldn't flush the whole cache
+        this.maxEntrySize = maxSize / 4;
+        this.offHeap = offHeap;
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the number of bytes currently cached
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    public boolean exists(String id, Integer versionNumber) throws IOException {
+        return storage.exists(id, versionNumber);
+    }
+
+    public List<String> getEntityIds() throws IOException {
+        return storage.getEntityIds();
+    }
+
+    public int getLatestVersionNumber(String id) throws IOException {
+        return storage.getLatestVersionNumber(id);
+    }
+
+    public int getNewVersionNumber(String id) throws IOException {
+        return storage.getNewVersionNumber(id);
+    }
+
+    public List<String> getVersionList(String id) throws IOException {
+        return storage.getVersionList(id);
+    }
+
+    public byte[] getXML(String id) throws Exception {
+        return getXML(id, null);
+    }
+
+    public byte[] getXML(String id, Integer version) throws Exception {
+        int v = (version == null) ? storage.getLatestVersionNumber(id) : version;
+        String key = key(id, v);
+        ByteBuffer buffer = lookup(key);
+        if (buffer == null) {
+            long generation = generations.get(stripe(key));
+            buffer = fill(key, storage.openXML(id, v), generation);
+        }
+        if (buffer.hasArray()) {
+            // an uncached version, which nobody else holds
+            return buffer.array();
+        }
+        byte[] data = new byte[buffer.remaining()];
+        buffer.duplicate().get(data);
+        return data;
+    }
+
+    public StorageBlob openXML(String id, Integer version) throws Exception {
+        int v = (version == null) ? storage.getLatestVersionNumber(id) : version;
+        String key = key(id, v);
+        ByteBuffer cached = lookup(key);
+        if (cached != null) {
+            return new StorageBlob(cached);
+        }
+        long generation = generations.get(stripe(key));
+        StorageBlob blob = storage.openXML(id, v);
+        if (blob.length() > maxEntrySize) {
+            // never cached, so it's streamed from the storage directly
+            return blob;
+        }
+        return new StorageBlob(fill(key, blob, generation));
+    }
+
+    public String getContentHash(String id, Integer version) throws Exception {
+        return storage.getContentHash(id, version);
+    }
+
+    public void saveXML(byte[] blob, String name, int version, boolean overwrite) throws Exception {
+        try {
+            storage.saveXML(blob, name, version, overwrite);
+        } finally {
+            invalidate(key(name, version));
+        }
+    }
+
+    public int saveNewVersion(byte[] blob, String name, int version) throws Exception {
+        version = storage.saveNewVersion(blob, name, version);
+        invalidate(key(name, version));
+        return version;
+    }
+
+    public VersionAllocator getVersionAllocator() {
+        return storage.getVersionAllocator();
+    }
+
+    public void purge() throws Exception {
+        clear();
+        storage.purge();
+    }
+
+    public void close() throws IOException {
+        clear();
+        storage.close();
+    }
+
+    /**
+     * Get a cached version
+     *
+     * @return a read-only view of the cached version or <code>null</code>
+     */
+    private ByteBuffer lookup(String key) {
+        synchronized (this) {
+            ByteBuffer cached = entries.get(key);
+            if (cached != null) {
+                hits.incrementAndGet();
+                return cached.asReadOnlyBuffer();
+            }
+        }
+        misses.incrementAndGet();
+        return null;
+    }
+
+    /**
+     * Read a version by positional reads from the storage's blob and cache
+     * it if it's small enough. Cached versions are read into direct buffers
+     * when kept off-heap, without copying them onto the heap.
+     *
+     * @param generation
+     *            the generation of the key's stripe before the blob has been
+     *            opened
+     * @return a read-only view of a cached version or a heap buffer of a
+     *         version too large to be cached
+     */
+    private ByteBuffer fill(String key, StorageBlob blob, long generation) throws Exception {
+        try {
+            boolean cacheable = blob.length() <= maxEntrySize;
+            ByteBuffer buffer = (offHeap && cacheable) ? ByteBuffer.allocateDirect((int) blob.length()) : ByteBuffer
+                    .allocate((int) blob.length());
+            while (buffer.hasRemaining()) {
+                if (blob.read(buffer, buffer.position()) <= 0) {
+                    throw new EOFException("Version " + key + " ended after " + buffer.position() + " of " +
+                            blob.length() + " bytes");
+                }
+            }
+            buffer.flip();
+            if (!cacheable) {
+                return buffer;
+            }
+            put(key, buffer, stripe(key), generation);
+            // the cached buffer is shared, so callers only get read-only views
+            return buffer.asReadOnlyBuffer();
+        } finally {
+            blob.close();
+        }
+    }
+
+    private synchronized void put(String key, ByteBuffer buffer, int stripe, long generation) {
+        if (generations.get(stripe) != generation) {
+            return;
+        }
+        ByteBuffer previous = entries.put(key, buffer.asReadOnlyBuffer());
+        if (previous != null) {
+            size -= previous.remaining();
+        }
+        size += buffer.remaining();
+        Iterator<Map.Entry<String, ByteBuffer>> it = entries.entrySet().iterator();
+        while (size > maxSize && it.hasNext()) {
+            size -= it.next().getValue().remaining();
+            it.remove();
+            evictions.incrementAndGet();
+        }
+    }
+
+    private synchronized void invalidate(String key) {
+        generations.incrementAndGet(stripe(key));
+        ByteBuffer previous = entries.remove(key);
+        if (previous != null) {
+            size -= previous.remaining();
+        }
+    }
+
+    private synchronized void clear() {
+        for (int i = 0; i < GENERATION_STRIPES; i++) {
+            generations.incrementAndGet(i);
+        }
+        entries.clear();
+        size = 0;
+    }
+
+    static String key(String id, int version) {
+        return version + ":" + id;
+    }
+
+    static int stripe(String key) {
+        int h = key.hashCode();
+        // spread the high bits, similar hashes would share a stripe otherwise
+        h ^= (h >>> 16);
+        return (h & 0x7fffffff) % GENERATION_STRIPES;
+    }
+}
@@ -0,0 +1,52 @@
+package eu.scape_project;
+
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import org.apache.commons.io.output.NullOutputStream;
+
+/**
+ * Helpers for the SHA-256 content hashes which identify stored blobs
+ */
+public final class ContentHash {
+
+    public static final String ALGORITHM = "SHA-256";
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private ContentHash() {
+    }
+
+    public static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(ALGORITHM);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Compute the hash of a blob by streaming its content through a digest
+     */
+    public static String of(StorageBlob blob) throws IOException {
+        MessageDigest digest = newDigest();
+        blob.transferTo(Channels.newChannel(new DigestOutputStream(NullOutputStream.NULL_OUTPUT_STREAM, digest)));
+        return toHex(digest.digest());
+    }
+
+    public static String of(byte[] data) {
+        return toHex(newDigest().digest(data));
+    }
+
+    public static String toHex(byte[] hash) {
+        char[] hex = new char[hash.length * 2];
+        for (int i = 0; i < hash.length; i++) {
+            hex[i * 2] = HEX[(hash[i] >> 4) & 0xf];
+            hex[i * 2 + 1] = HEX[hash[i] & 0xf];
+        }
+        return new String(hex);
+    }
+}
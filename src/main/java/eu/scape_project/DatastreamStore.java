@@ -0,0 +1,290 @@
+package eu.scape_project;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Properties;
+import java.util.UUID;
+import java.util.concurrent.locks.Lock;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Content store for the binary payloads of files and bitstreams, kept in its
+ * own tree using the same {@link DirectoryLayout} as the entities. Every save
+ * creates a new generation of a datastream, a directory holding the content
+ * and its properties: <code>&lt;shard&gt;/&lt;id&gt;/&lt;generation&gt;/content</code>
+ * <p>
+ * Uploads are streamed to a temporary directory in fixed size chunks while
+ * their SHA-256 checksum is computed. The complete directory is renamed to the
+ * next generation number, which swaps in the content and its properties
+ * together, so the content is never held in memory as a whole and readers
+ * never see partial uploads or content with the properties of another
+ * upload. Older generations are removed afterwards. Swapping in and removing
+ * generations is serialized per id, and readers look up the latest generation
+ * under the same lock, so they never see a datastream without any generation
+ * while it is being replaced. Reads hand out {@link StorageBlob}s on arbitrary
+ * ranges of the content, which are transferred by positional channel reads.
+ */
+public class DatastreamStore {
+
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final String CONTENT_FILE = "content";
+
+    private static final String INFO_FILE = "content.properties";
+
+    private static final Pattern GENERATION_PATTERN = Pattern.compile("[1-9]\\d{0,8}");
+
+    private static final int LOCK_STRIPES = 64;
+
+    private final File directory;
+
+    private final DirectoryLayout layout;
+
+    /* serializes the swap in and removal of the generations of an id */
+    private final LockStripes locks = new LockStripes(LOCK_STRIPES);
+
+    public DatastreamStore(File directory) {
+        this(directory, new DirectoryLayout(Integer.getInteger(DirectoryLayout.PROPERTY_FANOUT, 2)));
+    }
+
+    public DatastreamStore(File directory, DirectoryLayout layout) {
+        this.directory = directory;
+        this.layout = layout;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (!directory.canExecute() || !directory.canRead() || !directory.canWrite()) {
+            throw new RuntimeException("Unable to access directory " + directory.getAbsolutePath());
+        }
+        try {
+            layout.apply(directory, Math.max(4, Runtime.getRuntime().availableProcessors()));
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to apply the directory layout", e);
+        }
+    }
+
+    /**
+     * Get a stored datastream
+     *
+     * @return the datastream or <code>null</code> if no content has been
+     *         stored for the id
+     */
+    public Datastream get(String id) throws IOException {
+        File dir = layout.resolve(directory, id);
+        File current;
+        Properties props = new Properties();
+        Lock lock = locks.get(id);
+        lock.lock();
+        try {
+            int generation = latestGeneration(dir);
+            if (generation == 0) {
+                return null;
+            }
+            current = new File(dir, String.valueOf(generation));
+            InputStream in = new FileInputStream(new File(current, INFO_FILE));
+            try {
+                props.load(in);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        } finally {
+            lock.unlock();
+        }
+        return new Datastream(new File(current, CONTENT_FILE), Long.parseLong(props.getProperty("length")), props
+                .getProperty("sha256"), props.getProperty("mimetype"));
+    }
+
+    /**
+     * Stream the content of a datastream from the given channel into the
+     * store, replacing any previous content
+     *
+     * @return the stored datastream
+     */
+    public Datastream save(String id, ReadableByteChannel source, String mimetype) throws IOException {
+        File dir = layout.resolve(directory, id);
+        if (!dir.exists()) {
+            dir.mkdirs();
+        }
+        File tmp = new File(dir, "." + UUID.randomUUID() + ".tmp");
+        if (!tmp.mkdir()) {
+            throw new IOException("Unable to create " + tmp.getAbsolutePath());
+        }
+        try {
+            MessageDigest digest = ContentHash.newDigest();
+            long length = 0;
+            FileOutputStream out = new FileOutputStream(new File(tmp, CONTENT_FILE));
+            try {
+                FileChannel channel = out.getChannel();
+                ByteBuffer chunk = ByteBuffer.allocate(CHUNK_SIZE);
+                while (source.read(chunk) != -1) {
+                    chunk.flip();
+                    digest.update(chunk.array(), 0, chunk.limit());
+                    length += chunk.limit();
+                    while (chunk.hasRemaining()) {
+                        channel.write(chunk);
+                    }
+                    chunk.clear();
+                }
+                channel.force(true);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+            String checksum = ContentHash.toHex(digest.digest());
+
+            Properties props = new Properties();
+            props.setProperty("length", String.valueOf(length));
+            props.setProperty("sha256", checksum);
+            if (mimetype != null) {
+                props.setProperty("mimetype", mimetype);
+            }
+            FileOutputStream infoOut = new FileOutputStream(new File(tmp, INFO_FILE));
+            try {
+                props.store(infoOut, null);
+                infoOut.getChannel().force(true);
+            } finally {
+                IOUtils.closeQuietly(infoOut);
+            }
+            DurableWriter.DirectorySync.force(tmp);
+
+            File current;
+            Lock lock = locks.get(id);
+            lock.lock();
+            try {
+                current = swapIn(dir, tmp);
+            } finally {
+                lock.unlock();
+            }
+            return new Datastream(new File(current, CONTENT_FILE), length, checksum, mimetype);
+        } finally {
+            if (tmp.exists()) {
+                FileUtils.deleteQuietly(tmp);
+            }
+        }
+    }
+
+    public Datastream save(String id, InputStream source, String mimetype) throws IOException {
+        return save(id, Channels.newChannel(source), mimetype);
+    }
+
+    /**
+     * Remove all stored datastreams
+     */
+    public void purge() throws IOException {
+        FileUtils.cleanDirectory(directory);
+        layout.apply(directory, 1);
+    }
+
+    /**
+     * Rename a complete temporary directory to the next generation of a
+     * datastream and remove the older generations, the caller has to hold the
+     * id's lock
+     *
+     * @return the new generation's directory
+     */
+    private static File swapIn(File dir, File tmp) throws IOException {
+        File current = new File(dir, String.valueOf(latestGeneration(dir) + 1));
+        if (current.exists() || !tmp.renameTo(current)) {
+            throw new IOException("Unable to move " + tmp.getAbsolutePath() + " to " + current.getAbsolutePath());
+        }
+        DurableWriter.DirectorySync.force(dir);
+        // readers of the old content keep their open channels, and on
+        // platforms where it can't be deleted yet the next save retries
+        for (File old : generations(dir)) {
+            if (Integer.parseInt(old.getName()) < Integer.parseInt(current.getName())) {
+                FileUtils.deleteQuietly(old);
+            }
+        }
+        return current;
+    }
+
+    private static int latestGeneration(File dir) {
+        int latest = 0;
+        for (File generation : generations(dir)) {
+            latest = Math.max(latest, Integer.parseInt(generation.getName()));
+        }
+        return latest;
+    }
+
+    private static List<File> generations(File dir) {
+        List<File> generations = new ArrayList<File>();
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return generations;
+        }
+        for (File child : children) {
+            if (GENERATION_PATTERN.matcher(child.getName()).matches() && child.isDirectory()) {
+                generations.add(child);
+            }
+        }
+        return generations;
+    }
+
+    /**
+     * The content of a file or bitstream together with its length, checksum
+     * and mime type
+     */
+    public static final class Datastream {
+
+        private final File content;
+
+        private final long length;
+
+        private final String checksum;
+
+        private final String mimetype;
+
+        private Datastream(File content, long length, String checksum, String mimetype) {
+            this.content = content;
+            this.length = length;
+            this.checksum = checksum;
+            this.mimetype = mimetype;
+        }
+
+        public long getLength() {
+            return length;
+        }
+
+        /**
+         * Get the hex encoded SHA-256 checksum of the content
+         */
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public String getMimetype() {
+            return mimetype;
+        }
+
+        /**
+         * Open a range of the content for streaming it to a channel. The
+         * caller has to close the returned blob.
+         */
+        public StorageBlob open(long position, long count) throws IOException {
+            if (position < 0 || count < 0 || position + count > length) {
+                throw new IllegalArgumentException("Range " + position + "+" + count + " exceeds length " + length);
+            }
+            FileChannel channel;
+            try {
+                channel = new FileInputStream(content).getChannel();
+            } catch (FileNotFoundException e) {
+                throw new FileNotFoundException("Datastream " + content.getParentFile().getParentFile().getName() +
+                        " has been replaced or removed");
+            }
+            return new StorageBlob(channel, position, count);
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package eu.scape_project;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Maps entity ids to directories below a root directory. With a fan-out of n
+ * levels the directory of an entity is nested in n directories named after
+ * consecutive two digit hex prefixes of the MD5 hash of the id, e.g.
+ * <code>root/3f/a2/&lt;id&gt;</code> for two levels, so that no single
+ * directory has to hold more than 256 shards or a small number of entities.
+ * A fan-out of 0 is the flat layout with all entity directories directly
+ * below the root.
+ * <p>
+ * The layout of a tree is recorded in a marker file in its root, so that a
+ * tree created with a different fan-out can be detected and migrated. A
+ * migration records the source and target fan-out in a second marker before
+ * it moves anything and updates the layout marker only once all directories
+ * are in place, so that an interrupted migration is resumed on the next start.
+ */
+public class DirectoryLayout {
+
+    public static final String PROPERTY_FANOUT = "scape-tck.storage.fanout";
+
+    public static final int MAX_LEVELS = 3;
+
+    private static final Logger LOG = LoggerFactory.getLogger(DirectoryLayout.class);
+
+    private static final String MARKER_FILE = ".layout";
+
+    private static final String MIGRATION_FILE = ".layout-migration";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private static final ThreadLocal<MessageDigest> MD5 = new ThreadLocal<MessageDigest>() {
+        @Override
+        protected MessageDigest initialValue() {
+            try {
+                return MessageDigest.getInstance("MD5");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    };
+
+    private final int levels;
+
+    public DirectoryLayout(int levels) {
+        if (levels < 0 || levels > MAX_LEVELS) {
+            throw new IllegalArgumentException("Fan-out has to be between 0 and " + MAX_LEVELS + " levels");
+        }
+        this.levels = levels;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    /**
+     * Get the directory of an entity below the given root
+     */
+    public File resolve(File root, String id) {
+        if (levels == 0) {
+            return new File(root, id);
+        }
+        byte[] hash = MD5.get().digest(id.getBytes(UTF8));
+        StringBuilder path = new StringBuilder(levels * 3 + id.length());
+        for (int i = 0; i < levels; i++) {
+            path.append(HEX[(hash[i] >> 4) & 0xf]).append(HEX[hash[i] & 0xf]).append('/');
+        }
+        return new File(root, path.append(id).toString());
+    }
+
+    /**
+     * Collect the entity directories below the given root. Only directories
+     * reached through the shards of their own hash are included, so that the
+     * entity directories of another fan-out left behind by an interrupted
+     * migration are not mistaken for entities of this layout.
+     */
+    public List<File> listEntityDirectories(File root) {
+        List<File> dirs = new ArrayList<File>();
+        collect(root, root, 0, dirs);
+        return dirs;
+    }
+
+    private void collect(File root, File dir, int depth, List<File> dirs) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            if (!child.isDirectory()) {
+                continue;
+            }
+            if (depth == levels) {
+                if (levels == 0 || resolve(root, child.getName()).equals(child)) {
+                    dirs.add(child);
+                }
+            } else if (isShard(child)) {
+                collect(root, child, depth + 1, dirs);
+            }
+        }
+    }
+
+    private static boolean isShard(File dir) {
+        String name = dir.getName();
+        return name.length() == 2 && Character.digit(name.charAt(0), 16) >= 0 &&
+                Character.digit(name.charAt(1), 16) >= 0 && name.equals(name.toLowerCase());
+    }
+
+    /**
+     * Make sure the tree below root uses this layout. If the tree has been
+     * written using a different fan-out, all entity directories are moved
+     * over in parallel. A migration interrupted before is completed first.
+     *
+     * @return the number of migrated entity directories
+     */
+    public int apply(File root, int threads) throws IOException {
+        File marker = new File(root, MARKER_FILE);
+        File progress = new File(root, MIGRATION_FILE);
+        DurableWriter writer = new DurableWriter(DurableWriter.Durability.PER_WRITE);
+        DirectoryLayout current;
+        int migrated = 0;
+        if (progress.exists()) {
+            String[] fanOuts = FileUtils.readFileToString(progress).trim().split(" ");
+            DirectoryLayout source = new DirectoryLayout(Integer.parseInt(fanOuts[0]));
+            current = new DirectoryLayout(Integer.parseInt(fanOuts[1]));
+            LOG.info("resuming the interrupted migration of " + root.getAbsolutePath());
+            migrated = current.migrate(root, source, threads);
+            writer.write(marker, String.valueOf(current.levels).getBytes(UTF8));
+        } else if (marker.exists()) {
+            current = new DirectoryLayout(Integer.parseInt(FileUtils.readFileToString(marker).trim()));
+        } else {
+            // trees created before the layout was recorded are flat
+            current = new DirectoryLayout(0);
+        }
+        if (current.levels != levels) {
+            writer.write(progress, (current.levels + " " + levels).getBytes(UTF8));
+            migrated += migrate(root, current, threads);
+        }
+        // the layout is committed last, the migration marker is only needed until then
+        writer.write(marker, String.valueOf(levels).getBytes(UTF8));
+        if (progress.exists() && !progress.delete()) {
+            throw new IOException("Unable to delete " + progress.getAbsolutePath());
+        }
+        return migrated;
+    }
+
+    /**
+     * Move the entity directories below root from the given source layout to
+     * this layout using a pool of worker threads. Directories which are in
+     * place already are skipped, so that the migration can be repeated after
+     * it has been interrupted. All moves are forced to disk before this
+     * method returns.
+     *
+     * @return the number of migrated entity directories
+     */
+    public int migrate(final File root, DirectoryLayout source, int threads) throws IOException {
+        final List<File> dirs = source.listEntityDirectories(root);
+        LOG.info("migrating " + dirs.size() + " entity directories in " + root.getAbsolutePath() + " from " +
+                source.levels + " to " + levels + " levels");
+        final AtomicInteger migrated = new AtomicInteger();
+        final Set<File> touched = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+        ExecutorService executor = Executors.newFixedThreadPool(Math.max(1, threads));
+        try {
+            List<Future<?>> futures = new ArrayList<Future<?>>(dirs.size());
+            for (final File dir : dirs) {
+                if (source.levels < levels && isShard(dir) && containsEntities(root, dir, source.levels + 1)) {
+                    // a shard of this layout created by an interrupted migration from a flatter one
+                    continue;
+                }
+                futures.add(executor.submit(new Runnable() {
+                    public void run() {
+                        File target = resolve(root, dir.getName());
+                        if (target.equals(dir)) {
+                            return;
+                        }
+                        target.getParentFile().mkdirs();
+                        if (!dir.renameTo(target)) {
+                            throw new IllegalStateException("Unable to move " + dir.getAbsolutePath() + " to " +
+                                    target.getAbsolutePath());
+                        }
+                        touched.add(dir.getParentFile());
+                        touched.add(target.getParentFile());
+                        migrated.incrementAndGet();
+                    }
+                }));
+            }
+            for (Future<?> f : futures) {
+                f.get();
+            }
+        } catch (Exception e) {
+            throw new IOException("Migration of " + root.getAbsolutePath() + " failed", e);
+        } finally {
+            executor.shutdown();
+        }
+        for (File dir : touched) {
+            DurableWriter.DirectorySync.force(dir);
+        }
+        if (source.levels > 0) {
+            removeEmptyShards(root, 0, source.levels);
+        }
+        return migrated.get();
+    }
+
+    /* whether a shard at the given depth holds entity directories of this layout */
+    private boolean containsEntities(File root, File shard, int depth) {
+        List<File> found = new ArrayList<File>();
+        collect(root, shard, depth, found);
+        return !found.isEmpty();
+    }
+
+    private void removeEmptyShards(File dir, int depth, int shardLevels) {
+        File[] children = dir.listFiles();
+        if (children == null) {
+            return;
+        }
+        for (File child : children) {
+            // only look at shard directories which might be left over
+            if (child.isDirectory() && isShard(child) && depth < shardLevels) {
+                removeEmptyShards(child, depth + 1, shardLevels);
+                String[] remaining = child.list();
+                if (remaining != null && remaining.length == 0) {
+                    child.delete();
+                }
+            }
+        }
+    }
+}
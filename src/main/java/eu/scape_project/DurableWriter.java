@@ -0,0 +1,376 @@
+package eu.scape_project;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Array;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Writes files atomically by writing to a temporary file in the target
+ * directory first and renaming it afterwards, so that readers never see a
+ * partially written file. Depending on the {@link Durability} the data is
+ * forced to disk:
+ * <ul>
+ * <li>{@link Durability#NONE}: never, a crash might lose recent writes</li>
+ * <li>{@link Durability#PER_WRITE}: each writer forces its temporary file
+ * before the rename and the directory after it, so that neither the content
+ * nor the rename of an acknowledged write is lost</li>
+ * <li>{@link Durability#GROUP}: as durable as {@link Durability#PER_WRITE},
+ * but writers only write their temporary files and queue them. A single
+ * committer thread takes all queued writes as a batch, forces their files,
+ * renames them and forces each of their directories once, before it releases
+ * the waiting writers. Concurrent writers thus share the directory syncs and
+ * don't contend for the disk with their own syncs.</li>
+ * </ul>
+ */
+public class DurableWriter {
+
+    public static final String PROPERTY_DURABILITY = "scape-tck.storage.durability";
+
+    private static final Logger LOG = LoggerFactory.getLogger(DurableWriter.class);
+
+    public enum Durability {
+        NONE, PER_WRITE, GROUP
+    }
+
+    private static final long COMMITTER_POLL = 100;
+
+    private final Durability durability;
+
+    private final AtomicLong forcedWrites = new AtomicLong();
+
+    private final AtomicLong forcedDirectories = new AtomicLong();
+
+    private final AtomicLong groupCommits = new AtomicLong();
+
+    /* the writes waiting for the committer in group mode */
+    private final BlockingQueue<PendingWrite> pending = new LinkedBlockingQueue<PendingWrite>();
+
+    private final Thread committer;
+
+    private volatile boolean closed;
+
+    /**
+     * Get the durability configured by the system property, which is
+     * {@link Durability#GROUP} by default
+     */
+    public static Durability getConfiguredDurability() {
+        return Durability.valueOf(System.getProperty(PROPERTY_DURABILITY, "group").toUpperCase().replace('-', '_'));
+    }
+
+    public DurableWriter(Durability durability) {
+        this.durability = durability;
+        if (durability == Durability.GROUP) {
+            committer = new Thread(new Runnable() {
+                public void run() {
+                    commitLoop();
+                }
+            }, "durable-writer-committer");
+            committer.setDaemon(true);
+            committer.start();
+        } else {
+            committer = null;
+        }
+    }
+
+    public Durability getDurability() {
+        return durability;
+    }
+
+    public long getForcedWrites() {
+        return forcedWrites.get();
+    }
+
+    /**
+     * Get the number of times a directory has been forced to disk after a
+     * rename, which is 0 if the platform doesn't support it
+     */
+    public long getForcedDirectories() {
+        return forcedDirectories.get();
+    }
+
+    /**
+     * Get the number of batches the committer has forced in group mode
+     */
+    public long getGroupCommits() {
+        return groupCommits.get();
+    }
+
+    /**
+     * Atomically replace the target file with the given data
+     */
+    public void write(File target, byte[] data) throws IOException {
+        if (closed) {
+            throw new IOException("The writer has been closed");
+        }
+        File tmp = File.createTempFile("." + target.getName() + ".", ".tmp", target.getParentFile());
+        FileOutputStream out = null;
+        try {
+            out = new FileOutputStream(tmp);
+            out.write(data);
+            if (durability == Durability.GROUP) {
+                // the committer forces and closes the file
+                PendingWrite write = new PendingWrite(tmp, target, out);
+                out = null;
+                pending.add(write);
+                if (closed && !committer.isAlive()) {
+                    // queued after close() committed the last writes
+                    commitPending();
+                }
+                write.await();
+                return;
+            }
+            if (durability == Durability.PER_WRITE) {
+                out.getChannel().force(true);
+                forcedWrites.incrementAndGet();
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(out);
+            tmp.delete();
+            throw e;
+        } finally {
+            IOUtils.closeQuietly(out);
+        }
+        rename(tmp, target);
+        if (durability == Durability.PER_WRITE && DirectorySync.force(target.getParentFile())) {
+            forcedDirectories.incrementAndGet();
+        }
+    }
+
+    /**
+     * Commit the writes still queued and stop the committer
+     */
+    public void close() {
+        closed = true;
+        if (committer == null) {
+            return;
+        }
+        try {
+            committer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        // writes queued while the committer was stopping
+        commitPending();
+    }
+
+    private void commitPending() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        pending.drainTo(batch);
+        if (!batch.isEmpty()) {
+            commit(batch);
+        }
+    }
+
+    private void commitLoop() {
+        List<PendingWrite> batch = new ArrayList<PendingWrite>();
+        while (!closed || !pending.isEmpty()) {
+            try {
+                PendingWrite first = pending.poll(COMMITTER_POLL, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+                pending.drainTo(batch);
+                commit(batch);
+            } catch (InterruptedException e) {
+                return;
+            } catch (RuntimeException e) {
+                LOG.error("unable to commit writes", e);
+                for (PendingWrite write : batch) {
+                    write.fail(new IOException("Unable to commit the write", e));
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /* force the files of a batch, rename them and force their directories once */
+    private void commit(List<PendingWrite> batch) {
+        Map<File, List<PendingWrite>> directories = new LinkedHashMap<File, List<PendingWrite>>();
+        for (PendingWrite write : batch) {
+            try {
+                try {
+                    write.out.getChannel().force(true);
+                    forcedWrites.incrementAndGet();
+                } finally {
+                    write.out.close();
+                }
+                rename(write.tmp, write.target);
+            } catch (IOException e) {
+                write.tmp.delete();
+                write.fail(e);
+                continue;
+            }
+            File dir = write.target.getParentFile();
+            List<PendingWrite> renamed = directories.get(dir);
+            if (renamed == null) {
+                renamed = new ArrayList<PendingWrite>();
+                directories.put(dir, renamed);
+            }
+            renamed.add(write);
+        }
+        for (Map.Entry<File, List<PendingWrite>> entry : directories.entrySet()) {
+            IOException failure = null;
+            try {
+                if (DirectorySync.force(entry.getKey())) {
+                    forcedDirectories.incrementAndGet();
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            for (PendingWrite write : entry.getValue()) {
+                if (failure == null) {
+                    write.done();
+                } else {
+                    write.fail(failure);
+                }
+            }
+        }
+        groupCommits.incrementAndGet();
+    }
+
+    private static void rename(File tmp, File target) throws IOException {
+        if (tmp.renameTo(target)) {
+            return;
+        }
+        // on some platforms rename doesn't replace existing files
+        if (target.exists() && target.delete() && tmp.renameTo(target)) {
+            return;
+        }
+        tmp.delete();
+        throw new IOException("Unable to move " + tmp.getAbsolutePath() + " to " + target.getAbsolutePath());
+    }
+
+    /**
+     * A write waiting for the committer
+     */
+    private static final class PendingWrite {
+
+        private final File tmp;
+
+        private final File target;
+
+        private final FileOutputStream out;
+
+        private final CountDownLatch committed = new CountDownLatch(1);
+
+        private volatile IOException failure;
+
+        private PendingWrite(File tmp, File target, FileOutputStream out) {
+            this.tmp = tmp;
+            this.target = target;
+            this.out = out;
+        }
+
+        private void done() {
+            committed.countDown();
+        }
+
+        private void fail(IOException e) {
+            failure = e;
+            committed.countDown();
+        }
+
+        private void await() throws IOException {
+            try {
+                committed.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while waiting for the commit of " +
+                        target.getAbsolutePath());
+            }
+            if (failure != null) {
+                throw failure;
+            }
+        }
+    }
+
+    /**
+     * Forces directories to disk, which is only possible via the NIO.2 API of
+     * Java 7 and later. Since the code base targets Java 6 the API is looked
+     * up reflectively, on older runtimes and on platforms which can't open
+     * directories (e.g. Windows) forcing a directory is skipped.
+     */
+    static final class DirectorySync {
+
+        private static final Method TO_PATH;
+
+        private static final Method OPEN;
+
+        private static final Object READ_OPTIONS;
+
+        private static volatile boolean supported;
+
+        static {
+            Method toPath = null;
+            Method open = null;
+            Object options = null;
+            try {
+                Class<?> pathClass = Class.forName("java.nio.file.Path");
+                Class<?> optionClass = Class.forName("java.nio.file.OpenOption");
+                Class<?> standardOptionClass = Class.forName("java.nio.file.StandardOpenOption");
+                toPath = File.class.getMethod("toPath");
+                open = FileChannel.class.getMethod("open", pathClass, Array.newInstance(optionClass, 0).getClass());
+                options = Array.newInstance(optionClass, 1);
+                Array.set(options, 0, standardOptionClass.getField("READ").get(null));
+            } catch (Exception e) {
+                LOG.warn("directories can't be forced to disk on this runtime, renames may be lost in a crash");
+            }
+            TO_PATH = toPath;
+            OPEN = open;
+            READ_OPTIONS = options;
+            supported = (open != null);
+        }
+
+        private DirectorySync() {
+        }
+
+        /**
+         * @return <code>true</code> if the directory has been forced
+         */
+        static boolean force(File dir) throws IOException {
+            if (!supported) {
+                return false;
+            }
+            FileChannel channel;
+            try {
+                channel = (FileChannel) OPEN.invoke(null, TO_PATH.invoke(dir), READ_OPTIONS);
+            } catch (InvocationTargetException e) {
+                if (e.getCause() instanceof IOException && dir.isDirectory()) {
+                    // the platform doesn't allow opening directories
+                    LOG.warn("unable to force directories to disk, renames may be lost in a crash", e.getCause());
+                    supported = false;
+                    return false;
+                }
+                throw new IOException("Unable to open directory " + dir.getAbsolutePath(), e.getCause());
+            } catch (IllegalAccessException e) {
+                supported = false;
+                return false;
+            }
+            try {
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+            return true;
+        }
+    }
+}
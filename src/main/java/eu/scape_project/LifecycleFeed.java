@@ -0,0 +1,301 @@
+package eu.scape_project;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+import org.apache.commons.lang3.time.DateFormatUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import eu.scape_project.model.LifecycleState;
+
+/**
+ * A feed of the lifecycle state transitions of the entities, which lets
+ * clients wait for the transitions following a sequence number instead of
+ * polling the states of single entities. The most recent transitions are kept
+ * in a bounded ring buffer, a client falling behind by more than its capacity
+ * notices the gap by the sequence number of the oldest retained transition.
+ * <p>
+ * Waiting clients don't block a thread: a poll which finds no transitions
+ * registers a listener, which is called from the feed's own thread as soon as
+ * a transition is appended or the poll times out.
+ */
+public class LifecycleFeed {
+
+    public static final String PROPERTY_FEED_SIZE = "scape-tck.lifecycle.feed-size";
+
+    private static final Logger LOG = LoggerFactory.getLogger(LifecycleFeed.class);
+
+    /* the transitions by sequence number modulo the capacity, guarded by this */
+    private final Transition[] ring;
+
+    /* the sequence number of the next transition, guarded by this */
+    private long next = 1;
+
+    /* the polls waiting for the next transition, guarded by this */
+    private final List<Waiter> waiters = new ArrayList<Waiter>();
+
+    /* guarded by this */
+    private boolean closed;
+
+    private final ScheduledExecutorService dispatcher;
+
+    public LifecycleFeed() {
+        this(Integer.getInteger(PROPERTY_FEED_SIZE, 10000));
+    }
+
+    /**
+     * @param capacity
+     *            the number of transitions retained
+     */
+    public LifecycleFeed(int capacity) {
+        if (capacity < 1) {
+            throw new IllegalArgumentException("Invalid feed size " + capacity);
+        }
+        this.ring = new Transition[capacity];
+        this.dispatcher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "lifecycle-feed");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Append a transition and wake up the waiting polls
+     */
+    public void append(String id, LifecycleState state) {
+        List<Waiter> woken;
+        synchronized (this) {
+            long sequence = next++;
+            ring[(int) (sequence % ring.length)] = new Transition(sequence, id, state, System.currentTimeMillis());
+            if (waiters.isEmpty()) {
+                return;
+            }
+            woken = new ArrayList<Waiter>(waiters);
+            waiters.clear();
+        }
+        for (Waiter waiter : woken) {
+            waiter.dispatch();
+        }
+    }
+
+    /**
+     * Get the sequence number the next transition will get
+     */
+    public synchronized long getNextSequence() {
+        return next;
+    }
+
+    /**
+     * Read the retained transitions starting at a sequence number
+     *
+     * @param from
+     *            the sequence number of the first transition
+     * @param max
+     *            the maximum number of transitions
+     */
+    public synchronized Page read(long from, int max) {
+        long first = Math.max(1, next - ring.length);
+        List<Transition> transitions = new ArrayList<Transition>();
+        for (long sequence = Math.max(from, first); sequence < next && transitions.size() < max; sequence++) {
+            transitions.add(ring[(int) (sequence % ring.length)]);
+        }
+        long continueAt = transitions.isEmpty() ? Math.max(from, first) : transitions.get(
+                transitions.size() - 1).getSequence() + 1;
+        return new Page(first, continueAt, transitions);
+    }
+
+    /**
+     * Pass the transitions starting at a sequence number to a listener, as
+     * soon as there are any or when the timeout has passed. The listener is
+     * called exactly once, either directly if transitions are available or
+     * from the feed's thread.
+     *
+     * @param timeout
+     *            the maximum time in milliseconds to wait for a transition
+     */
+    public void poll(long from, int max, long timeout, Listener listener) {
+        Waiter waiter;
+        synchronized (this) {
+            if (closed || from < next || timeout <= 0) {
+                waiter = null;
+            } else {
+                waiter = new Waiter(from, max, listener);
+                waiters.add(waiter);
+            }
+        }
+        if (waiter == null) {
+            listener.deliver(read(from, max));
+            return;
+        }
+        final Waiter timedOut = waiter;
+        dispatcher.schedule(new Runnable() {
+            public void run() {
+                synchronized (LifecycleFeed.this) {
+                    waiters.remove(timedOut);
+                }
+                timedOut.deliver();
+            }
+        }, timeout, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Answer all waiting polls and stop the feed's thread
+     */
+    public void close() {
+        List<Waiter> pending;
+        synchronized (this) {
+            closed = true;
+            pending = new ArrayList<Waiter>(waiters);
+            waiters.clear();
+        }
+        dispatcher.shutdownNow();
+        for (Waiter waiter : pending) {
+            waiter.deliver();
+        }
+    }
+
+    /**
+     * Receives the result of a poll
+     */
+    public interface Listener {
+        void deliver(Page page);
+    }
+
+    private final class Waiter {
+
+        private final long from;
+
+        private final int max;
+
+        private final Listener listener;
+
+        private final AtomicBoolean delivered = new AtomicBoolean();
+
+        private Waiter(long from, int max, Listener listener) {
+            this.from = from;
+            this.max = max;
+            this.listener = listener;
+        }
+
+        private void dispatch() {
+            dispatcher.execute(new Runnable() {
+                public void run() {
+                    deliver();
+                }
+            });
+        }
+
+        /* the timeout and a transition may race to answer the poll */
+        private void deliver() {
+            if (!delivered.compareAndSet(false, true)) {
+                return;
+            }
+            try {
+                listener.deliver(read(from, max));
+            } catch (RuntimeException e) {
+                LOG.warn("unable to deliver lifecycle transitions", e);
+            }
+        }
+    }
+
+    /**
+     * A lifecycle state an entity changed to
+     */
+    public static final class Transition {
+
+        private final long sequence;
+
+        private final String id;
+
+        private final LifecycleState state;
+
+        private final long time;
+
+        private Transition(long sequence, String id, LifecycleState state, long time) {
+            this.sequence = sequence;
+            this.id = id;
+            this.state = state;
+            this.time = time;
+        }
+
+        public long getSequence() {
+            return sequence;
+        }
+
+        public String getId() {
+            return id;
+        }
+
+        public LifecycleState getState() {
+            return state;
+        }
+
+        public long getTime() {
+            return time;
+        }
+    }
+
+    /**
+     * The result of reading the feed
+     */
+    public static final class Page {
+
+        private final long first;
+
+        private final long next;
+
+        private final List<Transition> transitions;
+
+        private Page(long first, long next, List<Transition> transitions) {
+            this.first = first;
+            this.next = next;
+            this.transitions = Collections.unmodifiableList(transitions);
+        }
+
+        /**
+         * Get the sequence number of the oldest retained transition, a client
+         * which asked for an older one has missed transitions
+         */
+        public long getFirst() {
+            return first;
+        }
+
+        /**
+         * Get the sequence number to continue reading from
+         */
+        public long getNext() {
+            return next;
+        }
+
+        public List<Transition> getTransitions() {
+            return transitions;
+        }
+
+        public String toXML() {
+            StringBuilder xml = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+            xml.append("<lifecycle-feed first=\"").append(first).append("\" next=\"").append(next).append("\">\n");
+            for (Transition t : transitions) {
+                xml.append("<transition sequence=\"").append(t.sequence).append("\" id=\"").append(
+                        StringEscapeUtils.escapeXml(t.id)).append("\" state=\"").append(t.state.getState()).append(
+                        "\" time=\"").append(DateFormatUtils.ISO_DATETIME_TIME_ZONE_FORMAT.format(new Date(t.time)))
+                        .append("\">");
+                if (t.state.getDetails() != null) {
+                    xml.append(StringEscapeUtils.escapeXml(t.state.getDetails()));
+                }
+                xml.append("</transition>\n");
+            }
+            return xml.append("</lifecycle-feed>\n").toString();
+        }
+    }
+}
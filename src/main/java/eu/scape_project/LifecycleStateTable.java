@@ -0,0 +1,85 @@
+package eu.scape_project;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import eu.scape_project.model.LifecycleState;
+
+/**
+ * The current lifecycle states of the entities by their id. Every state is
+ * kept together with its serialized XML, so that the frequently polled
+ * lifecycle endpoint can answer with a single map lookup, without touching
+ * the storage or running the marshaller.
+ */
+public class LifecycleStateTable {
+
+    private final ConcurrentMap<String, Entry> states = new ConcurrentHashMap<String, Entry>();
+
+    /**
+     * Record a state transition of an entity
+     *
+     * @param xml
+     *            the serialized state
+     */
+    public void update(String id, LifecycleState state, byte[] xml) {
+        states.put(id, new Entry(state, xml));
+    }
+
+    /**
+     * Record the state of an entity unless a state has been recorded already,
+     * e.g. when the state of a stored entity is looked up after a restart
+     *
+     * @return the recorded entry
+     */
+    public Entry init(String id, LifecycleState state, byte[] xml) {
+        Entry entry = new Entry(state, xml);
+        Entry existing = states.putIfAbsent(id, entry);
+        return (existing == null) ? entry : existing;
+    }
+
+    /**
+     * @return the entry or <code>null</code> if no state of the entity is
+     *         known
+     */
+    public Entry get(String id) {
+        return states.get(id);
+    }
+
+    public void remove(String id) {
+        states.remove(id);
+    }
+
+    public void clear() {
+        states.clear();
+    }
+
+    public int size() {
+        return states.size();
+    }
+
+    /**
+     * A lifecycle state and its serialized XML
+     */
+    public static final class Entry {
+
+        private final LifecycleState state;
+
+        private final byte[] xml;
+
+        private Entry(LifecycleState state, byte[] xml) {
+            this.state = state;
+            this.xml = xml;
+        }
+
+        public LifecycleState getState() {
+            return state;
+        }
+
+        /**
+         * Get the serialized state, which must not be modified
+         */
+        public byte[] getXML() {
+            return xml;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package eu.scape_project;
+
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * A fixed number of locks shared by keys with the same hash. Updates of the
+ * same key are serialized, while updates of different keys mostly proceed in
+ * parallel, without having to keep and clean up a lock per key.
+ */
+public class LockStripes {
+
+    private final Lock[] locks;
+
+    public LockStripes(int stripes) {
+        if (stripes < 1) {
+            throw new IllegalArgumentException("At least one stripe is required");
+        }
+        this.locks = new Lock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            locks[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Get the lock guarding a key
+     */
+    public Lock get(String key) {
+        int h = key.hashCode();
+        // spread the high bits, similar hashes would share a stripe otherwise
+        h ^= (h >>> 16);
+        return locks[(h & 0x7fffffff) % locks.length];
+    }
+}
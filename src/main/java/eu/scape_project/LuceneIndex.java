@@ -1,143 +1,828 @@
 package eu.scape_project;
 
+import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.xml.bind.JAXBElement;
 
-import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.analysis.Analyzer;
 import org.apache.lucene.analysis.standard.StandardAnalyzer;
 import org.apache.lucene.document.Document;
 import org.apache.lucene.document.Field;
+import org.apache.lucene.document.NumericField;
 import org.apache.lucene.index.IndexReader;
 import org.apache.lucene.index.IndexWriter;
 import org.apache.lucene.index.IndexWriterConfig;
-import org.apache.lucene.queryParser.MultiFieldQueryParser;
+import org.apache.lucene.index.Term;
+import org.apache.lucene.index.TermDocs;
+import org.apache.lucene.index.TermEnum;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.BooleanClause.Occur;
+import org.apache.lucene.search.BooleanQuery;
+import org.apache.lucene.search.CachingWrapperFilter;
+import org.apache.lucene.search.FieldCache;
+import org.apache.lucene.search.Filter;
 import org.apache.lucene.search.IndexSearcher;
+import org.apache.lucene.search.NumericRangeQuery;
 import org.apache.lucene.search.Query;
+import org.apache.lucene.search.QueryWrapperFilter;
 import org.apache.lucene.search.ScoreDoc;
+import org.apache.lucene.search.SearcherFactory;
+import org.apache.lucene.search.SearcherLifetimeManager;
+import org.apache.lucene.search.Sort;
+import org.apache.lucene.search.SearcherManager;
+import org.apache.lucene.search.TermQuery;
 import org.apache.lucene.search.TopDocs;
 import org.apache.lucene.store.Directory;
+import org.apache.lucene.store.MMapDirectory;
+import org.apache.lucene.store.NIOFSDirectory;
 import org.apache.lucene.store.RAMDirectory;
+import org.apache.lucene.util.ReaderUtil;
 import org.apache.lucene.util.Version;
 import org.purl.dc.elements._1.ElementContainer;
 import org.purl.dc.elements._1.SimpleLiteral;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import eu.scape_project.CQLParser.CompiledQuery;
 import eu.scape_project.model.IntellectualEntity;
 import eu.scape_project.model.Representation;
+import gov.loc.marc21.slim.ControlFieldType;
+import gov.loc.marc21.slim.DataFieldType;
+import gov.loc.marc21.slim.RecordType;
+import gov.loc.marc21.slim.SubfieldatafieldType;
+import gov.loc.mix.v20.BasicImageInformationType;
+import gov.loc.mix.v20.BasicImageInformationType.BasicImageCharacteristics;
+import gov.loc.mix.v20.Mix;
+import gov.loc.mix.v20.PositiveIntegerType;
 
+/**
+ * Search index of the entities and representations. Adding documents doesn't
+ * commit, instead the documents become searchable through near-real-time
+ * readers, which are refreshed after a configurable interval or number of
+ * added documents. Durable commits are done on a timer, on close and by a
+ * shutdown hook.
+ * <p>
+ * Searches share the current searcher of an index, which is reference
+ * counted and only replaced once the index has changed. New searchers are
+ * warmed with the most recent queries before they replace the current one.
+ * <p>
+ * The indexes are kept in memory by default. Alternatively they can be
+ * stored on disk below a directory and accessed through memory mapped files,
+ * which keeps them off the heap and allows reopening them after a restart.
+ * <p>
+ * Queries are written in CQL and compiled by a {@link CQLParser}. The
+ * compiled queries are cached, so repeated queries are not parsed again.
+ * <p>
+ * Search results are returned in pages. Following pages can be fetched by
+ * position or via a cursor, which continues on the same point-in-time view of
+ * the index without collecting the earlier pages again.
+ */
 public class LuceneIndex {
-    private final Directory entityDir = new RAMDirectory();
-    private final Directory representationDir = new RAMDirectory();
-    private IndexWriter entityWriter;
-    private IndexWriter representationWriter;
+
+    public static final String PROPERTY_REFRESH_INTERVAL = "scape-tck.index.refresh-interval";
+    public static final String PROPERTY_REFRESH_DOCUMENTS = "scape-tck.index.refresh-documents";
+    public static final String PROPERTY_COMMIT_INTERVAL = "scape-tck.index.commit-interval";
+    public static final String PROPERTY_DIRECTORY = "scape-tck.index.directory";
+    public static final String PROPERTY_MAXIMUM_RECORDS = "scape-tck.index.maximum-records";
+    public static final String PROPERTY_VERSION_DOCUMENTS = "scape-tck.index.version-documents";
+
     private static final Logger LOG = LoggerFactory.getLogger(LuceneIndex.class);
 
+    /* the MARC subfields also indexed as Dublin Core elements */
+    private static final Map<String, String> MARC_TO_DC = new HashMap<String, String>();
+
+    static {
+        MARC_TO_DC.put("245a", "title");
+        MARC_TO_DC.put("520a", "description");
+        MARC_TO_DC.put("100a", "creator");
+        MARC_TO_DC.put("650a", "subject");
+        MARC_TO_DC.put("260b", "publisher");
+        MARC_TO_DC.put("260c", "date");
+    }
+
+    /* the number of compiled queries cached per index */
+    private static final int QUERY_CACHE_SIZE = 1000;
+
+    /* the number of recent queries run against new searchers */
+    private static final int WARMING_QUERIES = 8;
+
+    /* the number of seconds a searcher is kept for the cursors handed out */
+    private static final double CURSOR_LIFETIME = 300;
+
+    private final ManagedIndex entityIndex;
+    private final ManagedIndex representationIndex;
+    /* cached per segment, so only new segments have to be filtered after a
+     * refresh */
+    private final Filter latestVersions = new CachingWrapperFilter(new QueryWrapperFilter(new TermQuery(new Term(
+            "_type", "latest"))));
+    private final int refreshDocuments;
+    private final int maximumRecords = Integer.getInteger(PROPERTY_MAXIMUM_RECORDS, 1000);
+    /* the number of most recent versions per entity kept for version specific searches */
+    private final int versionDocuments = Integer.getInteger(PROPERTY_VERSION_DOCUMENTS, 10);
+    private final SearchResultCache resultCache = new SearchResultCache(Integer.getInteger(
+            SearchResultCache.PROPERTY_RESULT_CACHE_SIZE, 1000));
+    private final ScheduledExecutorService scheduler;
+    private final Thread shutdownHook;
+
+    /**
+     * Create an index kept in memory
+     */
+    public LuceneIndex() throws IOException {
+        this(null, "ram");
+    }
+
+    /**
+     * Create an index in the given directory using the directory
+     * implementation configured via {@link #PROPERTY_DIRECTORY}
+     */
+    public LuceneIndex(File path) throws IOException {
+        this(path, System.getProperty(PROPERTY_DIRECTORY, "ram"));
+    }
+
+    private LuceneIndex(File path, String type) throws IOException {
+        this(path, type, Long.getLong(PROPERTY_REFRESH_INTERVAL, 100), Integer.getInteger(PROPERTY_REFRESH_DOCUMENTS,
+                1000), Long.getLong(PROPERTY_COMMIT_INTERVAL, 10000));
+    }
+
+    public LuceneIndex(long refreshInterval, int refreshDocuments, long commitInterval) throws IOException {
+        this(null, "ram", refreshInterval, refreshDocuments, commitInterval);
+    }
+
+    /**
+     * @param path
+     *            the directory to keep the indexes in, if they are stored on
+     *            disk
+     * @param type
+     *            the directory implementation: <code>ram</code> keeps the
+     *            indexes on the heap, <code>mmap</code> and <code>nio</code>
+     *            store them on disk and access them via memory mapped files
+     *            or positional reads
+     * @param refreshInterval
+     *            the maximum time in milliseconds until added documents
+     *            become searchable
+     * @param refreshDocuments
+     *            the number of added documents which trigger a refresh
+     *            before the interval has passed
+     * @param commitInterval
+     *            the interval in milliseconds of the durable commits
+     */
+    public LuceneIndex(File path, String type, long refreshInterval, int refreshDocuments, long commitInterval)
+            throws IOException {
+        // analyzers are thread safe and can be shared by all writers and parsers, queries have to be analyzed
+        // like the documents, otherwise e.g. numbers in titles would never match
+        Analyzer analyzer = new StandardAnalyzer(Version.LUCENE_36);
+        Set<String> exactFields = new HashSet<String>(Arrays.asList("id", "version"));
+        Set<String> numericFields = new HashSet<String>(Arrays.asList("mix.imageWidth", "mix.imageHeight"));
+        this.entityIndex = new ManagedIndex("entity", openDirectory(path, "entity", type), analyzer,
+                new CQLParser(analyzer, new String[] { "id", "title", "description" }, exactFields,
+                        numericFields));
+        this.representationIndex = new ManagedIndex("representation", openDirectory(path, "representation", type),
+                analyzer, new CQLParser(analyzer, new String[] { "title" }, exactFields, numericFields));
+        this.refreshDocuments = refreshDocuments;
+        this.scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "index-refresher");
+                t.setDaemon(true);
+                return t;
+            }
+        });
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                refresh();
+            }
+        }, refreshInterval, refreshInterval, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                commit();
+            }
+        }, commitInterval, commitInterval, TimeUnit.MILLISECONDS);
+        this.scheduler.scheduleWithFixedDelay(new Runnable() {
+            public void run() {
+                entityIndex.pruneCursors();
+                representationIndex.pruneCursors();
+            }
+        }, 60, 60, TimeUnit.SECONDS);
+        // flush the last changes if the JVM exits without closing the index
+        this.shutdownHook = new Thread("index-shutdown-commit") {
+            @Override
+            public void run() {
+                commit();
+            }
+        };
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
+    }
+
     public void addEntity(IntellectualEntity entity) throws IOException {
-        LOG.info("++ adding entity " + entity.getIdentifier().getValue());
+        addEntity(entity, entity.getVersionNumber());
+    }
+
+    /**
+     * Index a version of an entity and make it the latest version. Documents
+     * are replaced by their id, so indexing an entity again doesn't add
+     * duplicates to the index.
+     */
+    public void addEntity(IntellectualEntity entity, int version) throws IOException {
+        addEntity(entity, version, true);
+    }
+
+    /**
+     * Index a version of an entity
+     *
+     * @param latest
+     *            whether the version replaces the entity's latest document and
+     *            its representations, which writers racing with a newer
+     *            version must not do
+     */
+    public void addEntity(IntellectualEntity entity, int version, boolean latest) throws IOException {
+        String id = entity.getIdentifier().getValue();
+        LOG.info("++ adding entity " + id + " version " + version);
         Document doc = new Document();
-        doc.add(new Field("id", entity.getIdentifier().getValue(), Field.Store.YES, Field.Index.NOT_ANALYZED));
-        Object o = entity.getDescriptive();
-        if (o instanceof ElementContainer){
-            List<String> titles = new ArrayList<String>();
-            ElementContainer dc = (ElementContainer) o;
-            for (JAXBElement<?> jaxb : dc.getAny()){
-                if (jaxb.getName().getLocalPart().equals("title")){
-                    SimpleLiteral lit = (SimpleLiteral) jaxb.getValue();
-                    for (String title : lit.getContent()){
-                        doc.add(new Field("title", title, Field.Store.YES, Field.Index.ANALYZED));
+        doc.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("version", String.valueOf(version), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        addDescriptive(doc, entity.getDescriptive());
+        if (entity.getRepresentations() != null) {
+            for (Representation r : entity.getRepresentations()) {
+                if (latest) {
+                    addRepresentation(r);
+                }
+                addTechnical(doc, r);
+            }
+        }
+        // a copy of the latest version replaces the entity's previous latest
+        // document, while the most recent versions are kept in documents of
+        // their own for version specific searches. Older version documents
+        // are expired, so the index grows with the entities and not with the
+        // updates.
+        if (versionDocuments > 0) {
+            String key = id + "/" + version;
+            doc.add(new Field("_key", key, Field.Store.NO, Field.Index.NOT_ANALYZED));
+            doc.add(new Field("_type", "version", Field.Store.NO, Field.Index.NOT_ANALYZED));
+            doc.add(new NumericField("_version", Field.Store.NO, true).setIntValue(version));
+            if (!latest) {
+                add(entityIndex, new Term("_key", key), doc);
+                return;
+            }
+            entityIndex.writer.updateDocument(new Term("_key", key), doc);
+            if (version > versionDocuments) {
+                BooleanQuery expired = new BooleanQuery();
+                expired.add(new TermQuery(new Term("id", id)), Occur.MUST);
+                expired.add(new TermQuery(new Term("_type", "version")), Occur.MUST);
+                expired.add(NumericRangeQuery.newIntRange("_version", null, version - versionDocuments, true, true),
+                        Occur.MUST);
+                entityIndex.writer.deleteDocuments(expired);
+            }
+            doc.removeField("_key");
+            doc.removeField("_type");
+            doc.removeField("_version");
+        } else if (!latest) {
+            return;
+        }
+        doc.add(new Field("_latest", id, Field.Store.NO, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("_type", "latest", Field.Store.NO, Field.Index.NOT_ANALYZED));
+        add(entityIndex, new Term("_latest", id), doc);
+    }
+
+    /* every Dublin Core element is indexed in the field named like the
+     * element, the fields of MARC records as marc.<tag> and
+     * marc.<tag><code>, with the common descriptive ones copied to the Dublin
+     * Core fields */
+    private static void addDescriptive(Document doc, Object descriptive) {
+        if (descriptive instanceof ElementContainer) {
+            for (JAXBElement<?> jaxb : ((ElementContainer) descriptive).getAny()) {
+                if (!(jaxb.getValue() instanceof SimpleLiteral)) {
+                    continue;
+                }
+                String name = jaxb.getName().getLocalPart();
+                for (String value : ((SimpleLiteral) jaxb.getValue()).getContent()) {
+                    doc.add(new Field(name, value, Field.Store.YES, Field.Index.ANALYZED));
+                }
+            }
+        } else if (descriptive instanceof RecordType) {
+            RecordType record = (RecordType) descriptive;
+            for (ControlFieldType control : record.getControlfield()) {
+                doc.add(new Field("marc." + control.getTag(), control.getValue(), Field.Store.NO,
+                        Field.Index.ANALYZED));
+            }
+            for (DataFieldType data : record.getDatafield()) {
+                for (SubfieldatafieldType sub : data.getSubfield()) {
+                    if (sub.getValue() == null) {
+                        continue;
                     }
-                }else if (jaxb.getName().getLocalPart().equals("description")){
-                    SimpleLiteral lit = (SimpleLiteral) jaxb.getValue();
-                    for (String title : lit.getContent()){
-                        doc.add(new Field("description", title, Field.Store.YES, Field.Index.ANALYZED));
+                    String name = data.getTag() + sub.getCode();
+                    doc.add(new Field("marc." + name, sub.getValue(), Field.Store.NO, Field.Index.ANALYZED));
+                    String dc = MARC_TO_DC.get(name);
+                    if (dc != null) {
+                        doc.add(new Field(dc, sub.getValue(), Field.Store.YES, Field.Index.ANALYZED));
                     }
                 }
             }
         }
-        if (entity.getRepresentations() != null) {
-            for (Representation r : entity.getRepresentations()) {
-                addRepresentation(r);
+    }
+
+    /* the numeric MIX fields of a representation and its files */
+    private static void addTechnical(Document doc, Representation r) {
+        addMix(doc, r.getTechnical());
+        if (r.getFiles() != null) {
+            for (eu.scape_project.model.File f : r.getFiles()) {
+                addMix(doc, f.getTechnical());
             }
         }
-        getEntityWriter().addDocument(doc);
-        getEntityWriter().commit();
     }
 
+    private static void addMix(Document doc, Object technical) {
+        if (!(technical instanceof Mix)) {
+            return;
+        }
+        BasicImageInformationType info = ((Mix) technical).getBasicImageInformation();
+        if (info == null || info.getBasicImageCharacteristics() == null) {
+            return;
+        }
+        BasicImageCharacteristics characteristics = info.getBasicImageCharacteristics();
+        addNumber(doc, "mix.imageWidth", characteristics.getImageWidth());
+        addNumber(doc, "mix.imageHeight", characteristics.getImageHeight());
+    }
+
+    private static void addNumber(Document doc, String name, PositiveIntegerType value) {
+        if (value != null && value.getValue() != null) {
+            doc.add(new NumericField(name, Field.Store.NO, true).setLongValue(value.getValue().longValue()));
+        }
+    }
+
+    /**
+     * Index a representation, replacing a previously indexed document with
+     * the same id
+     */
     public void addRepresentation(Representation r) throws IOException {
         LOG.info("adding representation " + r.getIdentifier() + " with title " + r.getTitle());
+        String id = r.getIdentifier().getValue();
         Document doc = new Document();
-        doc.add(new Field("id", r.getIdentifier().getValue(), Field.Store.YES, Field.Index.NOT_ANALYZED));
+        doc.add(new Field("id", id, Field.Store.YES, Field.Index.NOT_ANALYZED));
         if (r.getTitle() != null) {
             doc.add(new Field("title", r.getTitle(), Field.Store.YES, Field.Index.ANALYZED));
         }
-        getRepresentationWriter().addDocument(doc);
-        getRepresentationWriter().commit();
+        addTechnical(doc, r);
+        add(representationIndex, new Term("id", id), doc);
     }
 
-    public void close() throws IOException {
-        if (this.entityWriter != null) {
-            this.entityWriter.close();
+    private void add(ManagedIndex index, Term id, Document doc) throws IOException {
+        index.writer.updateDocument(id, doc);
+        index.uncommitted.set(true);
+        if (index.unrefreshed.incrementAndGet() == refreshDocuments) {
+            scheduler.execute(new Runnable() {
+                public void run() {
+                    refresh();
+                }
+            });
+        }
+    }
+
+    private static Directory openDirectory(File path, String name, String type) throws IOException {
+        if (type.equals("ram")) {
+            return new RAMDirectory();
+        }
+        File dir = new File(path, name);
+        if (!dir.exists()) {
+            dir.mkdirs();
         }
-        if (this.representationWriter != null){
-            this.representationWriter.close();
+        if (type.equals("mmap")) {
+            return new MMapDirectory(dir);
+        } else if (type.equals("nio")) {
+            return new NIOFSDirectory(dir);
+        } else {
+            throw new IllegalArgumentException("Unknown index directory type " + type);
         }
-        this.entityDir.close();
-        this.representationDir.close();
     }
 
-    private IndexWriter getEntityWriter() throws IOException {
-        if (entityWriter == null) {
-            entityWriter = new IndexWriter(entityDir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+    public void close() throws IOException {
+        LOG.info("search result cache: " + resultCache.getHits() + " hits, " + resultCache.getMisses() +
+                " misses, " + resultCache.getEvictions() + " evictions, " + resultCache.getSavedMillis() +
+                " ms saved");
+        scheduler.shutdownNow();
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException e) {
+            // the JVM is shutting down already
         }
-        return entityWriter;
+        entityIndex.close();
+        representationIndex.close();
+    }
+
+    /**
+     * Make all added documents durable
+     */
+    public void commit() {
+        entityIndex.commit();
+        representationIndex.commit();
     }
 
-    private IndexWriter getRepresentationWriter() throws IOException {
-        if (representationWriter == null) {
-            representationWriter = new IndexWriter(representationDir, new IndexWriterConfig(Version.LUCENE_36, new StandardAnalyzer(Version.LUCENE_36)));
+    /**
+     * Remove an entity's document from the index
+     */
+    public void deleteEntity(String id) throws IOException {
+        entityIndex.writer.deleteDocuments(new Term("id", id));
+        entityIndex.uncommitted.set(true);
+        entityIndex.unrefreshed.incrementAndGet();
+    }
+
+    /**
+     * Get the ids of all entities in the index including the ones not
+     * refreshed yet
+     */
+    public Set<String> getEntityIds() throws IOException {
+        entityIndex.refresh();
+        Set<String> ids = new HashSet<String>();
+        IndexSearcher searcher = entityIndex.searcherManager.acquire();
+        try {
+            IndexReader reader = searcher.getIndexReader();
+            TermEnum terms = reader.terms(new Term("id", ""));
+            TermDocs docs = reader.termDocs();
+            try {
+                do {
+                    Term t = terms.term();
+                    if (t == null || !t.field().equals("id")) {
+                        break;
+                    }
+                    // the term enumeration still contains deleted documents
+                    docs.seek(terms);
+                    if (docs.next()) {
+                        ids.add(t.text());
+                    }
+                } while (terms.next());
+            } finally {
+                docs.close();
+                terms.close();
+            }
+        } finally {
+            entityIndex.searcherManager.release(searcher);
         }
-        return representationWriter;
+        return ids;
     }
 
+    /**
+     * Remove all documents from the index
+     */
+    public void purge() throws IOException {
+        entityIndex.purge();
+        representationIndex.purge();
+    }
+
+    /**
+     * Make all added documents searchable
+     */
+    public void refresh() {
+        boolean entities = entityIndex.refresh();
+        if (representationIndex.refresh() || entities) {
+            // the cached pages of the previous readers can't be hit anymore
+            resultCache.clear();
+        }
+    }
+
+    /**
+     * Get the cache of search result pages and its statistics
+     */
+    public SearchResultCache getResultCache() {
+        return resultCache;
+    }
+
+    /**
+     * Search the latest versions of the entities
+     *
+     * @return the ids of the first 10 matches
+     */
     public List<String> searchEntity(String term) throws Exception {
-        LOG.info(":: searching for " + term);
-        IndexSearcher searcher = new IndexSearcher(IndexReader.open(entityDir));
-        Query query = MultiFieldQueryParser.parse(
-                Version.LUCENE_36,
-                new String[] { term, term, term },
-                new String[] { "id", "title", "description" },
-                new SimpleAnalyzer(Version.LUCENE_36));
-        TopDocs hits = searcher.search(query, 10);
-        List<String> result = new ArrayList<String>();
-        for (ScoreDoc hit : hits.scoreDocs) {
-            Document doc = searcher.doc(hit.doc);
-            result.add(doc.get("id"));
-        }
-        searcher.close();
-        LOG.info(":: search yielded " + result.size() + " hits");
-        return result;
+        return searchEntity(term, 1, 10).getIds();
+    }
+
+    /**
+     * Search the given version of the entities. Only the most recent versions
+     * of each entity are kept for these searches, see
+     * {@link #PROPERTY_VERSION_DOCUMENTS}. If none are kept, only entities
+     * whose latest version is the given one are found.
+     *
+     * @return the ids of the first 10 matches
+     */
+    public List<String> searchEntity(String term, int version) throws Exception {
+        BooleanQuery versions = new BooleanQuery();
+        versions.add(new TermQuery(new Term("_type", versionDocuments > 0 ? "version" : "latest")), Occur.MUST);
+        versions.add(new TermQuery(new Term("version", String.valueOf(version))), Occur.MUST);
+        return search(entityIndex, term, new QueryWrapperFilter(versions), "version:" + version, 1, null, 10).getIds();
     }
 
+    /**
+     * Search the latest versions of the entities and return a page of the
+     * matches
+     *
+     * @param startRecord
+     *            the 1-based position of the first match to return
+     * @param maximumRecords
+     *            the maximum number of matches to return
+     */
+    public SearchResult searchEntity(String term, int startRecord, int maximumRecords) throws Exception {
+        return search(entityIndex, term, latestVersions, "latest", startRecord, null, maximumRecords);
+    }
+
+    /**
+     * Continue a search of the latest versions of the entities after the page
+     * the cursor was returned with
+     */
+    public SearchResult searchEntity(String term, String cursor, int maximumRecords) throws Exception {
+        return search(entityIndex, term, latestVersions, "latest", 1, cursor, maximumRecords);
+    }
+
+    /**
+     * @return the ids of the first 10 matches
+     */
     public List<String> searchRepresentation(String term) throws Exception {
-        IndexSearcher searcher = new IndexSearcher(IndexReader.open(representationDir));
-        Query query = MultiFieldQueryParser.parse(
-                Version.LUCENE_36,
-                new String[] { term },
-                new String[] { "title" },
-                new SimpleAnalyzer(Version.LUCENE_36));
-        TopDocs hits = searcher.search(query, 10);
-        List<String> result = new ArrayList<String>();
-        for (ScoreDoc hit : hits.scoreDocs) {
-            Document doc = searcher.doc(hit.doc);
-            result.add(doc.get("id"));
-        }
-        searcher.close();
-        LOG.info("++ representation search yielded " + result.size() + " hits");
-        return result;
+        return searchRepresentation(term, 1, 10).getIds();
+    }
+
+    public SearchResult searchRepresentation(String term, int startRecord, int maximumRecords) throws Exception {
+        return search(representationIndex, term, null, "", startRecord, null, maximumRecords);
+    }
+
+    public SearchResult searchRepresentation(String term, String cursor, int maximumRecords) throws Exception {
+        return search(representationIndex, term, null, "", 1, cursor, maximumRecords);
+    }
+
+    /* Pages are either collected from the top of the results up to the last
+     * requested record, or, if a cursor is given, after the last match of the
+     * previous page using the same searcher the previous page was taken from.
+     * The latter only collects a page worth of matches however deep the page
+     * is. If the searcher has been pruned in the meantime the page is taken
+     * from the current searcher by position. */
+    private SearchResult search(ManagedIndex index, String term, Filter filter, String filterKey, int startRecord,
+            String cursor, int maximumRecords) throws Exception {
+        if (startRecord < 1 || maximumRecords < 0) {
+            throw new IllegalArgumentException("Invalid result window " + startRecord + "+" + maximumRecords);
+        }
+        maximumRecords = Math.min(maximumRecords, this.maximumRecords);
+        LOG.info(":: searching " + index.name + " index for " + term);
+        ScoreDoc after = null;
+        IdSearcher searcher = null;
+        if (cursor != null) {
+            String[] parts = cursor.split(":");
+            if (parts.length != 4) {
+                throw new IllegalArgumentException("Invalid cursor " + cursor);
+            }
+            startRecord = Integer.parseInt(parts[3]);
+            searcher = (IdSearcher) index.searcherLifetimes.acquire(Long.parseLong(parts[0]));
+            // sorted searches can't be continued after a hit, so their
+            // cursors only keep the searcher and the position
+            if (searcher != null && Integer.parseInt(parts[1]) >= 0) {
+                after = new ScoreDoc(Integer.parseInt(parts[1]), Float.intBitsToFloat(Integer.parseInt(parts[2])));
+            }
+        }
+        boolean current = searcher == null;
+        if (current) {
+            searcher = (IdSearcher) index.searcherManager.acquire();
+        }
+        try {
+            // pages are cached for the generation of the reader they were
+            // searched on, so they are never served once the reader advanced
+            String cacheKey = null;
+            if (after == null && resultCache.isEnabled()) {
+                cacheKey = index.name + "\n" + filterKey + "\n" + CQLParser.normalize(term) + "\n" + startRecord +
+                        "\n" + maximumRecords + "\n" + searcher.getIndexReader().getVersion();
+                SearchResult cached = resultCache.get(cacheKey);
+                if (cached != null) {
+                    LOG.info(":: search yielded " + cached.getIds().size() + " of " + cached.getTotalHits() +
+                            " cached hits");
+                    return cached;
+                }
+            }
+            long start = System.nanoTime();
+            CompiledQuery compiled = index.parse(term);
+            Query query = compiled.getQuery();
+            Sort sort = compiled.getSort();
+            TopDocs hits;
+            ScoreDoc[] page;
+            if (after != null && sort == null) {
+                hits = searcher.searchAfter(after, query, filter, Math.max(1, maximumRecords));
+                page = hits.scoreDocs;
+            } else {
+                int offset = startRecord - 1;
+                int n = Math.max(1, offset + maximumRecords);
+                hits = sort == null ? searcher.search(query, filter, n) : searcher.search(query, filter, n, sort);
+                page = new ScoreDoc[Math.max(0, hits.scoreDocs.length - offset)];
+                System.arraycopy(hits.scoreDocs, hits.scoreDocs.length - page.length, page, 0, page.length);
+            }
+            if (page.length > maximumRecords) {
+                page = Arrays.copyOf(page, maximumRecords);
+            }
+            List<String> ids = new ArrayList<String>(page.length);
+            for (ScoreDoc hit : page) {
+                ids.add(searcher.getId(hit.doc));
+            }
+            String next = null;
+            if (page.length > 0 && startRecord - 1 + page.length < hits.totalHits) {
+                ScoreDoc last = page[page.length - 1];
+                next = index.searcherLifetimes.record(searcher) + ":" + (sort == null ? last.doc : -1) + ":" +
+                        Float.floatToIntBits(last.score) + ":" + (startRecord + page.length);
+            }
+            LOG.info(":: search yielded " + ids.size() + " of " + hits.totalHits + " hits");
+            SearchResult result = new SearchResult(ids, hits.totalHits, startRecord, next);
+            if (cacheKey != null) {
+                resultCache.put(cacheKey, result, System.nanoTime() - start);
+            }
+            return result;
+        } finally {
+            if (current) {
+                index.searcherManager.release(searcher);
+            } else {
+                index.searcherLifetimes.release(searcher);
+            }
+        }
     }
 
+    /**
+     * An index directory together with its writer, the manager of the
+     * near-real-time searchers opened from the writer and the parser for
+     * queries against it
+     */
+    private static final class ManagedIndex {
+
+        private final String name;
+
+        private final Directory directory;
+
+        private final IndexWriter writer;
+
+        private final SearcherManager searcherManager;
+
+        /* the searchers handed out cursors for, kept until they expire */
+        private final SearcherLifetimeManager searcherLifetimes = new SearcherLifetimeManager();
+
+        private final CQLParser parser;
+
+        /* compiled queries by their normalized CQL */
+        private final Map<String, CompiledQuery> queryCache = new LinkedHashMap<String, CompiledQuery>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+                return size() > QUERY_CACHE_SIZE;
+            }
+        };
+
+        /* the most recent distinct queries in access order */
+        private final Map<String, CompiledQuery> recentQueries = new LinkedHashMap<String, CompiledQuery>(16, 0.75f,
+                true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CompiledQuery> eldest) {
+                return size() > WARMING_QUERIES;
+            }
+        };
+
+        /* the number of documents added since the last refresh */
+        private final AtomicInteger unrefreshed = new AtomicInteger();
+
+        private final AtomicBoolean uncommitted = new AtomicBoolean();
+
+        private ManagedIndex(String name, Directory directory, Analyzer indexAnalyzer, CQLParser parser)
+                throws IOException {
+            this.name = name;
+            this.directory = directory;
+            this.writer = new IndexWriter(directory, new IndexWriterConfig(Version.LUCENE_36, indexAnalyzer));
+            this.searcherManager = new SearcherManager(writer, true, new SearcherFactory() {
+                @Override
+                public IndexSearcher newSearcher(IndexReader reader) throws IOException {
+                    IndexSearcher searcher = new IdSearcher(reader);
+                    warm(searcher);
+                    return searcher;
+                }
+            });
+            this.parser = parser;
+        }
+
+        /* queries repeated by clients are taken from the cache instead of
+         * being parsed again */
+        private CompiledQuery parse(String cql) throws ParseException {
+            String key = CQLParser.normalize(cql);
+            CompiledQuery query;
+            synchronized (queryCache) {
+                query = queryCache.get(key);
+            }
+            if (query == null) {
+                query = parser.compile(key);
+                synchronized (queryCache) {
+                    queryCache.put(key, query);
+                }
+            }
+            synchronized (recentQueries) {
+                recentQueries.put(key, query);
+            }
+            return query;
+        }
+
+        /* run the recent queries, so that the searcher's caches are loaded
+         * before it serves the first search */
+        private void warm(IndexSearcher searcher) throws IOException {
+            List<CompiledQuery> queries;
+            synchronized (recentQueries) {
+                queries = new ArrayList<CompiledQuery>(recentQueries.values());
+            }
+            for (CompiledQuery query : queries) {
+                if (query.getSort() == null) {
+                    searcher.search(query.getQuery(), 10);
+                } else {
+                    searcher.search(query.getQuery(), null, 10, query.getSort());
+                }
+            }
+        }
+
+        /* open a new searcher only if documents have been added since the
+         * last refresh and the current searcher doesn't see them yet */
+        private boolean refresh() {
+            if (unrefreshed.getAndSet(0) == 0) {
+                return false;
+            }
+            try {
+                if (!searcherManager.isSearcherCurrent()) {
+                    searcherManager.maybeRefresh();
+                    return true;
+                }
+            } catch (IOException e) {
+                LOG.error("Unable to refresh the " + name + " index", e);
+            }
+            return false;
+        }
+
+        private void commit() {
+            if (!uncommitted.getAndSet(false)) {
+                return;
+            }
+            try {
+                // replaced and expired documents are only marked as deleted,
+                // segments with many of them are merged in the background so
+                // that the index doesn't grow with the updates
+                writer.forceMergeDeletes(false);
+                writer.commit();
+            } catch (IOException e) {
+                uncommitted.set(true);
+                LOG.error("Unable to commit the " + name + " index", e);
+            }
+        }
+
+        private void purge() throws IOException {
+            writer.deleteAll();
+            writer.commit();
+            uncommitted.set(false);
+            unrefreshed.incrementAndGet();
+            refresh();
+        }
+
+        private void pruneCursors() {
+            try {
+                searcherLifetimes.prune(new SearcherLifetimeManager.PruneByAge(CURSOR_LIFETIME));
+            } catch (IOException e) {
+                LOG.error("Unable to release the expired searchers of the " + name + " index", e);
+            }
+        }
+
+        private void close() throws IOException {
+            commit();
+            searcherLifetimes.close();
+            searcherManager.close();
+            writer.close();
+            directory.close();
+        }
+    }
+
+    /**
+     * A searcher which looks up the ids of its hits in the field cache of
+     * the segment they belong to instead of loading the stored documents.
+     * The field cache of a segment is loaded once and shared by all
+     * searchers opened after it was written.
+     */
+    private static final class IdSearcher extends IndexSearcher {
+
+        private final String[][] ids;
+
+        private IdSearcher(IndexReader reader) throws IOException {
+            super(reader);
+            this.ids = new String[subReaders.length][];
+            for (int i = 0; i < subReaders.length; i++) {
+                ids[i] = FieldCache.DEFAULT.getStrings(subReaders[i], "id");
+            }
+        }
+
+        private String getId(int doc) {
+            int i = ReaderUtil.subIndex(doc, docStarts);
+            return ids[i][doc - docStarts[i]];
+        }
+    }
 }
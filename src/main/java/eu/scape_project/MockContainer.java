@@ -1,4 +1,3 @@
-
 package eu.scape_project;
 
 import java.io.ByteArrayInputStream;
@@ -6,14 +5,19 @@ import java.io.ByteArrayOutputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Collections;
-import java.util.Date;
-import java.util.HashMap;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
-import java.util.Map.Entry;
-import java.util.Random;
+import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -21,6 +25,7 @@ import javax.xml.bind.JAXBException;
 
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.lang3.SerializationException;
+import org.apache.lucene.queryParser.ParseException;
 import org.purl.dc.elements._1.ElementContainer;
 import org.simpleframework.http.Request;
 import org.simpleframework.http.Response;
@@ -44,60 +49,153 @@ public class MockContainer implements Container {
     private static final Logger LOG = LoggerFactory
             .getLogger(MockContainer.class);
 
-    private final PosixStorage storage;
+    public static final String PROPERTY_STORAGE = "scape-tck.storage";
 
-    private final LuceneIndex index;
+    private static final Pattern RANGE_PATTERN = Pattern
+            .compile("bytes=(\\d*)-(\\d*)");
+
+    /* the page size of SRU responses if no maximumRecords are requested */
+    private static final int DEFAULT_MAXIMUM_RECORDS = 10;
+
+    /* the number of lifecycle transitions returned by default and at most */
+    private static final int DEFAULT_FEED_TRANSITIONS = 100;
+
+    private static final int MAX_FEED_TRANSITIONS = 1000;
+
+    /* the time in milliseconds a lifecycle feed request waits by default and
+     * at most */
+    private static final int DEFAULT_FEED_TIMEOUT = 30000;
 
-    private final int asyncIngestDelay = 1000;
+    private static final int MAX_FEED_TIMEOUT = 60000;
+
+    private static final int ENTITY_LOCK_STRIPES = 64;
+
+    private final Storage storage;
+
+    private final DatastreamStore datastreams;
+
+    private final LuceneIndex index;
 
     private final Map<String, Object> technicalMetadata =
-            new HashMap<String, Object>();
+            new ConcurrentHashMap<String, Object>();
 
     private final Map<String, Object> sourceMetadata =
-            new HashMap<String, Object>();
+            new ConcurrentHashMap<String, Object>();
 
     private final Map<String, Object> provenanceMetadata =
-            new HashMap<String, Object>();
+            new ConcurrentHashMap<String, Object>();
 
     private final Map<String, Object> rightsMetadata =
-            new HashMap<String, Object>();
+            new ConcurrentHashMap<String, Object>();
 
     private final Map<String, Object> descriptiveMetadata =
-            new HashMap<String, Object>();
+            new ConcurrentHashMap<String, Object>();
 
-    private final Map<String, String> fileIdMap = new HashMap<String, String>();
+    private final PersistentIdMap fileIdMap;
 
-    private final Map<String, String> bitstreamIdMap =
-            new HashMap<String, String>();
+    private final PersistentIdMap bitstreamIdMap;
 
-    private final Map<String, String> representationIdMap =
-            new HashMap<String, String>();
+    private final PersistentIdMap representationIdMap;
 
-    private final Map<Long, Object> asyncIngestMap =
-            new HashMap<Long, Object>();
+    private final AsyncIngestEngine asyncIngests;
 
-    private final AsyncIngester asyncIngester = new AsyncIngester();
+    private final LifecycleStateTable lifecycleStates =
+            new LifecycleStateTable();
 
-    private final int port;
+    private final LifecycleFeed lifecycleFeed = new LifecycleFeed();
+
+    /* serializes the updates of an entity's representations and index */
+    private final LockStripes entityLocks =
+            new LockStripes(ENTITY_LOCK_STRIPES);
 
-    private final ScapeMarshaller marshaller;
+    private final int port;
 
-    private Thread asyncIngesterThread = new Thread();
+    // the marshallers are not thread safe
+    private final ThreadLocal<ScapeMarshaller> marshallers =
+            new ThreadLocal<ScapeMarshaller>() {
+                @Override
+                protected ScapeMarshaller initialValue() {
+                    try {
+                        return ScapeMarshaller.newInstance();
+                    } catch (JAXBException e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
 
     public MockContainer(String path, int port)
-            throws JAXBException {
-        this.storage = new PosixStorage(path);
-        this.index = new LuceneIndex();
+            throws JAXBException, IOException {
+        this.storage = createStorage(path);
+        this.datastreams =
+                new DatastreamStore(new java.io.File(path, "content"));
+        this.index = new LuceneIndex(new java.io.File(path, "index"));
         this.port = port;
-        this.marshaller = ScapeMarshaller.newInstance();
+        java.io.File idMapDirectory = new java.io.File(path, "idmaps");
+        this.fileIdMap =
+                new PersistentIdMap(new java.io.File(idMapDirectory, "file"));
+        this.bitstreamIdMap =
+                new PersistentIdMap(new java.io.File(idMapDirectory,
+                        "bitstream"));
+        this.representationIdMap =
+                new PersistentIdMap(new java.io.File(idMapDirectory,
+                        "representation"));
+        if (!fileIdMap.isRestored() || !bitstreamIdMap.isRestored() ||
+                !representationIdMap.isRestored()) {
+            rebuildIdMaps();
+        }
+        checkIndex();
+        this.asyncIngests =
+                new AsyncIngestEngine(new AsyncIngestEngine.Ingester() {
+                    public void accepted(IntellectualEntity entity)
+                            throws Exception {
+                        // the state has to be recorded before the ingest
+                        // might finish
+                        updateLifecycleState(entity.getIdentifier()
+                                .getValue(), entity.getLifecycleState());
+                    }
 
+                    public void ingest(IntellectualEntity entity)
+                            throws Exception {
+                        try {
+                            ingestEntity(entity);
+                        } catch (Exception e) {
+                            updateLifecycleState(entity.getIdentifier()
+                                    .getValue(), new LifecycleState(String
+                                    .valueOf(e.getMessage()),
+                                    State.INGEST_FAILED));
+                            throw e;
+                        }
+                    }
+                });
     }
 
     public void close() throws Exception {
-        this.asyncIngester.stop();
-        this.asyncIngesterThread.join();
+        this.asyncIngests.close();
+        this.lifecycleFeed.close();
         this.purgeStorage();
+        this.storage.close();
         this.index.close();
+        this.fileIdMap.close();
+        this.bitstreamIdMap.close();
+        this.representationIdMap.close();
+    }
+
+    static Storage createStorage(String path) throws IOException {
+        String type = System.getProperty(PROPERTY_STORAGE, "posix");
+        Storage storage;
+        if (type.equals("segment")) {
+            storage = new SegmentLogStorage(path);
+        } else if (type.equals("posix")) {
+            storage = new PosixStorage(path);
+        } else {
+            throw new IllegalArgumentException("Unknown storage type " + type);
+        }
+        long cacheSize = Long.getLong(CachingStorage.PROPERTY_CACHE_SIZE, 64L * 1024 * 1024);
+        if (cacheSize > 0) {
+            storage = new CachingStorage(storage, cacheSize,
+                    Boolean.getBoolean(CachingStorage.PROPERTY_CACHE_OFF_HEAP));
+        }
+        return storage;
     }
 
     private Object getBitStream(String bsId, IntellectualEntity entity) {
@@ -159,50 +257,45 @@ public class MockContainer implements Container {
             throws Exception {
         // get entity from request body
         IntellectualEntity.Builder entityBuilder =
-                new IntellectualEntity.Builder(marshaller.deserialize(
+                new IntellectualEntity.Builder(marshaller().deserialize(
                         IntellectualEntity.class, req.getInputStream()));
         entityBuilder.lifecycleState(new LifecycleState("async ingest",
                 State.INGESTING));
-        IntellectualEntity entity = entityBuilder.build();
-
-        // add the entity to the async map, for later ingestion,
-        // and set the the time the ingestion should be processed by the mock
-        long time = new Date().getTime();
-        do {
-            time += new Random().nextInt(asyncIngestDelay) + 1000;
-        } while (asyncIngestMap.containsKey(time));
-        asyncIngestMap.put(time, entity);
-
         // have to check for id existence and generate some if necessary
-        if (entity.getIdentifier() == null) {
+        if (entityBuilder.build().getIdentifier() == null) {
             entityBuilder.identifier(new Identifier(UUID.randomUUID()
                     .toString()));
         }
+        IntellectualEntity entity = entityBuilder.build();
+
+        // schedule the entity for ingestion after the simulated delay,
+        // clients have to come back later if too many are pending, the
+        // INGESTING state is only recorded for accepted entities
+        if (!asyncIngests.submit(entity)) {
+            resp.setCode(503);
+            resp.set("Retry-After",
+                    String.valueOf(asyncIngests.getRetryAfter()));
+            return;
+        }
 
         // return the identity to get the lifecyclestate
-        marshaller.serialize(entity.getIdentifier(), resp.getOutputStream());
+        marshaller().serialize(entity.getIdentifier(), resp.getOutputStream());
         resp.setCode(okValue);
     }
 
     private void handleEntitySRU(Request req, Response resp) throws Exception {
-        // String term = req.getParameter("query");
-        // List<MetsDocument> entities = new ArrayList<MetsDocument>();
-        // for (String id : index.searchEntity(term)) {
-        // byte[] xml = storage.getXML(id);
-        // entities.add((MetsDocument)
-        // marshaller.getJaxbUnmarshaller().unmarshal(new
-        // ByteArrayInputStream(xml)));
-        // }
-        // IntellectualEntityCollection coll = new
-        // IntellectualEntityCollection(entities);
-        // marshaller.getJaxbMarshaller().marshal(coll, resp.getOutputStream());
-        // resp.setCode(200);
+        handleSRU(req, resp, false);
     }
 
     private void handleGet(Request req, Response resp) throws IOException {
         String contextPath = req.getPath().getPath();
         LOG.info("-- HTTP/1.1 GET " + contextPath + " from " +
                 req.getClientAddress().getAddress().getHostAddress());
+        if (contextPath.startsWith("/lifecycle-feed")) {
+            // closes the response itself once the transitions are available
+            handleLifecycleFeed(req, resp);
+            return;
+        }
         try {
             if (contextPath.startsWith("/entity/")) {
                 handleRetrieveEntity(req, resp);
@@ -236,7 +329,7 @@ public class MockContainer implements Container {
             throws Exception {
         try {
             IntellectualEntity ent =
-                    marshaller.deserialize(IntellectualEntity.class, req
+                    marshaller().deserialize(IntellectualEntity.class, req
                             .getInputStream());
             IntellectualEntity.Builder entityBuilder =
                     new IntellectualEntity.Builder(ent);
@@ -253,7 +346,6 @@ public class MockContainer implements Container {
             }
 
             ingestEntity(entity);
-            index.addEntity(entity);
 
             // generate the server response with the ingested entity's id
             resp.setCode(okValue);
@@ -298,6 +390,12 @@ public class MockContainer implements Container {
                 handleUpdateRepresentation(req, resp);
             } else if (contextPath.startsWith("/metadata/")) {
                 handleUpdateMetadata(req, resp);
+            } else if (contextPath.startsWith("/file/")) {
+                handleUpdateDatastream(req, resp, contextPath.substring(6),
+                        fileIdMap);
+            } else if (contextPath.startsWith("/bitstream/")) {
+                handleUpdateDatastream(req, resp, contextPath.substring(11),
+                        bitstreamIdMap);
             } else {
                 resp.setCode(404);
             }
@@ -311,34 +409,172 @@ public class MockContainer implements Container {
 
     private void handleRepresentationSRU(Request req, Response resp)
             throws Exception {
-        // String term = req.getParameter("query");
-        // List<MetsDocument> entities = new ArrayList<MetsDocument>();
-        // for (String id : index.searchRepresentation(term)) {
-        // byte[] xml = storage.getXML(representationIdMap.get(id));
-        // entities.add((MetsDocument)
-        // marshaller.getJaxbUnmarshaller().unmarshal(new
-        // ByteArrayInputStream(xml)));
-        // }
-        // IntellectualEntityCollection coll = new
-        // IntellectualEntityCollection(entities);
-        // marshaller.getJaxbMarshaller().marshal(coll, resp.getOutputStream());
-        // resp.setCode(200);
+        handleSRU(req, resp, true);
+    }
+
+    /**
+     * Answer an SRU searchRetrieve request with a page of the matching
+     * entities. A page is selected by startRecord and maximumRecords or by
+     * the cursor returned with the previous page in the x-cursor parameter.
+     * The stored XML of the entities is streamed into the response record by
+     * record. Representation searches return the entities containing the
+     * matching representations.
+     */
+    private void handleSRU(Request req, Response resp, boolean representations)
+            throws Exception {
+        String query = req.getParameter("query");
+        SearchResult result;
+        try {
+            if (query == null) {
+                throw new IllegalArgumentException("Missing query");
+            }
+            String cursor = req.getParameter("x-cursor");
+            int maximumRecords =
+                    getIntParameter(req, "maximumRecords",
+                            DEFAULT_MAXIMUM_RECORDS);
+            if (cursor != null) {
+                result =
+                        representations ? index.searchRepresentation(query,
+                                cursor, maximumRecords) : index.searchEntity(
+                                query, cursor, maximumRecords);
+            } else {
+                int startRecord = getIntParameter(req, "startRecord", 1);
+                result =
+                        representations ? index.searchRepresentation(query,
+                                startRecord, maximumRecords) : index
+                                .searchEntity(query, startRecord,
+                                        maximumRecords);
+            }
+        } catch (IllegalArgumentException e) {
+            resp.setCode(400);
+            resp.set("Content-Type", "text/plain");
+            IOUtils.write(e.getMessage(), resp.getOutputStream());
+            return;
+        } catch (ParseException e) {
+            resp.setCode(400);
+            resp.set("Content-Type", "text/plain");
+            IOUtils.write(e.getMessage(), resp.getOutputStream());
+            return;
+        }
+        resp.setCode(200);
+        resp.set("Content-Type", "text/xml");
+        SRUResponseWriter writer = new SRUResponseWriter(resp.getByteChannel());
+        writer.start(result.getTotalHits());
+        // the hits of several representations of an entity are grouped into
+        // the record of the first one on the page
+        Set<String> written = new HashSet<String>();
+        int position = result.getStartRecord() - 1;
+        for (String id : result.getIds()) {
+            position++;
+            String entityId =
+                    representations ? representationIdMap.get(id) : id;
+            if (entityId == null || !written.add(entityId)) {
+                continue;
+            }
+            StorageBlob blob;
+            try {
+                blob = storage.openXML(entityId, null);
+            } catch (FileNotFoundException e) {
+                // removed since it has been indexed
+                LOG.warn("unable to find entity " + entityId);
+                continue;
+            }
+            try {
+                writer.writeRecord(blob, position);
+            } finally {
+                blob.close();
+            }
+        }
+        writer.finish(result.getNextRecordPosition(), result.getCursor());
+    }
+
+    private static int getIntParameter(Request req, String name,
+            int defaultValue) throws IOException {
+        String value = req.getParameter(name);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException("Invalid " + name + " " +
+                    value);
+        }
+    }
+
+    /**
+     * Answer with the lifecycle transitions starting at the sequence number
+     * given by the <code>from</code> parameter, or with the ones following the
+     * request if there is none. If there are no such transitions yet, the
+     * request is held open until one happens or the timeout has passed, without
+     * occupying a request thread.
+     */
+    private void handleLifecycleFeed(Request req, final Response resp)
+            throws IOException {
+        long from;
+        int max;
+        int timeout;
+        try {
+            String value = req.getParameter("from");
+            try {
+                from = (value == null) ? lifecycleFeed.getNextSequence() : Long
+                        .parseLong(value);
+            } catch (NumberFormatException e) {
+                throw new IllegalArgumentException("Invalid from " + value);
+            }
+            max = Math.min(MAX_FEED_TRANSITIONS, getIntParameter(req, "max",
+                    DEFAULT_FEED_TRANSITIONS));
+            timeout = Math.min(MAX_FEED_TIMEOUT, getIntParameter(req,
+                    "timeout", DEFAULT_FEED_TIMEOUT));
+            if (max < 1) {
+                throw new IllegalArgumentException("Invalid max " + max);
+            }
+        } catch (IllegalArgumentException e) {
+            resp.setCode(400);
+            resp.set("Content-Type", "text/plain");
+            IOUtils.write(e.getMessage(), resp.getOutputStream());
+            resp.close();
+            return;
+        }
+        lifecycleFeed.poll(from, max, timeout, new LifecycleFeed.Listener() {
+            public void deliver(LifecycleFeed.Page page) {
+                try {
+                    byte[] xml = page.toXML().getBytes("UTF-8");
+                    resp.setCode(200);
+                    resp.set("Content-Type", "text/xml");
+                    resp.setContentLength(xml.length);
+                    resp.getOutputStream().write(xml);
+                } catch (IOException e) {
+                    LOG.warn("unable to send lifecycle transitions", e);
+                } finally {
+                    try {
+                        resp.close();
+                    } catch (IOException e) {
+                        LOG.warn("unable to close lifecycle feed response",
+                                e);
+                    }
+                }
+            }
+        });
     }
 
     private void handleRetrieveBitStream(Request req, Response resp)
             throws Exception {
         String bsId = req.getPath().getPath().substring(11);
         String entityId = bitstreamIdMap.get(bsId);
+        DatastreamStore.Datastream content = datastreams.get(bsId);
         if (entityId == null) {
             resp.setCode(404);
+        } else if (content != null) {
+            writeDatastream(content, req, resp);
         } else {
             byte[] blob =
                     storage.getXML(entityId, getVersionFromPath(req.getPath()
                             .getPath()));
             IntellectualEntity entity =
-                    marshaller.deserialize(IntellectualEntity.class,
+                    marshaller().deserialize(IntellectualEntity.class,
                             new ByteArrayInputStream(blob));
-            marshaller.serialize(getBitStream(bsId, entity), resp
+            marshaller().serialize(getBitStream(bsId, entity), resp
                     .getOutputStream());
             resp.setCode(200);
         }
@@ -350,18 +586,17 @@ public class MockContainer implements Container {
                 req.getPath().getPath().substring(
                         req.getPath().getPath().lastIndexOf('/') + 1);
         try {
-            byte[] blob =
-                    storage.getXML(id, getVersionFromPath(req.getPath()
-                            .getPath()));
+            Integer version = getVersionFromPath(req.getPath().getPath());
             if (req.getQuery().containsKey("useReferences") && req.getQuery().get("useReferences").equalsIgnoreCase("yes")){
+                byte[] blob = storage.getXML(id, version);
                 IntellectualEntity ent =
-                        this.marshaller.deserialize(IntellectualEntity.class,
+                        marshaller().deserialize(IntellectualEntity.class,
                                 new ByteArrayInputStream(blob));
-                this.marshaller.serialize(ent, resp.getOutputStream(), true);
+                resp.setCode(200);
+                marshaller().serialize(ent, resp.getOutputStream(), true);
             }else{
-                IOUtils.write(blob, resp.getOutputStream());
+                writeXML(id, version, resp);
             }
-            resp.setCode(200);
             resp.close();
         } catch (FileNotFoundException e) {
             resp.setCode(404);
@@ -391,16 +626,19 @@ public class MockContainer implements Container {
             throws Exception {
         String fileId = req.getPath().getPath().substring(6);
         String entityIdid = fileIdMap.get(fileId);
-        byte[] blob =
-                storage.getXML(entityIdid, getVersionFromPath(req.getPath()
-                        .getPath()));
+        DatastreamStore.Datastream content = datastreams.get(fileId);
         if (entityIdid == null) {
             resp.setCode(404);
+        } else if (content != null) {
+            writeDatastream(content, req, resp);
         } else {
+            byte[] blob =
+                    storage.getXML(entityIdid, getVersionFromPath(req
+                            .getPath().getPath()));
             IntellectualEntity entity =
-                    marshaller.deserialize(IntellectualEntity.class,
+                    marshaller().deserialize(IntellectualEntity.class,
                             new ByteArrayInputStream(blob));
-            marshaller.serialize(getFile(fileId, entity), resp
+            marshaller().serialize(getFile(fileId, entity), resp
                     .getOutputStream());
             resp.setCode(200);
         }
@@ -410,26 +648,28 @@ public class MockContainer implements Container {
             throws Exception {
         String id = req.getPath().getPath().substring(11);
         Integer version = getVersionFromPath(req.getPath().getPath());
-        if (storage.exists(id, version)) {
+        LifecycleStateTable.Entry current =
+                (version == null) ? lifecycleStates.get(id) : null;
+        if (current == null && storage.exists(id, version)) {
             IntellectualEntity entity =
-                    marshaller.deserialize(IntellectualEntity.class,
+                    marshaller().deserialize(IntellectualEntity.class,
                             new ByteArrayInputStream(storage
                                     .getXML(id, version)));
-            marshaller.serialize(entity.getLifecycleState(), resp
-                    .getOutputStream());
-            return;
-        }
-        for (Entry<Long, Object> entry : asyncIngestMap.entrySet()) {
-            if (entry.getValue() instanceof IntellectualEntity) {
-                IntellectualEntity ent = (IntellectualEntity) entry.getValue();
-                if (ent.getIdentifier().getValue().equals(id)) {
-                    marshaller.serialize(ent.getLifecycleState(), resp
-                            .getOutputStream());
-                    return;
-                }
+            if (version != null) {
+                marshaller().serialize(entity.getLifecycleState(), resp
+                        .getOutputStream());
+                return;
             }
+            // e.g. after a restart
+            current =
+                    lifecycleStates.init(id, entity.getLifecycleState(),
+                            serialize(entity.getLifecycleState()));
+        }
+        if (current != null) {
+            resp.set("Content-Type", "text/xml");
+            resp.setContentLength(current.getXML().length);
+            resp.getOutputStream().write(current.getXML());
         }
-
     }
 
     private void handleRetrieveMetadata(Request req, Response resp)
@@ -460,11 +700,11 @@ public class MockContainer implements Container {
                 req.getPath().getPath().substring(
                         req.getPath().getPath().lastIndexOf('/') + 1);
         try {
-            byte[] blob =
-                    storage.getXML(representationIdMap.get(id),
-                            getVersionFromPath(req.getPath().getPath()));
-            IOUtils.write(blob, resp.getOutputStream());
-            resp.setCode(200);
+            String entityId = representationIdMap.get(id);
+            if (entityId == null) {
+                throw new FileNotFoundException("No entity for representation " + id);
+            }
+            writeXML(entityId, getVersionFromPath(req.getPath().getPath()), resp);
             resp.close();
         } catch (FileNotFoundException e) {
             resp.setCode(404);
@@ -477,13 +717,31 @@ public class MockContainer implements Container {
             throws Exception {
         String id = req.getPath().getPath().substring(21);
         List<String> versions = storage.getVersionList(id);
-        Collections.sort(versions);
         VersionList versionList = new VersionList(id, versions);
-        marshaller.getJaxbMarshaller().marshal(versionList,
+        marshaller().getJaxbMarshaller().marshal(versionList,
                 resp.getOutputStream());
         resp.setCode(200);
     }
 
+    /**
+     * Stream the content of a file or bitstream from the request body into
+     * the datastream store and answer with its SHA-256 checksum
+     */
+    private void handleUpdateDatastream(Request req, Response resp, String id,
+            PersistentIdMap idMap) throws Exception {
+        if (idMap.get(id) == null) {
+            resp.setCode(404);
+            return;
+        }
+        DatastreamStore.Datastream content =
+                datastreams.save(id, req.getByteChannel(), req
+                        .getValue("Content-Type"));
+        resp.setCode(201);
+        resp.set("ETag", "\"" + content.getChecksum() + "\"");
+        resp.set("Content-Type", "text/plain");
+        IOUtils.write(content.getChecksum(), resp.getOutputStream());
+    }
+
     private void handleUpdateEntity(Request req, Response resp)
             throws Exception {
         try {
@@ -517,38 +775,46 @@ public class MockContainer implements Container {
             throws Exception {
         try {
             Representation newRep =
-                    marshaller.deserialize(Representation.class, req
+                    marshaller().deserialize(Representation.class, req
                             .getInputStream());
-            byte[] blob =
-                    storage.getXML(representationIdMap.get(newRep
-                            .getIdentifier().getValue()));
-            IntellectualEntity ie =
-                    marshaller.deserialize(IntellectualEntity.class,
-                            new ByteArrayInputStream(blob));
-            List<Representation> newRepresentations =
-                    new ArrayList<Representation>(ie.getRepresentations()
-                            .size());
-            for (Representation orig : ie.getRepresentations()) {
-                if (orig.getIdentifier().getValue().equals(
-                        newRep.getIdentifier().getValue())) {
-                    newRepresentations.add(newRep);
-                } else {
-                    newRepresentations.add(orig);
+            String entityId =
+                    representationIdMap.get(newRep.getIdentifier().getValue());
+            // the entity is read and written under its lock, so that
+            // concurrent updates don't overwrite each other's representations
+            Lock lock = entityLocks.get(entityId);
+            lock.lock();
+            try {
+                byte[] blob = storage.getXML(entityId);
+                IntellectualEntity ie =
+                        marshaller().deserialize(IntellectualEntity.class,
+                                new ByteArrayInputStream(blob));
+                List<Representation> newRepresentations =
+                        new ArrayList<Representation>(ie.getRepresentations()
+                                .size());
+                for (Representation orig : ie.getRepresentations()) {
+                    if (orig.getIdentifier().getValue().equals(
+                            newRep.getIdentifier().getValue())) {
+                        newRepresentations.add(newRep);
+                    } else {
+                        newRepresentations.add(orig);
+                    }
                 }
+                IntellectualEntity newVersion =
+                        new IntellectualEntity.Builder(ie).representations(
+                                newRepresentations).build();
+                ByteArrayOutputStream bos = new ByteArrayOutputStream();
+                marshaller().serialize(newVersion, bos);
+                int version =
+                        saveUpdatedVersion(storage, entityId,
+                                bos.toByteArray());
+                LOG.debug("updated representation " +
+                        newRep.getIdentifier().getValue() +
+                        " of intellectual entity " +
+                        newVersion.getIdentifier().getValue());
+                indexVersion(newVersion, version);
+            } finally {
+                lock.unlock();
             }
-            IntellectualEntity newVersion =
-                    new IntellectualEntity.Builder(ie).representations(
-                            newRepresentations).build();
-            ByteArrayOutputStream bos = new ByteArrayOutputStream();
-            marshaller.serialize(newVersion, bos);
-            storage.saveXML(bos.toByteArray(), newVersion.getIdentifier()
-                    .getValue(), storage.getNewVersionNumber(newVersion
-                    .getIdentifier().getValue()), false);
-            LOG.debug("updated representation " +
-                    newRep.getIdentifier().getValue() +
-                    " of intellectual entity " +
-                    newVersion.getIdentifier().getValue());
-            index.addRepresentation(newRep);
             resp.setCode(200);
         } catch (Exception e) {
             resp.setCode(500);
@@ -625,22 +891,79 @@ public class MockContainer implements Container {
 
         // save the data in the storage backend
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
-        marshaller.serialize(entity, bos);
-        int version = entity.getVersionNumber();
-        if (storage.exists(entity.getIdentifier().getValue(), entity
-                .getVersionNumber())) {
-            version =
-                    storage.getNewVersionNumber(entity.getIdentifier()
-                            .getValue());
-        }
-        storage.saveXML(bos.toByteArray(), entity.getIdentifier().getValue(),
-                version, false);
+        marshaller().serialize(entity, bos);
+        String id = entity.getIdentifier().getValue();
+        int version =
+                saveIngestedVersion(storage, id, entity.getVersionNumber(),
+                        bos.toByteArray());
+        indexVersion(entity, version);
+        updateLifecycleState(id, entity.getLifecycleState());
 
         // update the hashmap with the metadata references to the entities
         LOG.debug("++ adding descriptive metadata for entity " +
                 entity.getIdentifier().getValue());
     }
 
+    /**
+     * Save an ingested entity as the given version, or as a new version if
+     * that one exists already. The version is claimed optimistically, so
+     * concurrent ingests of the entity end up with distinct versions without
+     * waiting for each other.
+     *
+     * @return the saved version
+     */
+    static int saveIngestedVersion(Storage storage, String id, int version,
+            byte[] xml) throws Exception {
+        if (storage.exists(id, version)) {
+            version = storage.getNewVersionNumber(id);
+        }
+        return storage.saveNewVersion(xml, id, version);
+    }
+
+    /**
+     * Save an updated entity as a new version
+     *
+     * @return the saved version
+     */
+    static int saveUpdatedVersion(Storage storage, String id, byte[] xml)
+            throws Exception {
+        return storage.saveNewVersion(xml, id, storage
+                .getNewVersionNumber(id));
+    }
+
+    /**
+     * Index a saved version of an entity. Writers saving versions of an entity
+     * concurrently may get here in any order, so a version only becomes the
+     * latest in the index if no newer version has been saved in the meantime.
+     */
+    private void indexVersion(IntellectualEntity entity, int version)
+            throws IOException {
+        String id = entity.getIdentifier().getValue();
+        Lock lock = entityLocks.get(id);
+        lock.lock();
+        try {
+            index.addEntity(entity, version,
+                    version >= storage.getLatestVersionNumber(id));
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Record a lifecycle state transition of an entity
+     */
+    private void updateLifecycleState(String id, LifecycleState state)
+            throws JAXBException {
+        lifecycleStates.update(id, state, serialize(state));
+        lifecycleFeed.append(id, state);
+    }
+
+    private byte[] serialize(Object value) throws JAXBException {
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        marshaller().serialize(value, bos);
+        return bos.toByteArray();
+    }
+
     private String extractId(Object descriptive) {
         if (descriptive instanceof ElementContainer) {
 
@@ -659,45 +982,213 @@ public class MockContainer implements Container {
 
     public void purgeStorage() throws Exception {
         storage.purge();
+        datastreams.purge();
+        index.purge();
+        lifecycleStates.clear();
+        fileIdMap.clear();
+        bitstreamIdMap.clear();
+        representationIdMap.clear();
     }
 
-    public void start() {
-        this.asyncIngesterThread = new Thread(asyncIngester);
-        this.asyncIngesterThread.start();
+    /**
+     * Bring the search index in line with the storage after a restart:
+     * entities stored but missing from the index are reindexed and entities
+     * indexed but not stored anymore are removed
+     */
+    private void checkIndex() throws IOException {
+        long start = System.currentTimeMillis();
+        Set<String> indexed = index.getEntityIds();
+        Set<String> missing = new HashSet<String>();
+        for (String id : storage.getEntityIds()) {
+            if (!indexed.remove(id)) {
+                missing.add(id);
+            }
+        }
+        for (String id : indexed) {
+            index.deleteEntity(id);
+        }
+        scanEntities(missing, new EntityVisitor() {
+            public void visit(String id, IntellectualEntity entity)
+                    throws IOException {
+                index.addEntity(entity, storage.getLatestVersionNumber(id));
+            }
+        });
+        if (!missing.isEmpty() || !indexed.isEmpty()) {
+            index.refresh();
+            LOG.info("reindexed " + missing.size() + " and removed " +
+                    indexed.size() + " entities from the index in " +
+                    (System.currentTimeMillis() - start) + " ms");
+        }
     }
 
-    public class AsyncIngester implements Runnable {
-
-        private boolean stop = false;
+    /**
+     * Rebuild the identifier maps by rescanning the latest versions of all
+     * stored entities in parallel, used if the maps' journals are missing
+     */
+    private void rebuildIdMaps() throws IOException {
+        long start = System.currentTimeMillis();
+        fileIdMap.clear();
+        bitstreamIdMap.clear();
+        representationIdMap.clear();
+        List<String> ids = storage.getEntityIds();
+        scanEntities(ids, new EntityVisitor() {
+            public void visit(String id, IntellectualEntity entity)
+                    throws IOException {
+                registerIds(entity);
+            }
+        });
+        LOG.info("rebuilt id maps of " + ids.size() + " entities in " +
+                (System.currentTimeMillis() - start) + " ms");
+    }
 
-        @Override
-        public void run() {
-            while (!stop) {
-                for (Entry<Long, Object> asyncRequest : asyncIngestMap
-                        .entrySet()) {
-                    if (new Date().getTime() >= asyncRequest.getKey()) {
-                        try {
-                            LOG.info("ingesting object at " +
-                                    asyncRequest.getKey());
-                            ingestObject(asyncRequest.getValue());
-                        } catch (Exception e) {
-                            e.printStackTrace();
-                        } finally {
-                            asyncIngestMap.remove(asyncRequest.getKey());
+    /**
+     * Deserialize the latest versions of the given entities in parallel and
+     * pass them to the visitor. Entities which can not be read are logged
+     * and skipped.
+     */
+    private void scanEntities(Collection<String> ids,
+            final EntityVisitor visitor) throws IOException {
+        if (ids.isEmpty()) {
+            return;
+        }
+        ExecutorService executor =
+                Executors.newFixedThreadPool(Math.max(2, Runtime
+                        .getRuntime().availableProcessors()));
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (final String id : ids) {
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws Exception {
+                        if (!storage.exists(id, null)) {
+                            return null;
                         }
+                        visitor.visit(id, marshaller().deserialize(
+                                IntellectualEntity.class,
+                                new ByteArrayInputStream(storage.getXML(id))));
+                        return null;
                     }
-                }
+                }));
+            }
+            for (Future<Void> result : results) {
                 try {
-                    Thread.sleep(500);
-                } catch (InterruptedException e) {
-                    e.printStackTrace();
-                    stop = true;
+                    result.get();
+                } catch (ExecutionException e) {
+                    LOG.warn("unable to rescan entity", e.getCause());
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while scanning the entities");
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Map the ids of the representations, files and bitstreams of an entity
+     * to the entity's id
+     */
+    private void registerIds(IntellectualEntity entity) throws IOException {
+        String entityId = entity.getIdentifier().getValue();
+        if (entity.getRepresentations() == null) {
+            return;
+        }
+        for (Representation r : entity.getRepresentations()) {
+            representationIdMap.put(r.getIdentifier().getValue(), entityId);
+            if (r.getFiles() == null) {
+                continue;
+            }
+            for (File f : r.getFiles()) {
+                fileIdMap.put(f.getIdentifier().getValue(), entityId);
+                if (f.getBitStreams() == null) {
+                    continue;
+                }
+                for (BitStream bs : f.getBitStreams()) {
+                    bitstreamIdMap.put(bs.getIdentifier().getValue(),
+                            entityId);
                 }
             }
         }
+    }
+
+    public void start() {
+        this.asyncIngests.start();
+    }
+
+    /**
+     * Stream the content of a file or bitstream to the response. A single
+     * byte range requested via the Range header is answered with 206 and
+     * just that part of the content.
+     */
+    private void writeDatastream(DatastreamStore.Datastream content,
+            Request req, Response resp) throws IOException {
+        long length = content.getLength();
+        long start = 0;
+        long end = length - 1;
+        resp.setCode(200);
+        resp.set("Accept-Ranges", "bytes");
+        resp.set("ETag", "\"" + content.getChecksum() + "\"");
+        resp.set("Content-Type", (content.getMimetype() == null)
+                ? "application/octet-stream" : content.getMimetype());
+        String range = req.getValue("Range");
+        Matcher m =
+                (range == null) ? null : RANGE_PATTERN.matcher(range.trim());
+        // multiple or malformed ranges are ignored and the whole content is
+        // sent
+        if (m != null && m.matches() &&
+                (m.group(1).length() > 0 || m.group(2).length() > 0)) {
+            if (m.group(1).length() == 0) {
+                // the last n bytes
+                start = Math.max(0, length - Long.parseLong(m.group(2)));
+            } else {
+                start = Long.parseLong(m.group(1));
+                if (m.group(2).length() > 0) {
+                    end = Math.min(end, Long.parseLong(m.group(2)));
+                }
+            }
+            if (start > end) {
+                resp.setCode(416);
+                resp.set("Content-Range", "bytes */" + length);
+                resp.setContentLength(0);
+                return;
+            }
+            resp.setCode(206);
+            resp.set("Content-Range", "bytes " + start + "-" + end + "/" +
+                    length);
+        }
+        long count = end - start + 1;
+        // the length may exceed an int for large payloads
+        resp.set("Content-Length", String.valueOf(count));
+        StorageBlob blob = content.open(start, count);
+        try {
+            blob.transferTo(resp.getByteChannel());
+        } finally {
+            blob.close();
+        }
+    }
+
+    /**
+     * Stream a stored version of an entity to the response via the storage's
+     * channel based read path, so that no copy of the XML is held in memory
+     */
+    private void writeXML(String id, Integer version, Response resp)
+            throws Exception {
+        StorageBlob blob = storage.openXML(id, version);
+        try {
+            resp.setCode(200);
+            resp.set("Content-Type", "text/xml");
+            resp.setContentLength((int) blob.length());
+            blob.transferTo(resp.getByteChannel());
+        } finally {
+            blob.close();
+        }
+    }
+
+    private ScapeMarshaller marshaller() {
+        return marshallers.get();
+    }
 
-        public synchronized void stop() {
-            stop = true;
-        };
+    private interface EntityVisitor {
+        void visit(String id, IntellectualEntity entity) throws IOException;
     }
 }
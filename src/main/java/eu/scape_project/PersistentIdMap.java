@@ -0,0 +1,363 @@
+package eu.scape_project;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A map of identifiers which survives restarts. Every put is appended to a
+ * journal, and once the journal has grown large enough the map is written to
+ * a compacted snapshot in the background:
+ * <ul>
+ * <li><code>journal-N</code>: the puts since snapshot N as pairs of UTF
+ * strings</li>
+ * <li><code>snapshot-N/part-K</code>: all entries written before journal N
+ * was started, partitioned by the keys' hash so that the partitions can be
+ * loaded in parallel</li>
+ * </ul>
+ * Starting a new journal before writing the snapshot means puts don't have to
+ * wait for the snapshot, an entry put concurrently ends up in the snapshot or
+ * the new journal or both, which is harmless since replaying a put is
+ * idempotent. A torn record at the end of a journal is truncated on load.
+ */
+public class PersistentIdMap {
+
+    public static final String PROPERTY_SNAPSHOT_INTERVAL = "scape-tck.idmap.snapshot-interval";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PersistentIdMap.class);
+
+    private static final int PARTITIONS = 16;
+
+    private static final Pattern SNAPSHOT_PATTERN = Pattern.compile("snapshot\\-(\\d+)");
+
+    private static final Pattern JOURNAL_PATTERN = Pattern.compile("journal\\-(\\d+)");
+
+    private final File directory;
+
+    private final int snapshotInterval;
+
+    private final ConcurrentHashMap<String, String> entries = new ConcurrentHashMap<String, String>();
+
+    private final ExecutorService snapshotter;
+
+    private final boolean restored;
+
+    private int generation;
+
+    private DataOutputStream journal;
+
+    private int journalSize = 0;
+
+    private boolean snapshotPending = false;
+
+    public PersistentIdMap(File directory) throws IOException {
+        this(directory, Integer.getInteger(PROPERTY_SNAPSHOT_INTERVAL, 100000));
+    }
+
+    /**
+     * @param directory
+     *            the directory holding the journals and snapshots
+     * @param snapshotInterval
+     *            the number of puts after which a new snapshot is written
+     */
+    public PersistentIdMap(File directory, int snapshotInterval) throws IOException {
+        this.directory = directory;
+        this.snapshotInterval = snapshotInterval;
+        if (!directory.exists()) {
+            directory.mkdirs();
+        }
+        if (!directory.canExecute() || !directory.canRead() || !directory.canWrite()) {
+            throw new RuntimeException("Unable to access directory " + directory.getAbsolutePath());
+        }
+        this.restored = load();
+        this.journal = openJournal(generation);
+        this.snapshotter = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "idmap-snapshot-" + PersistentIdMap.this.directory.getName());
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Check if the map has been restored from a snapshot or journal. If not,
+     * the caller has to rebuild the map, e.g. by rescanning the storage.
+     */
+    public boolean isRestored() {
+        return restored;
+    }
+
+    public String get(String key) {
+        return entries.get(key);
+    }
+
+    public int size() {
+        return entries.size();
+    }
+
+    public synchronized void put(String key, String value) throws IOException {
+        if (value.equals(entries.get(key))) {
+            return;
+        }
+        journal.writeUTF(key);
+        journal.writeUTF(value);
+        journal.flush();
+        entries.put(key, value);
+        if (++journalSize >= snapshotInterval && !snapshotPending) {
+            snapshotPending = true;
+            final int snapshotGeneration = rotateJournal();
+            snapshotter.execute(new Runnable() {
+                public void run() {
+                    try {
+                        writeSnapshot(snapshotGeneration);
+                    } catch (IOException e) {
+                        LOG.error("Unable to write snapshot " + snapshotGeneration, e);
+                    } finally {
+                        synchronized (PersistentIdMap.this) {
+                            snapshotPending = false;
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Remove all entries including the journals and snapshots
+     */
+    public synchronized void clear() throws IOException {
+        awaitSnapshot();
+        IOUtils.closeQuietly(journal);
+        entries.clear();
+        FileUtils.cleanDirectory(directory);
+        generation = 0;
+        journalSize = 0;
+        journal = openJournal(generation);
+    }
+
+    /**
+     * Write a final snapshot, so that the next start doesn't have to replay
+     * the journal
+     */
+    public synchronized void close() throws IOException {
+        awaitSnapshot();
+        snapshotter.shutdown();
+        if (journalSize > 0) {
+            writeSnapshot(rotateJournal());
+        }
+        IOUtils.closeQuietly(journal);
+    }
+
+    private void awaitSnapshot() {
+        // the snapshot task needs the lock to reset the flag
+        while (snapshotPending) {
+            try {
+                wait(10);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /* start a new journal and return the generation of the snapshot covering
+     * the previous ones */
+    private int rotateJournal() throws IOException {
+        journal.close();
+        generation++;
+        journalSize = 0;
+        journal = openJournal(generation);
+        return generation;
+    }
+
+    private DataOutputStream openJournal(int gen) throws IOException {
+        return new DataOutputStream(new BufferedOutputStream(new FileOutputStream(new File(directory,
+                "journal-" + gen), true)));
+    }
+
+    private void writeSnapshot(int gen) throws IOException {
+        File tmp = new File(directory, "snapshot-" + gen + ".tmp");
+        FileUtils.deleteQuietly(tmp);
+        tmp.mkdir();
+        List<List<Map.Entry<String, String>>> partitions = new ArrayList<List<Map.Entry<String, String>>>();
+        for (int i = 0; i < PARTITIONS; i++) {
+            partitions.add(new ArrayList<Map.Entry<String, String>>());
+        }
+        for (Map.Entry<String, String> entry : entries.entrySet()) {
+            partitions.get(partition(entry.getKey())).add(entry);
+        }
+        for (int i = 0; i < PARTITIONS; i++) {
+            FileOutputStream fos = new FileOutputStream(new File(tmp, "part-" + i));
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+            try {
+                List<Map.Entry<String, String>> partition = partitions.get(i);
+                out.writeInt(partition.size());
+                for (Map.Entry<String, String> entry : partition) {
+                    out.writeUTF(entry.getKey());
+                    out.writeUTF(entry.getValue());
+                }
+                out.flush();
+                fos.getChannel().force(true);
+            } finally {
+                IOUtils.closeQuietly(out);
+            }
+        }
+        File snapshot = new File(directory, "snapshot-" + gen);
+        if (!tmp.renameTo(snapshot)) {
+            throw new IOException("Unable to move snapshot to " + snapshot.getAbsolutePath());
+        }
+        // the new snapshot supersedes all older snapshots and journals
+        for (File f : directory.listFiles()) {
+            int n = generationOf(f, SNAPSHOT_PATTERN);
+            if (n < 0) {
+                n = generationOf(f, JOURNAL_PATTERN);
+            }
+            if (n >= 0 && n < gen) {
+                FileUtils.deleteQuietly(f);
+            }
+        }
+        LOG.debug("wrote snapshot " + snapshot.getAbsolutePath());
+    }
+
+    /**
+     * Load the latest snapshot and replay the journals written since
+     *
+     * @return true if a snapshot or journal has been found
+     */
+    private boolean load() throws IOException {
+        int snapshotGeneration = -1;
+        List<Integer> journals = new ArrayList<Integer>();
+        for (File f : directory.listFiles()) {
+            if (f.getName().endsWith(".tmp")) {
+                // an interrupted snapshot
+                FileUtils.deleteQuietly(f);
+                continue;
+            }
+            snapshotGeneration = Math.max(snapshotGeneration, generationOf(f, SNAPSHOT_PATTERN));
+            int journal = generationOf(f, JOURNAL_PATTERN);
+            if (journal >= 0) {
+                journals.add(journal);
+            }
+        }
+        if (snapshotGeneration < 0 && journals.isEmpty()) {
+            return false;
+        }
+        long start = System.currentTimeMillis();
+        generation = Math.max(snapshotGeneration, 0);
+        if (snapshotGeneration >= 0) {
+            loadSnapshot(new File(directory, "snapshot-" + snapshotGeneration));
+        }
+        Collections.sort(journals);
+        for (int journal : journals) {
+            if (journal >= snapshotGeneration) {
+                journalSize += replay(new File(directory, "journal-" + journal));
+                generation = Math.max(generation, journal);
+            }
+        }
+        LOG.info("loaded " + entries.size() + " ids from " + directory.getAbsolutePath() + " in " +
+                (System.currentTimeMillis() - start) + " ms");
+        return true;
+    }
+
+    private void loadSnapshot(final File snapshot) throws IOException {
+        int threads = Math.min(PARTITIONS, Math.max(2, Runtime.getRuntime().availableProcessors()));
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<Void>> results = new ArrayList<Future<Void>>();
+            for (int i = 0; i < PARTITIONS; i++) {
+                final File part = new File(snapshot, "part-" + i);
+                results.add(executor.submit(new Callable<Void>() {
+                    public Void call() throws IOException {
+                        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(part)));
+                        try {
+                            for (int count = in.readInt(); count > 0; count--) {
+                                entries.put(in.readUTF(), in.readUTF());
+                            }
+                        } finally {
+                            IOUtils.closeQuietly(in);
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (Future<Void> result : results) {
+                result.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while loading " + snapshot.getAbsolutePath());
+        } catch (ExecutionException e) {
+            throw new IOException("Unable to load snapshot " + snapshot.getAbsolutePath(), e.getCause());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /* replay a journal and truncate a torn record at its end */
+    private int replay(File journalFile) throws IOException {
+        CountingInputStream counter = new CountingInputStream(new BufferedInputStream(new FileInputStream(journalFile)));
+        DataInputStream in = new DataInputStream(counter);
+        long valid = 0;
+        int count = 0;
+        try {
+            while (true) {
+                String key = in.readUTF();
+                String value = in.readUTF();
+                entries.put(key, value);
+                valid = counter.getByteCount();
+                count++;
+            }
+        } catch (EOFException e) {
+            // end of the journal
+        } finally {
+            IOUtils.closeQuietly(in);
+        }
+        if (valid < journalFile.length()) {
+            LOG.warn("truncating torn record at the end of " + journalFile.getAbsolutePath());
+            RandomAccessFile raf = new RandomAccessFile(journalFile, "rw");
+            try {
+                raf.setLength(valid);
+            } finally {
+                raf.close();
+            }
+        }
+        return count;
+    }
+
+    private static int partition(String key) {
+        return (key.hashCode() & Integer.MAX_VALUE) % PARTITIONS;
+    }
+
+    private static int generationOf(File f, Pattern pattern) {
+        Matcher m = pattern.matcher(f.getName());
+        return m.matches() ? Integer.parseInt(m.group(1)) : -1;
+    }
+}
@@ -1,85 +1,207 @@
 package eu.scape_project;
 
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
+import java.io.FilenameFilter;
 import java.io.IOException;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
-import org.apache.commons.io.FileSystemUtils;
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
-public class PosixStorage {
+/**
+ * The default {@link Storage} implementation, which keeps every version of an
+ * entity in a file of its own: <code>foxml/&lt;id&gt;/version-N.xml</code>
+ * <p>
+ * Optionally versions can be stored as compressed deltas against their
+ * predecessor in <code>version-N.delta</code> files. A full snapshot is written
+ * whenever the chain of deltas since the last snapshot would exceed the
+ * configured length, which bounds the work needed to reconstruct a version.
+ * <p>
+ * With deduplication enabled full versions are stored content addressed in
+ * <code>blobs/</code> by their SHA-256 hash, and the version itself is just a
+ * <code>version-N.ref</code> file naming the blob, so storing a byte-identical
+ * version again only costs the reference. Overwriting versions leaves blobs
+ * behind which are no longer referenced, they are removed by a background
+ * sweep once enough references have been dropped.
+ * <p>
+ * All files are written to a temporary file and renamed into place, so a crash
+ * never leaves a truncated version behind. Whether the data and the rename
+ * are forced to disk is controlled by the {@link DurableWriter.Durability}.
+ */
+public class PosixStorage implements Storage {
 
+    public static final String PROPERTY_DELTA_CHAIN = "scape-tck.storage.delta-chain";
+    public static final String PROPERTY_DEDUPLICATION = "scape-tck.storage.dedup";
+
+    private static final Logger LOG = LoggerFactory.getLogger(PosixStorage.class);
+
+    private static final String XML_SUFFIX = ".xml";
+    private static final String DELTA_SUFFIX = ".delta";
+    private static final String REF_SUFFIX = ".ref";
+    private static final String CLAIM_SUFFIX = ".claim";
+    private static final String RUNNING_MARKER = ".running";
+    private static final int BLOB_SWEEP_THRESHOLD = 100;
+
+    private final File runningMarker;
+    /* holds the lock on the running marker as long as the storage is open */
+    private final FileChannel runningChannel;
     private final File xmlDirectory;
     private final File datastreamDirectory;
-    private final Pattern versionPattern = Pattern.compile("version\\-\\d*\\.xml");
-    
+    private final File blobDirectory;
+    private final File trashDirectory;
+    private final DirectoryLayout layout;
+    private final int maxDeltaChain;
+    private final boolean deduplication;
+    private final DurableWriter writer;
+    private final ExecutorService reaper;
+    private final AtomicInteger purgeCount = new AtomicInteger();
+    /* held shared by writers between storing a blob and referencing it, and exclusively by the blob sweep */
+    private final ReadWriteLock blobLock = new ReentrantReadWriteLock();
+    private final AtomicInteger droppedReferences = new AtomicInteger();
+    private final AtomicBoolean sweepScheduled = new AtomicBoolean();
+    private final VersionAllocator allocator = new VersionAllocator();
+    private final Pattern versionPattern = Pattern.compile("version\\-(\\d+)\\.(xml|delta|ref)");
+    private final VersionCatalog catalog = new VersionCatalog(new VersionCatalog.Loader() {
+        public int[] load(String id) throws IOException {
+            return scanVersions(id);
+        }
+    });
+
 
     public PosixStorage(String directory) {
-        File parent = new File(directory);
-        if (!parent.exists()) {
-            parent.mkdir();
-        }
-        if (!parent.canExecute() || !parent.canRead() || !parent.canWrite()) {
-            throw new RuntimeException("Unable to access directory " + parent.getAbsolutePath());
+        this(new Builder(directory));
+    }
+
+    private PosixStorage(Builder builder) {
+        this.layout = builder.layout;
+        this.maxDeltaChain = builder.maxDeltaChain;
+        this.deduplication = builder.deduplication;
+        this.writer = new DurableWriter(builder.durability);
+        File parent = createDirectory(new File(builder.directory));
+        xmlDirectory = createDirectory(new File(parent, "foxml"));
+        datastreamDirectory = createDirectory(new File(parent, "datastreams"));
+        blobDirectory = createDirectory(new File(parent, "blobs"));
+        trashDirectory = createDirectory(new File(parent, "trash"));
+
+        // move over the trees if they have been created with another fan-out
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        try {
+            layout.apply(xmlDirectory, threads);
+            layout.apply(datastreamDirectory, threads);
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to apply the directory layout", e);
         }
 
-        xmlDirectory = new File(parent, "foxml");
-        if (!xmlDirectory.exists()) {
-            xmlDirectory.mkdir();
+        // the marker is locked while the storage is open, it is only left behind unlocked if the storage hasn't
+        // been closed, e.g. after a crash
+        runningMarker = new File(parent, RUNNING_MARKER);
+        boolean crashed = runningMarker.exists();
+        try {
+            runningChannel = new RandomAccessFile(runningMarker, "rw").getChannel();
+        } catch (IOException e) {
+            throw new RuntimeException("Unable to create " + runningMarker.getAbsolutePath(), e);
+        }
+        try {
+            FileLock lock;
+            try {
+                lock = runningChannel.tryLock();
+            } catch (OverlappingFileLockException e) {
+                // locked by another storage in this JVM
+                lock = null;
+            }
+            if (lock == null) {
+                throw new RuntimeException("The storage in " + parent.getAbsolutePath() +
+                        " is in use by another instance");
+            }
+            if (crashed) {
+                removeStaleClaims();
+            }
+        } catch (IOException e) {
+            IOUtils.closeQuietly(runningChannel);
+            throw new RuntimeException("Unable to remove stale version claims", e);
+        } catch (RuntimeException e) {
+            IOUtils.closeQuietly(runningChannel);
+            throw e;
         }
-        if (!xmlDirectory.canExecute() || !xmlDirectory.canRead() || !xmlDirectory.canWrite()) {
-            throw new RuntimeException("Unable to access directory " + xmlDirectory.getAbsolutePath());
+
+        this.reaper = Executors.newSingleThreadExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "trash-reaper");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        // resume the deletions interrupted by a shutdown
+        for (File trash : trashDirectory.listFiles()) {
+            deleteInBackground(trash);
         }
+    }
 
-        datastreamDirectory = new File(parent, "datastreams");
-        if (!datastreamDirectory.exists()) {
-            datastreamDirectory.mkdir();
+    private static File createDirectory(File dir) {
+        if (!dir.exists()) {
+            dir.mkdir();
         }
-        if (!datastreamDirectory.canExecute() || !datastreamDirectory.canRead() || !datastreamDirectory.canWrite()) {
-            throw new RuntimeException("Unable to access directory " + datastreamDirectory.getAbsolutePath());
+        if (!dir.canExecute() || !dir.canRead() || !dir.canWrite()) {
+            throw new RuntimeException("Unable to access directory " + dir.getAbsolutePath());
         }
+        return dir;
     }
 
     public boolean exists(String id, Integer versionNumber) throws IOException{
         if (versionNumber == null){
-            versionNumber=getLatestVersionNumber(id);
-        }
-        try {
-            return new File(getEntityDir(id), "version-" + versionNumber + ".xml").exists();
-        } catch (IOException e) {
-            return false;
+            return !catalog.isEmpty(id);
         }
+        return catalog.contains(id, versionNumber);
     }
 
     private File getEntityDir(String id) throws IOException {
-        File f = new File(xmlDirectory, id);
-        if (f.exists() && !f.isDirectory()) {
-            throw new IOException("not a directory " + f.getAbsolutePath());
+        File f = layout.resolve(xmlDirectory, id);
+        if (f.exists() && (!f.isDirectory() || !f.canWrite())) {
+            throw new IOException("Unable to write to " + f.getAbsolutePath());
         }
         if (!f.exists()) {
-            f.mkdir();
+            f.mkdirs();
         }
         return f;
     }
 
-    public int getLatestVersionNumber(String id) throws IOException {
-        int version = 1;
-        File dir = getEntityDir(id);
-        for (String name : dir.list()) {
-            Matcher m = versionPattern.matcher(name);
-            if (m.find()) {
-                version = Math.max(version, Integer.parseInt(name.substring(m.start() + 8, m.end() - 4)));
-            }
+    public List<String> getEntityIds() throws IOException {
+        List<File> dirs = layout.listEntityDirectories(xmlDirectory);
+        List<String> ids = new ArrayList<String>(dirs.size());
+        for (File dir : dirs) {
+            ids.add(dir.getName());
         }
-        return version;
+        return ids;
+    }
+
+    public int getLatestVersionNumber(String id) throws IOException {
+        return Math.max(1, catalog.latest(id));
     }
 
     public int getNewVersionNumber(String id) throws IOException {
@@ -87,15 +209,29 @@ public class PosixStorage {
     }
 
     public List<String> getVersionList(String id) throws IOException {
-        List<String> versionList = new ArrayList<String>();
-        File dir = getEntityDir(id);
-        for (String name : dir.list()) {
+        int[] versions = catalog.list(id);
+        List<String> versionList = new ArrayList<String>(versions.length);
+        for (int version : versions) {
+            versionList.add(String.valueOf(version));
+        }
+        return versionList;
+    }
+
+    private int[] scanVersions(String id) throws IOException {
+        File dir = layout.resolve(xmlDirectory, id);
+        String[] names = dir.list();
+        if (names == null) {
+            return new int[0];
+        }
+        int[] versions = new int[names.length];
+        int count = 0;
+        for (String name : names) {
             Matcher m = versionPattern.matcher(name);
-            if (m.find()) {
-                versionList.add(name.substring(m.start() + 8, m.end() - 4));
+            if (m.matches()) {
+                versions[count++] = Integer.parseInt(m.group(1));
             }
         }
-        return versionList;
+        return Arrays.copyOf(versions, count);
     }
 
     public byte[] getXML(String id) throws Exception {
@@ -103,45 +239,492 @@ public class PosixStorage {
     }
 
     public byte[] getXML(String id, Integer version) throws Exception {
+        final File f = getVersionFile(id, version);
+        if (f.getName().endsWith(DELTA_SUFFIX)) {
+            return reconstruct(f);
+        }
+        return FileUtils.readFileToByteArray(getDataFile(f));
+    }
+
+    /**
+     * Open a stored version for streaming its content to a channel without
+     * loading it into memory
+     */
+    public StorageBlob openXML(String id, Integer version) throws Exception {
+        final File f = getVersionFile(id, version);
+        if (f.getName().endsWith(DELTA_SUFFIX)) {
+            return new StorageBlob(reconstruct(f));
+        }
+        final FileChannel channel = new FileInputStream(getDataFile(f)).getChannel();
+        return new StorageBlob(channel, 0, channel.size());
+    }
+
+    /**
+     * Get the hex encoded SHA-256 hash of a version's content. Deduplicated
+     * versions know their hash, for all others it is computed by streaming
+     * the content through a digest.
+     */
+    public String getContentHash(String id, Integer version) throws Exception {
+        final File f = getVersionFile(id, version);
+        if (f.getName().endsWith(REF_SUFFIX)) {
+            return FileUtils.readFileToString(f).trim();
+        }
+        StorageBlob blob = openXML(id, version);
+        try {
+            return ContentHash.of(blob);
+        } finally {
+            blob.close();
+        }
+    }
+
+    private File getVersionFile(String id, Integer version) throws IOException {
         if (version == null){
             version=getLatestVersionNumber(id);
         }
-        final File entityDir = new File(xmlDirectory, id);
+        final File entityDir = layout.resolve(xmlDirectory, id);
         if (!entityDir.exists() || !entityDir.canRead() || !entityDir.isDirectory()) {
             throw new FileNotFoundException("Unable to open dir " + entityDir.getAbsolutePath());
         }
-        final File f = new File(entityDir, "version-" + version + ".xml");
-        if (!f.exists() || !f.canRead()) {
-            throw new FileNotFoundException("Unable to open file " + f.getAbsolutePath());
+        File f = findVersionFile(entityDir, version);
+        if (f == null || !f.canRead()) {
+            throw new FileNotFoundException("Unable to open file " + versionFile(entityDir, version, XML_SUFFIX).getAbsolutePath());
+        }
+        return f;
+    }
+
+    /**
+     * Find the file a version is stored in, which is either a full version, a
+     * reference to a deduplicated blob or a delta
+     *
+     * @return the file or <code>null</code> if the version doesn't exist
+     */
+    private static File findVersionFile(File entityDir, int version) {
+        for (String suffix : new String[] { XML_SUFFIX, REF_SUFFIX, DELTA_SUFFIX }) {
+            File f = versionFile(entityDir, version, suffix);
+            if (f.exists()) {
+                return f;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Resolve the file holding the content of a full or deduplicated version
+     */
+    private File getDataFile(File versionFile) throws IOException {
+        if (!versionFile.getName().endsWith(REF_SUFFIX)) {
+            return versionFile;
+        }
+        File blob = getBlobFile(FileUtils.readFileToString(versionFile).trim());
+        if (!blob.exists()) {
+            throw new FileNotFoundException("Missing blob " + blob.getAbsolutePath() + " referenced by " +
+                    versionFile.getAbsolutePath());
+        }
+        return blob;
+    }
+
+    private File getBlobFile(String hash) {
+        return new File(new File(blobDirectory, hash.substring(0, 2)), hash);
+    }
+
+    private static File versionFile(File entityDir, int version, String suffix) {
+        return new File(entityDir, "version-" + version + suffix);
+    }
+
+    /**
+     * Rebuild a version from its delta by walking back the chain of deltas to
+     * the last full snapshot and applying the deltas on top of it
+     */
+    private byte[] reconstruct(File deltaFile) throws IOException {
+        final File entityDir = deltaFile.getParentFile();
+        LinkedList<byte[]> deltas = new LinkedList<byte[]>();
+        File f = deltaFile;
+        while (f.getName().endsWith(DELTA_SUFFIX)) {
+            DeltaFile delta = DeltaFile.read(f);
+            deltas.addFirst(delta.delta);
+            f = findVersionFile(entityDir, delta.baseVersion);
+            if (f == null) {
+                throw new FileNotFoundException("Missing base version " + delta.baseVersion + " in " +
+                        entityDir.getAbsolutePath());
+            }
+        }
+        byte[] data = FileUtils.readFileToByteArray(getDataFile(f));
+        for (byte[] delta : deltas) {
+            data = VersionDelta.apply(data, delta);
+        }
+        return data;
+    }
+
+    /**
+     * Remove all stored entities by moving the trees into the trash directory
+     * and recreating them empty. The trash is deleted by a low priority
+     * background thread, deletions interrupted by a shutdown are resumed on
+     * the next start.
+     */
+    public synchronized void purge() throws Exception {
+        catalog.clear();
+        File trash = new File(trashDirectory, "purge-" + System.currentTimeMillis() + "-" +
+                purgeCount.incrementAndGet());
+        if (!trash.mkdir()) {
+            throw new IOException("Unable to create " + trash.getAbsolutePath());
+        }
+        for (File dir : new File[] { xmlDirectory, datastreamDirectory, blobDirectory }) {
+            if (!dir.renameTo(new File(trash, dir.getName()))) {
+                // e.g. open files on windows, fall back to deleting in place
+                FileUtils.deleteDirectory(dir);
+            }
+            createDirectory(dir);
+        }
+        layout.apply(xmlDirectory, 1);
+        layout.apply(datastreamDirectory, 1);
+        deleteInBackground(trash);
+    }
+
+    private void deleteInBackground(final File trash) {
+        reaper.execute(new Runnable() {
+            public void run() {
+                FileUtils.deleteQuietly(trash);
+            }
+        });
+    }
+
+    public void close() throws IOException {
+        // pending deletions are resumed on the next start
+        reaper.shutdown();
+        writer.close();
+        // deleted while still locked, so that no other instance takes it over before
+        runningMarker.delete();
+        runningChannel.close();
+    }
+
+    /**
+     * Remove the claims of new versions left behind by writers which didn't
+     * get to release them, which are never in use when the storage could lock
+     * the running marker
+     */
+    private void removeStaleClaims() throws IOException {
+        int removed = 0;
+        for (File dir : layout.listEntityDirectories(xmlDirectory)) {
+            File[] claims = dir.listFiles(new FilenameFilter() {
+                public boolean accept(File dir, String name) {
+                    return name.endsWith(CLAIM_SUFFIX);
+                }
+            });
+            for (int i = 0; claims != null && i < claims.length; i++) {
+                if (!claims[i].delete()) {
+                    throw new IOException("Unable to delete " + claims[i].getAbsolutePath());
+                }
+                removed++;
+            }
+        }
+        if (removed > 0) {
+            LOG.info("removed " + removed + " stale version claims from " + xmlDirectory.getAbsolutePath());
         }
-        return IOUtils.toByteArray(new FileInputStream(f));
     }
 
-    public void purge() throws Exception {
-    	// to avoid delete problems on windows use gc first. 
-    	System.gc();
-        FileUtils.deleteDirectory(xmlDirectory);
-        FileUtils.deleteDirectory(datastreamDirectory);
+    DurableWriter getDurableWriter() {
+        return writer;
     }
 
     public void saveXML(byte[] blob, String name, int version, boolean overwrite) throws Exception {
-        File entityDir = new File(xmlDirectory, name);
-        if (entityDir.exists() && (entityDir.isFile() || !entityDir.canWrite())) {
-            throw new IOException("Unable to write to " + entityDir.getAbsolutePath());
+        File entityDir = getEntityDir(name);
+        if (catalog.contains(name, version) && !overwrite) {
+            throw new IOException("File " + versionFile(entityDir, version, XML_SUFFIX).getAbsolutePath() + " exists already!");
+        }
+        blobLock.readLock().lock();
+        try {
+            boolean dropsReference = overwrite && versionFile(entityDir, version, REF_SUFFIX).exists();
+            if (maxDeltaChain > 0 && overwrite) {
+                detachSuccessor(name, entityDir, version);
+            }
+            DeltaFile delta = (maxDeltaChain > 0) ? createDelta(name, entityDir, version, blob) : null;
+            if (delta != null) {
+                writeFile(versionFile(entityDir, version, DELTA_SUFFIX), delta.toBytes());
+                removeVersionFiles(entityDir, version, DELTA_SUFFIX);
+            } else {
+                writeFullVersion(entityDir, version, blob);
+            }
+            catalog.add(name, version);
+            if (dropsReference && droppedReferences.incrementAndGet() >= BLOB_SWEEP_THRESHOLD) {
+                scheduleBlobSweep();
+            }
+        } finally {
+            blobLock.readLock().unlock();
         }
-        if (!entityDir.exists()) {
-            entityDir.mkdir();
+    }
+
+    private void scheduleBlobSweep() {
+        if (!sweepScheduled.compareAndSet(false, true)) {
+            return;
         }
-        File f = new File(entityDir, "version-" + version + ".xml");
-        if (f.exists() && !overwrite) {
-            throw new IOException("File " + f.getAbsolutePath() + " exists already!");
+        reaper.execute(new Runnable() {
+            public void run() {
+                try {
+                    sweepBlobs();
+                } catch (IOException e) {
+                    LOG.error("sweep of unreferenced blobs failed", e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Remove the blobs which are not referenced by any version. Writers are
+     * blocked while the references are collected.
+     *
+     * @return the number of removed blobs
+     */
+    public int sweepBlobs() throws IOException {
+        blobLock.writeLock().lock();
+        try {
+            sweepScheduled.set(false);
+            droppedReferences.set(0);
+            Set<String> referenced = new HashSet<String>();
+            for (File dir : layout.listEntityDirectories(xmlDirectory)) {
+                File[] refs = dir.listFiles(new FilenameFilter() {
+                    public boolean accept(File dir, String name) {
+                        return name.endsWith(REF_SUFFIX);
+                    }
+                });
+                for (int i = 0; refs != null && i < refs.length; i++) {
+                    referenced.add(FileUtils.readFileToString(refs[i]).trim());
+                }
+            }
+            int removed = 0;
+            File[] shards = blobDirectory.listFiles();
+            for (int i = 0; shards != null && i < shards.length; i++) {
+                File[] blobs = shards[i].listFiles();
+                for (int j = 0; blobs != null && j < blobs.length; j++) {
+                    // left over temporary files aren't referenced either
+                    if (!referenced.contains(blobs[j].getName()) && blobs[j].delete()) {
+                        removed++;
+                    }
+                }
+            }
+            if (removed > 0) {
+                LOG.info("removed " + removed + " unreferenced blobs from " + blobDirectory.getAbsolutePath());
+            }
+            return removed;
+        } finally {
+            blobLock.writeLock().unlock();
         }
-        OutputStream out = null;
+    }
+
+    /**
+     * Claim the version by creating an empty <code>version-N.claim</code> file,
+     * which fails if another writer holds the claim, and release the claim
+     * once the version has been saved. Since the version is added to the
+     * catalog before its claim is released, a writer checking the catalog
+     * after claiming never overwrites a saved version. A claim left behind by
+     * a crash is removed when the storage is opened again.
+     */
+    public int saveNewVersion(byte[] blob, String name, int version) throws Exception {
+        final File entityDir = getEntityDir(name);
+        version = allocator.allocate(name, version, new VersionAllocator.Slots() {
+            public boolean tryClaim(String id, int candidate) throws IOException {
+                File claim = versionFile(entityDir, candidate, CLAIM_SUFFIX);
+                if (!claim.createNewFile()) {
+                    return false;
+                }
+                boolean claimed = false;
+                try {
+                    claimed = !catalog.contains(id, candidate);
+                    return claimed;
+                } finally {
+                    if (!claimed) {
+                        claim.delete();
+                    }
+                }
+            }
+        });
         try {
-            out = new FileOutputStream(f);
-            IOUtils.write(blob, out);
+            saveXML(blob, name, version, false);
         } finally {
-            IOUtils.closeQuietly(out);
+            versionFile(entityDir, version, CLAIM_SUFFIX).delete();
+        }
+        return version;
+    }
+
+    public VersionAllocator getVersionAllocator() {
+        return allocator;
+    }
+
+    /**
+     * Write the complete content of a version, either as a plain file or as a
+     * reference to a content addressed blob
+     */
+    private void writeFullVersion(File entityDir, int version, byte[] blob) throws IOException {
+        if (deduplication) {
+            String hash = saveBlob(blob);
+            writeFile(versionFile(entityDir, version, REF_SUFFIX), hash.getBytes());
+            removeVersionFiles(entityDir, version, REF_SUFFIX);
+        } else {
+            writeFile(versionFile(entityDir, version, XML_SUFFIX), blob);
+            removeVersionFiles(entityDir, version, XML_SUFFIX);
+        }
+    }
+
+    /**
+     * Store a blob under its content hash, unless a blob with the same hash
+     * exists already
+     *
+     * @return the hex encoded hash of the blob
+     */
+    private String saveBlob(byte[] blob) throws IOException {
+        String hash = ContentHash.of(blob);
+        File target = getBlobFile(hash);
+        if (!target.exists()) {
+            target.getParentFile().mkdirs();
+            // a concurrent writer storing the same blob writes the same bytes
+            writeFile(target, blob);
+        }
+        return hash;
+    }
+
+    /* remove the files of a version except the one with the given suffix */
+    private static void removeVersionFiles(File entityDir, int version, String keep) {
+        for (String suffix : new String[] { XML_SUFFIX, REF_SUFFIX, DELTA_SUFFIX }) {
+            if (!suffix.equals(keep)) {
+                versionFile(entityDir, version, suffix).delete();
+            }
+        }
+    }
+
+    /**
+     * Create a delta of a new version against its predecessor, unless the
+     * chain of deltas would get too long or the delta isn't worth it
+     *
+     * @return the delta or <code>null</code> if a full snapshot should be written
+     */
+    private DeltaFile createDelta(String id, File entityDir, int version, byte[] blob) throws Exception {
+        int base = catalog.lower(id, version);
+        if (base < 0) {
+            return null;
+        }
+        int chainLength = 1;
+        File baseDelta = versionFile(entityDir, base, DELTA_SUFFIX);
+        if (baseDelta.exists()) {
+            chainLength += DeltaFile.read(baseDelta).chainLength;
+        }
+        if (chainLength > maxDeltaChain) {
+            return null;
+        }
+        byte[] delta = VersionDelta.encode(getXML(id, base), blob);
+        if (delta.length >= blob.length / 2) {
+            return null;
+        }
+        return new DeltaFile(base, chainLength, delta);
+    }
+
+    /**
+     * Store the version following the given one as a full snapshot if it is
+     * a delta against the given version, which is about to be overwritten
+     */
+    private void detachSuccessor(String id, File entityDir, int version) throws Exception {
+        int next = catalog.higher(id, version);
+        if (next < 0) {
+            return;
+        }
+        File nextDelta = versionFile(entityDir, next, DELTA_SUFFIX);
+        if (nextDelta.exists() && DeltaFile.read(nextDelta).baseVersion == version) {
+            writeFullVersion(entityDir, next, getXML(id, next));
+        }
+    }
+
+    private void writeFile(File f, byte[] data) throws IOException {
+        writer.write(f, data);
+    }
+
+    /**
+     * A version stored as a delta, which consists of a header with the base
+     * version and the length of the delta chain followed by the compressed
+     * delta
+     */
+    private static final class DeltaFile {
+
+        private final int baseVersion;
+
+        private final int chainLength;
+
+        private final byte[] delta;
+
+        private DeltaFile(int baseVersion, int chainLength, byte[] delta) {
+            this.baseVersion = baseVersion;
+            this.chainLength = chainLength;
+            this.delta = delta;
+        }
+
+        private static DeltaFile read(File f) throws IOException {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(f)));
+            try {
+                int baseVersion = in.readInt();
+                int chainLength = in.readInt();
+                byte[] delta = new byte[(int) f.length() - 8];
+                in.readFully(delta);
+                return new DeltaFile(baseVersion, chainLength, delta);
+            } finally {
+                IOUtils.closeQuietly(in);
+            }
+        }
+
+        private byte[] toBytes() {
+            ByteBuffer data = ByteBuffer.allocate(8 + delta.length);
+            data.putInt(baseVersion);
+            data.putInt(chainLength);
+            data.put(delta);
+            return data.array();
+        }
+    }
+
+    public static class Builder {
+
+        private final String directory;
+
+        private DirectoryLayout layout = new DirectoryLayout(Integer.getInteger(DirectoryLayout.PROPERTY_FANOUT, 2));
+
+        private int maxDeltaChain = Integer.getInteger(PROPERTY_DELTA_CHAIN, 0);
+
+        private boolean deduplication = Boolean.getBoolean(PROPERTY_DEDUPLICATION);
+
+        private DurableWriter.Durability durability = DurableWriter.getConfiguredDurability();
+
+        public Builder(String directory) {
+            this.directory = directory;
+        }
+
+        public Builder layout(DirectoryLayout layout) {
+            this.layout = layout;
+            return this;
+        }
+
+        /**
+         * Set the maximum number of deltas between two full snapshots. A
+         * value of 0 disables the delta encoding of versions.
+         */
+        public Builder maxDeltaChain(int maxDeltaChain) {
+            this.maxDeltaChain = maxDeltaChain;
+            return this;
+        }
+
+        /**
+         * Store full versions content addressed, so that identical versions
+         * share a single blob
+         */
+        public Builder deduplication(boolean deduplication) {
+            this.deduplication = deduplication;
+            return this;
+        }
+
+        /**
+         * Set whether versions are forced to disk before they become visible
+         */
+        public Builder durability(DurableWriter.Durability durability) {
+            this.durability = durability;
+            return this;
+        }
+
+        public PosixStorage build() {
+            return new PosixStorage(this);
         }
     }
 }
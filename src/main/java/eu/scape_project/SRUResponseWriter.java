@@ -0,0 +1,134 @@
+package eu.scape_project;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+
+import org.apache.commons.lang3.StringEscapeUtils;
+
+/**
+ * Writes an SRU 1.2 <code>searchRetrieveResponse</code> incrementally to a
+ * channel. The stored METS documents are copied into the records as they are,
+ * only their XML declaration is skipped, so the response is never held in
+ * memory as a whole and no record is unmarshalled.
+ */
+public class SRUResponseWriter {
+
+    public static final String SRU_NAMESPACE = "http://www.loc.gov/zing/srw/";
+
+    public static final String METS_SCHEMA = "http://www.loc.gov/METS/";
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    /* the number of bytes searched for the end of an XML declaration */
+    private static final int PROLOG_SIZE = 512;
+
+    private final WritableByteChannel out;
+
+    public SRUResponseWriter(WritableByteChannel out) {
+        this.out = out;
+    }
+
+    /**
+     * Write the start of the response up to the first record
+     */
+    public void start(int numberOfRecords) throws IOException {
+        write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
+                "<srw:searchRetrieveResponse xmlns:srw=\"" + SRU_NAMESPACE + "\">\n" +
+                "<srw:version>1.2</srw:version>\n" +
+                "<srw:numberOfRecords>" + numberOfRecords + "</srw:numberOfRecords>\n" +
+                "<srw:records>\n");
+    }
+
+    /**
+     * Write a record containing the given XML document
+     *
+     * @param position
+     *            the 1-based position of the record in the result set
+     */
+    public void writeRecord(StorageBlob xml, int position) throws IOException {
+        long offset = prologLength(xml);
+        write("<srw:record>\n" +
+                "<srw:recordSchema>" + METS_SCHEMA + "</srw:recordSchema>\n" +
+                "<srw:recordPacking>xml</srw:recordPacking>\n" +
+                "<srw:recordData>");
+        xml.transferTo(out, offset);
+        write("</srw:recordData>\n" +
+                "<srw:recordPosition>" + position + "</srw:recordPosition>\n" +
+                "</srw:record>\n");
+    }
+
+    /**
+     * Write the end of the response
+     *
+     * @param nextRecordPosition
+     *            the position of the first record of the next page or 0 if
+     *            there are no more records
+     * @param cursor
+     *            the cursor for continuing with the next page or
+     *            <code>null</code>, returned as the <code>x-cursor</code>
+     *            extra response data
+     */
+    public void finish(int nextRecordPosition, String cursor) throws IOException {
+        StringBuilder end = new StringBuilder("</srw:records>\n");
+        if (nextRecordPosition > 0) {
+            end.append("<srw:nextRecordPosition>").append(nextRecordPosition).append("</srw:nextRecordPosition>\n");
+        }
+        if (cursor != null) {
+            end.append("<srw:extraResponseData><x-cursor>").append(StringEscapeUtils.escapeXml(cursor)).append(
+                    "</x-cursor></srw:extraResponseData>\n");
+        }
+        end.append("</srw:searchRetrieveResponse>\n");
+        write(end.toString());
+    }
+
+    private void write(String s) throws IOException {
+        ByteBuffer buf = ByteBuffer.wrap(s.getBytes(UTF_8));
+        while (buf.hasRemaining()) {
+            out.write(buf);
+        }
+    }
+
+    /**
+     * Get the number of bytes of a byte order mark, an XML declaration and
+     * the whitespace following them at the start of a document, which must
+     * not be repeated inside of another document
+     */
+    static long prologLength(StorageBlob xml) throws IOException {
+        ByteBuffer head = ByteBuffer.allocate(PROLOG_SIZE);
+        xml.read(head, 0);
+        byte[] b = head.array();
+        int len = head.position();
+        int pos = 0;
+        if (len >= 3 && (b[0] & 0xff) == 0xef && (b[1] & 0xff) == 0xbb && (b[2] & 0xff) == 0xbf) {
+            pos = 3;
+        }
+        if (startsWith(b, pos, len, "<?xml")) {
+            int end = pos;
+            while (end + 1 < len && !(b[end] == '?' && b[end + 1] == '>')) {
+                end++;
+            }
+            if (end + 1 >= len) {
+                throw new IOException("XML declaration exceeds " + PROLOG_SIZE + " bytes");
+            }
+            pos = end + 2;
+        }
+        while (pos < len && Character.isWhitespace(b[pos])) {
+            pos++;
+        }
+        return pos;
+    }
+
+    private static boolean startsWith(byte[] b, int pos, int len, String prefix) {
+        if (len - pos < prefix.length()) {
+            return false;
+        }
+        for (int i = 0; i < prefix.length(); i++) {
+            if (b[pos + i] != prefix.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
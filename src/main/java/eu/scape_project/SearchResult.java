@@ -0,0 +1,61 @@
+package eu.scape_project;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A page of the ids matching a search, together with the total number of
+ * matches and a cursor for fetching the following page
+ */
+public class SearchResult {
+
+    private final List<String> ids;
+
+    private final int totalHits;
+
+    private final int startRecord;
+
+    private final String cursor;
+
+    public SearchResult(List<String> ids, int totalHits, int startRecord, String cursor) {
+        this.ids = Collections.unmodifiableList(ids);
+        this.totalHits = totalHits;
+        this.startRecord = startRecord;
+        this.cursor = cursor;
+    }
+
+    public List<String> getIds() {
+        return ids;
+    }
+
+    public int getTotalHits() {
+        return totalHits;
+    }
+
+    /**
+     * Get the 1-based position of the first id of this page in all matches
+     */
+    public int getStartRecord() {
+        return startRecord;
+    }
+
+    /**
+     * Get the position of the first id of the next page as defined by SRU
+     *
+     * @return the position or 0 if this is the last page
+     */
+    public int getNextRecordPosition() {
+        int next = startRecord + ids.size();
+        return next > totalHits || ids.isEmpty() ? 0 : next;
+    }
+
+    /**
+     * Get an opaque cursor continuing the search after the last id of this
+     * page without scoring the previous pages again
+     *
+     * @return the cursor or <code>null</code> if this is the last page
+     */
+    public String getCursor() {
+        return cursor;
+    }
+}
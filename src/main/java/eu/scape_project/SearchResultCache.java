@@ -0,0 +1,130 @@
+package eu.scape_project;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded LRU cache of search result pages. Callers include the generation
+ * of the index reader a page was searched on in its key, so that pages become
+ * unreachable as soon as the near-real-time reader advances and are evicted
+ * as they age. The cache counts its hits and misses and the time the hits
+ * saved, i.e. the time it took to search the cached pages originally.
+ */
+public class SearchResultCache {
+
+    public static final String PROPERTY_RESULT_CACHE_SIZE = "scape-tck.index.result-cache-size";
+
+    private final int maxEntries;
+
+    /* in access order, so that the eldest entry is the least recently used */
+    private final LinkedHashMap<String, CachedPage> entries = new LinkedHashMap<String, CachedPage>(64, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, CachedPage> eldest) {
+            if (size() > maxEntries) {
+                evictions.incrementAndGet();
+                return true;
+            }
+            return false;
+        }
+    };
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    private final AtomicLong savedNanos = new AtomicLong();
+
+    /**
+     * @param maxEntries
+     *            the maximum number of cached pages, 0 disables the cache
+     */
+    public SearchResultCache(int maxEntries) {
+        this.maxEntries = maxEntries;
+    }
+
+    public boolean isEnabled() {
+        return maxEntries > 0;
+    }
+
+    /**
+     * @return the cached page or <code>null</code>
+     */
+    public SearchResult get(String key) {
+        CachedPage page;
+        synchronized (entries) {
+            page = entries.get(key);
+        }
+        if (page == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        savedNanos.addAndGet(page.searchNanos);
+        return page.result;
+    }
+
+    /**
+     * @param searchNanos
+     *            the time in nanoseconds it took to search the page
+     */
+    public void put(String key, SearchResult result, long searchNanos) {
+        if (maxEntries <= 0) {
+            return;
+        }
+        synchronized (entries) {
+            entries.put(key, new CachedPage(result, searchNanos));
+        }
+    }
+
+    /**
+     * Remove all pages, e.g. when a new reader makes them unreachable
+     */
+    public void clear() {
+        synchronized (entries) {
+            entries.clear();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * Get the total time in milliseconds the cache hits saved
+     */
+    public long getSavedMillis() {
+        return savedNanos.get() / 1000000;
+    }
+
+    /**
+     * Get the number of cached pages
+     */
+    public int getSize() {
+        synchronized (entries) {
+            return entries.size();
+        }
+    }
+
+    private static final class CachedPage {
+
+        private final SearchResult result;
+
+        private final long searchNanos;
+
+        private CachedPage(SearchResult result, long searchNanos) {
+            this.result = result;
+            this.searchNanos = searchNanos;
+        }
+    }
+}
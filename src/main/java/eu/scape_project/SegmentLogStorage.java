@@ -0,0 +1,734 @@
+package eu.scape_project;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A {@link Storage} implementation which appends the versions of all entities
+ * to large segment files instead of creating a file per version.
+ * <p>
+ * Each record in a segment consists of a header (magic, id, version, payload
+ * length and CRC32 of the payload) followed by the payload. When a segment
+ * reaches its maximum size it is sealed by writing a footer, which lists the
+ * segment's records and allows rebuilding the in-memory offset index on
+ * startup without reading the payloads. Only the last, unsealed segment has to
+ * be scanned record by record, and is truncated to its last complete record.
+ * <p>
+ * Records which have been superseded by overwriting a version are dead weight
+ * in their segments. A background compaction copies the live records of
+ * sealed segments with a high ratio of dead bytes (or which are very small)
+ * into the active segment and removes the old segment file afterwards.
+ * <p>
+ * Like the {@link PosixStorage} the {@link DurableWriter.Durability} controls
+ * whether appended records are forced to disk before a write returns. In
+ * {@link DurableWriter.Durability#GROUP} mode writers append under the
+ * storage's lock but force the segment after releasing it, and a single force
+ * covers all records appended up to then, so concurrent writers share it. Sealed
+ * segments and the records moved by a compaction are always forced before
+ * the compacted segment is deleted.
+ */
+public class SegmentLogStorage implements Storage {
+
+    public static final String PROPERTY_SEGMENT_SIZE = "scape-tck.segment.size";
+
+    public static final String PROPERTY_COMPACTION_INTERVAL = "scape-tck.segment.compaction-interval";
+
+    private static final Logger LOG = LoggerFactory.getLogger(SegmentLogStorage.class);
+
+    private static final int RECORD_MAGIC = 0x53544b52;
+
+    private static final int FOOTER_MAGIC = 0x53544b46;
+
+    /* magic, id length, version, payload length and crc */
+    private static final int HEADER_LENGTH = 4 + 2 + 4 + 4 + 4;
+
+    /* footer start, entry count and magic */
+    private static final int TRAILER_LENGTH = 8 + 4 + 4;
+
+    private static final double COMPACTION_RATIO = 0.5d;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final Pattern segmentPattern = Pattern.compile("segment\\-(\\d+)\\.log");
+
+    private final File segmentDirectory;
+
+    private final long maxSegmentSize;
+
+    private final DurableWriter.Durability durability;
+
+    private final ConcurrentMap<String, ConcurrentNavigableMap<Integer, Location>> index =
+            new ConcurrentHashMap<String, ConcurrentNavigableMap<Integer, Location>>();
+
+    private final ConcurrentNavigableMap<Integer, Segment> segments = new ConcurrentSkipListMap<Integer, Segment>();
+
+    private final ScheduledExecutorService compactor;
+
+    private final VersionAllocator allocator = new VersionAllocator();
+
+    /* the versions claimed by writers which have not been appended yet */
+    private final ConcurrentMap<String, Boolean> claims = new ConcurrentHashMap<String, Boolean>();
+
+    /* the segment new records are appended to, guarded by this */
+    private Segment active;
+
+    public SegmentLogStorage(String directory) throws IOException {
+        this(directory, Long.getLong(PROPERTY_SEGMENT_SIZE, 64L * 1024L * 1024L), Long.getLong(
+                PROPERTY_COMPACTION_INTERVAL, 60L));
+    }
+
+    public SegmentLogStorage(String directory, long maxSegmentSize, long compactionInterval) throws IOException {
+        this(directory, maxSegmentSize, compactionInterval, DurableWriter.getConfiguredDurability());
+    }
+
+    public SegmentLogStorage(String directory, long maxSegmentSize, long compactionInterval,
+            DurableWriter.Durability durability) throws IOException {
+        File parent = new File(directory);
+        if (!parent.exists()) {
+            parent.mkdir();
+        }
+        segmentDirectory = new File(parent, "segments");
+        if (!segmentDirectory.exists()) {
+            segmentDirectory.mkdir();
+        }
+        if (!segmentDirectory.canExecute() || !segmentDirectory.canRead() || !segmentDirectory.canWrite()) {
+            throw new RuntimeException("Unable to access directory " + segmentDirectory.getAbsolutePath());
+        }
+        this.maxSegmentSize = maxSegmentSize;
+        this.durability = durability;
+        rebuildIndex();
+        this.compactor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "segment-compactor");
+                t.setDaemon(true);
+                t.setPriority(Thread.MIN_PRIORITY);
+                return t;
+            }
+        });
+        if (compactionInterval > 0) {
+            this.compactor.scheduleWithFixedDelay(new Runnable() {
+                public void run() {
+                    try {
+                        compact();
+                    } catch (Exception e) {
+                        LOG.error("compaction of segments failed", e);
+                    }
+                }
+            }, compactionInterval, compactionInterval, TimeUnit.SECONDS);
+        }
+    }
+
+    public boolean exists(String id, Integer versionNumber) throws IOException {
+        Map<Integer, Location> versions = index.get(id);
+        if (versions == null) {
+            return false;
+        }
+        if (versionNumber == null) {
+            return !versions.isEmpty();
+        }
+        return versions.containsKey(versionNumber);
+    }
+
+    public List<String> getEntityIds() throws IOException {
+        return new ArrayList<String>(index.keySet());
+    }
+
+    public int getLatestVersionNumber(String id) throws IOException {
+        ConcurrentNavigableMap<Integer, Location> versions = index.get(id);
+        if (versions == null || versions.isEmpty()) {
+            return 1;
+        }
+        return versions.lastKey();
+    }
+
+    public int getNewVersionNumber(String id) throws IOException {
+        return getLatestVersionNumber(id) + 1;
+    }
+
+    public List<String> getVersionList(String id) throws IOException {
+        List<String> versionList = new ArrayList<String>();
+        Map<Integer, Location> versions = index.get(id);
+        if (versions != null) {
+            for (Integer version : versions.keySet()) {
+                versionList.add(String.valueOf(version));
+            }
+        }
+        return versionList;
+    }
+
+    public byte[] getXML(String id) throws Exception {
+        return getXML(id, null);
+    }
+
+    public byte[] getXML(String id, Integer version) throws Exception {
+        StorageBlob blob = openXML(id, version);
+        try {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream((int) blob.length());
+            blob.transferTo(Channels.newChannel(sink));
+            return sink.toByteArray();
+        } finally {
+            blob.close();
+        }
+    }
+
+    public StorageBlob openXML(String id, Integer version) throws Exception {
+        if (version == null) {
+            version = getLatestVersionNumber(id);
+        }
+        Location loc = locate(id, version);
+        while (true) {
+            try {
+                FileChannel channel = new FileInputStream(loc.segment.file).getChannel();
+                return new StorageBlob(channel, loc.offset, loc.length);
+            } catch (FileNotFoundException e) {
+                // the segment might have been removed by a concurrent
+                // compaction, in which case the record has been moved
+                Location moved = locate(id, version);
+                if (moved == loc) {
+                    throw e;
+                }
+                loc = moved;
+            }
+        }
+    }
+
+    public String getContentHash(String id, Integer version) throws Exception {
+        StorageBlob blob = openXML(id, version);
+        try {
+            return ContentHash.of(blob);
+        } finally {
+            blob.close();
+        }
+    }
+
+    private Location locate(String id, int version) throws FileNotFoundException {
+        Map<Integer, Location> versions = index.get(id);
+        Location loc = (versions == null) ? null : versions.get(version);
+        if (loc == null) {
+            throw new FileNotFoundException("Unable to find version " + version + " of entity " + id);
+        }
+        return loc;
+    }
+
+    public void saveXML(byte[] blob, String name, int version, boolean overwrite) throws Exception {
+        Segment seg;
+        long end;
+        synchronized (this) {
+            if (!overwrite && exists(name, version)) {
+                throw new IOException("Version " + version + " of " + name + " exists already!");
+            }
+            seg = active;
+            append(name, version, blob);
+            end = seg.dataSize;
+        }
+        if (durability == DurableWriter.Durability.GROUP) {
+            awaitForced(seg, end);
+        }
+    }
+
+    /**
+     * Force a segment up to the given size unless a concurrent writer did
+     * already, the first waiting writer forces the records of all others
+     */
+    private void awaitForced(Segment seg, long end) throws IOException {
+        synchronized (seg) {
+            if (seg.forcedSize >= end) {
+                return;
+            }
+            long size;
+            FileChannel channel;
+            synchronized (this) {
+                if (seg.sealed || seg.channel == null) {
+                    // sealing forces the segment, a purge drops it
+                    return;
+                }
+                size = seg.dataSize;
+                channel = seg.channel;
+            }
+            try {
+                channel.force(true);
+            } catch (ClosedChannelException e) {
+                // sealed or purged meanwhile
+                return;
+            }
+            seg.forcedSize = size;
+        }
+    }
+
+    public int saveNewVersion(byte[] blob, String name, int version) throws Exception {
+        version = allocator.allocate(name, version, new VersionAllocator.Slots() {
+            public boolean tryClaim(String id, int candidate) throws IOException {
+                String claim = id + "/" + candidate;
+                if (claims.putIfAbsent(claim, Boolean.TRUE) != null) {
+                    return false;
+                }
+                // a version appended before the claim was made
+                if (exists(id, candidate)) {
+                    claims.remove(claim);
+                    return false;
+                }
+                return true;
+            }
+        });
+        try {
+            saveXML(blob, name, version, false);
+        } finally {
+            claims.remove(name + "/" + version);
+        }
+        return version;
+    }
+
+    public VersionAllocator getVersionAllocator() {
+        return allocator;
+    }
+
+    public synchronized void purge() throws Exception {
+        closeActive();
+        segments.clear();
+        index.clear();
+        FileUtils.cleanDirectory(segmentDirectory);
+        active = createSegment(1);
+    }
+
+    public void close() throws IOException {
+        compactor.shutdownNow();
+        synchronized (this) {
+            if (active != null) {
+                seal(active);
+                active = null;
+            }
+        }
+    }
+
+    /**
+     * Copy the live records of sealed segments which mostly consist of dead
+     * records, or are very small, into the active segment and delete them
+     * afterwards
+     */
+    public void compact() throws IOException {
+        for (Segment seg : segments.values()) {
+            synchronized (this) {
+                if (seg == active || !seg.sealed) {
+                    continue;
+                }
+            }
+            if (seg.deadBytes.get() < seg.dataSize * COMPACTION_RATIO && seg.dataSize >= maxSegmentSize / 4) {
+                continue;
+            }
+            compactSegment(seg);
+        }
+    }
+
+    private void compactSegment(Segment seg) throws IOException {
+        int moved = 0;
+        List<Entry> entries;
+        try {
+            entries = readFooter(seg);
+        } catch (FileNotFoundException e) {
+            if (purged(seg)) {
+                return;
+            }
+            throw e;
+        }
+        for (Entry entry : entries) {
+            Map<Integer, Location> versions = index.get(entry.id);
+            Location loc = (versions == null) ? null : versions.get(entry.version);
+            if (loc == null || loc.segment != seg || loc.offset != entry.offset) {
+                continue;
+            }
+            byte[] payload;
+            try {
+                payload = read(loc);
+            } catch (FileNotFoundException e) {
+                if (purged(seg)) {
+                    return;
+                }
+                throw e;
+            }
+            synchronized (this) {
+                // a purge drops the index and the segments, so the record is only moved if the segment and the
+                // entity's versions are still the indexed ones and the version hasn't been overwritten meanwhile
+                if (purged(seg)) {
+                    return;
+                }
+                if (index.get(entry.id) == versions && versions.get(entry.version) == loc) {
+                    append(entry.id, entry.version, payload);
+                    moved++;
+                }
+            }
+        }
+        synchronized (this) {
+            // after a purge a new segment might have the same number and file
+            if (purged(seg)) {
+                return;
+            }
+            // the moved records have to be on disk before their only other copy is gone, closing the storage
+            // forces them when sealing the active segment
+            if (active != null) {
+                active.channel.force(true);
+            }
+            segments.remove(seg.number);
+            if (!seg.file.delete()) {
+                LOG.warn("unable to delete compacted segment " + seg.file.getAbsolutePath());
+            }
+        }
+        LOG.info("compacted segment " + seg.number + ", moved " + moved + " live records");
+    }
+
+    /* whether a purge has dropped the segment, whose number might have been reused already */
+    private boolean purged(Segment seg) {
+        if (segments.get(seg.number) == seg) {
+            return false;
+        }
+        LOG.info("segment " + seg.number + " has been purged during its compaction");
+        return true;
+    }
+
+    private byte[] read(Location loc) throws IOException {
+        FileChannel channel = new FileInputStream(loc.segment.file).getChannel();
+        try {
+            return readFully(channel, loc.offset, loc.length).array();
+        } finally {
+            channel.close();
+        }
+    }
+
+    /* guarded by this */
+    private void append(String id, int version, byte[] payload) throws IOException {
+        byte[] idBytes = id.getBytes(UTF8);
+        if (idBytes.length > Short.MAX_VALUE) {
+            throw new IOException("Identifier too long: " + id);
+        }
+        CRC32 crc = new CRC32();
+        crc.update(payload);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH + idBytes.length);
+        header.putInt(RECORD_MAGIC);
+        header.putShort((short) idBytes.length);
+        header.put(idBytes);
+        header.putInt(version);
+        header.putInt(payload.length);
+        header.putInt((int) crc.getValue());
+        header.flip();
+
+        long recordOffset = active.dataSize;
+        long payloadOffset = recordOffset + header.remaining();
+        writeFully(active.channel, header, recordOffset);
+        writeFully(active.channel, ByteBuffer.wrap(payload), payloadOffset);
+        active.dataSize = payloadOffset + payload.length;
+        active.entries.add(new Entry(id, version, payloadOffset, payload.length));
+        register(id, version, new Location(active, payloadOffset, payload.length));
+
+        if (active.dataSize >= maxSegmentSize) {
+            seal(active);
+            active = createSegment(active.number + 1);
+        } else if (durability == DurableWriter.Durability.PER_WRITE) {
+            active.channel.force(true);
+        }
+    }
+
+    private void register(String id, int version, Location loc) {
+        ConcurrentNavigableMap<Integer, Location> versions = index.get(id);
+        if (versions == null) {
+            versions = new ConcurrentSkipListMap<Integer, Location>();
+            ConcurrentNavigableMap<Integer, Location> existing = index.putIfAbsent(id, versions);
+            if (existing != null) {
+                versions = existing;
+            }
+        }
+        Location previous = versions.put(version, loc);
+        if (previous != null) {
+            previous.segment.deadBytes.addAndGet(previous.recordLength(id));
+        }
+    }
+
+    private void rebuildIndex() throws IOException {
+        File[] files = segmentDirectory.listFiles();
+        List<Segment> found = new ArrayList<Segment>();
+        for (File f : files) {
+            Matcher m = segmentPattern.matcher(f.getName());
+            if (m.matches()) {
+                found.add(new Segment(Integer.parseInt(m.group(1)), f));
+            }
+        }
+        if (found.isEmpty()) {
+            active = createSegment(1);
+            return;
+        }
+        Segment[] sorted = found.toArray(new Segment[found.size()]);
+        Arrays.sort(sorted);
+        for (int i = 0; i < sorted.length; i++) {
+            Segment seg = sorted[i];
+            boolean last = (i == sorted.length - 1);
+            List<Entry> entries = readFooter(seg);
+            if (entries == null) {
+                LOG.info("scanning unsealed segment " + seg.file.getAbsolutePath());
+                entries = scan(seg);
+            } else {
+                seg.sealed = true;
+            }
+            segments.put(seg.number, seg);
+            for (Entry e : entries) {
+                register(e.id, e.version, new Location(seg, e.offset, e.length));
+            }
+            if (last || !seg.sealed) {
+                // reopen the segment for writing and drop the footer or any
+                // incomplete record at its end
+                seg.channel = new RandomAccessFile(seg.file, "rw").getChannel();
+                seg.channel.truncate(seg.dataSize);
+                seg.entries = entries;
+                seg.sealed = false;
+                if (last) {
+                    active = seg;
+                } else {
+                    seal(seg);
+                }
+            }
+        }
+        LOG.info("rebuilt segment index with " + index.size() + " entities from " + sorted.length + " segments");
+    }
+
+    private Segment createSegment(int number) throws IOException {
+        Segment seg = new Segment(number, new File(segmentDirectory, String.format("segment-%08d.log", number)));
+        seg.channel = new RandomAccessFile(seg.file, "rw").getChannel();
+        seg.entries = new ArrayList<Entry>();
+        segments.put(number, seg);
+        if (durability != DurableWriter.Durability.NONE) {
+            DurableWriter.DirectorySync.force(segmentDirectory);
+        }
+        return seg;
+    }
+
+    private void closeActive() throws IOException {
+        if (active != null) {
+            active.channel.close();
+            active = null;
+        }
+    }
+
+    /* write the footer listing the segment's records and close it for writing */
+    private void seal(Segment seg) throws IOException {
+        int footerSize = TRAILER_LENGTH;
+        for (Entry e : seg.entries) {
+            footerSize += e.footerLength();
+        }
+        ByteBuffer footer = ByteBuffer.allocate(footerSize);
+        for (Entry e : seg.entries) {
+            byte[] idBytes = e.id.getBytes(UTF8);
+            footer.putShort((short) idBytes.length);
+            footer.put(idBytes);
+            footer.putInt(e.version);
+            footer.putLong(e.offset);
+            footer.putInt(e.length);
+        }
+        footer.putLong(seg.dataSize);
+        footer.putInt(seg.entries.size());
+        footer.putInt(FOOTER_MAGIC);
+        footer.flip();
+        writeFully(seg.channel, footer, seg.dataSize);
+        seg.channel.force(true);
+        seg.channel.close();
+        seg.channel = null;
+        seg.entries = null;
+        seg.sealed = true;
+    }
+
+    /**
+     * Read the record list from a sealed segment's footer
+     *
+     * @return the entries or <code>null</code> if the segment is not sealed
+     */
+    private List<Entry> readFooter(Segment seg) throws IOException {
+        FileChannel channel = new FileInputStream(seg.file).getChannel();
+        try {
+            long size = channel.size();
+            if (size < TRAILER_LENGTH) {
+                return null;
+            }
+            ByteBuffer trailer = readFully(channel, size - TRAILER_LENGTH, TRAILER_LENGTH);
+            long footerStart = trailer.getLong();
+            int count = trailer.getInt();
+            if (trailer.getInt() != FOOTER_MAGIC || footerStart < 0 || footerStart > size - TRAILER_LENGTH) {
+                return null;
+            }
+            ByteBuffer footer = readFully(channel, footerStart, (int) (size - TRAILER_LENGTH - footerStart));
+            List<Entry> entries = new ArrayList<Entry>(count);
+            for (int i = 0; i < count; i++) {
+                byte[] idBytes = new byte[footer.getShort()];
+                footer.get(idBytes);
+                entries.add(new Entry(new String(idBytes, UTF8), footer.getInt(), footer.getLong(), footer
+                        .getInt()));
+            }
+            seg.dataSize = footerStart;
+            return entries;
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Read the records of an unsealed segment one by one, stopping at the first
+     * incomplete or corrupt record
+     */
+    private List<Entry> scan(Segment seg) throws IOException {
+        List<Entry> entries = new ArrayList<Entry>();
+        FileChannel channel = new FileInputStream(seg.file).getChannel();
+        try {
+            long size = channel.size();
+            long pos = 0;
+            while (pos + HEADER_LENGTH <= size) {
+                ByteBuffer start = readFully(channel, pos, 6);
+                if (start.getInt() != RECORD_MAGIC) {
+                    break;
+                }
+                int idLength = start.getShort();
+                long payloadOffset = pos + HEADER_LENGTH + idLength;
+                if (payloadOffset > size) {
+                    break;
+                }
+                ByteBuffer rest = readFully(channel, pos + 6, idLength + 12);
+                byte[] idBytes = new byte[idLength];
+                rest.get(idBytes);
+                int version = rest.getInt();
+                int length = rest.getInt();
+                int checksum = rest.getInt();
+                if (length < 0 || payloadOffset + length > size) {
+                    break;
+                }
+                CRC32 crc = new CRC32();
+                crc.update(readFully(channel, payloadOffset, length).array());
+                if ((int) crc.getValue() != checksum) {
+                    break;
+                }
+                entries.add(new Entry(new String(idBytes, UTF8), version, payloadOffset, length));
+                pos = payloadOffset + length;
+            }
+            if (pos < size) {
+                LOG.warn("discarding " + (size - pos) + " bytes of incomplete records in " + seg.file.getAbsolutePath());
+            }
+            seg.dataSize = pos;
+            return entries;
+        } finally {
+            channel.close();
+        }
+    }
+
+    private static ByteBuffer readFully(FileChannel channel, long position, int length) throws IOException {
+        ByteBuffer buf = ByteBuffer.allocate(length);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                throw new EOFException("Unexpected end of segment at " + (position + buf.position()));
+            }
+        }
+        buf.flip();
+        return buf;
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buf, long position) throws IOException {
+        long pos = position;
+        while (buf.hasRemaining()) {
+            pos += channel.write(buf, pos);
+        }
+    }
+
+    private static final class Segment implements Comparable<Segment> {
+
+        private final int number;
+
+        private final File file;
+
+        private final AtomicLong deadBytes = new AtomicLong();
+
+        /* the size of the record area, i.e. the offset of the footer */
+        private volatile long dataSize;
+
+        private volatile boolean sealed;
+
+        /* the size up to which the segment has been forced, guarded by the segment */
+        private long forcedSize;
+
+        /* only set while the segment is open for writing */
+        private FileChannel channel;
+
+        private List<Entry> entries;
+
+        private Segment(int number, File file) {
+            this.number = number;
+            this.file = file;
+        }
+
+        public int compareTo(Segment o) {
+            return number < o.number ? -1 : (number == o.number ? 0 : 1);
+        }
+    }
+
+    private static final class Location {
+
+        private final Segment segment;
+
+        private final long offset;
+
+        private final int length;
+
+        private Location(Segment segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private long recordLength(String id) {
+            return HEADER_LENGTH + id.getBytes(UTF8).length + length;
+        }
+    }
+
+    private static final class Entry {
+
+        private final String id;
+
+        private final int version;
+
+        private final long offset;
+
+        private final int length;
+
+        private Entry(String id, int version, long offset, int length) {
+            this.id = id;
+            this.version = version;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        private int footerLength() {
+            return 2 + id.getBytes(UTF8).length + 4 + 8 + 4;
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package eu.scape_project;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Storage backend for the serialized versions of intellectual entities used
+ * by the {@link MockContainer}
+ */
+public interface Storage {
+
+    /**
+     * Check if a version of an entity exists
+     *
+     * @param id
+     *            the entity's id
+     * @param versionNumber
+     *            the version to check or <code>null</code> to check for any
+     *            version
+     */
+    boolean exists(String id, Integer versionNumber) throws IOException;
+
+    /**
+     * Get the ids of all stored entities in no particular order
+     */
+    List<String> getEntityIds() throws IOException;
+
+    int getLatestVersionNumber(String id) throws IOException;
+
+    int getNewVersionNumber(String id) throws IOException;
+
+    /**
+     * Get the version numbers of an entity in ascending numerical order
+     */
+    List<String> getVersionList(String id) throws IOException;
+
+    byte[] getXML(String id) throws Exception;
+
+    byte[] getXML(String id, Integer version) throws Exception;
+
+    /**
+     * Open a stored version for streaming its content to a channel without
+     * loading it into memory. The caller has to close the returned blob.
+     */
+    StorageBlob openXML(String id, Integer version) throws Exception;
+
+    /**
+     * Get the hex encoded SHA-256 hash of a version's content, e.g. for use
+     * as an ETag or for integrity checks
+     */
+    String getContentHash(String id, Integer version) throws Exception;
+
+    void saveXML(byte[] blob, String name, int version, boolean overwrite) throws Exception;
+
+    /**
+     * Save a new version of an entity without locking it. The version number
+     * is claimed atomically, so that concurrent writers of the same entity
+     * never get the same version, a writer finding its version claimed
+     * retries with the next higher one.
+     *
+     * @param version
+     *            the first version number to try
+     * @return the version number the blob has been saved as
+     */
+    int saveNewVersion(byte[] blob, String name, int version) throws Exception;
+
+    /**
+     * Get the allocator of new version numbers, e.g. for its conflict and
+     * retry counters
+     */
+    VersionAllocator getVersionAllocator();
+
+    /**
+     * Remove all stored entities
+     */
+    void purge() throws Exception;
+
+    /**
+     * Release the resources held by the storage
+     */
+    void close() throws IOException;
+}
@@ -0,0 +1,125 @@
+package eu.scape_project;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * Handle on a stored version of an entity, which can be transferred to a
+ * channel without copying its contents onto the heap. Callers have to close
+ * the blob after use. Versions which are not stored as plain files, e.g. ones
+ * reconstructed from deltas, are wrapped in memory.
+ */
+public class StorageBlob implements Closeable {
+
+    private final FileChannel channel;
+
+    private final ByteBuffer buffer;
+
+    private final long position;
+
+    private final long length;
+
+    public StorageBlob(FileChannel channel, long position, long length) {
+        this.channel = channel;
+        this.buffer = null;
+        this.position = position;
+        this.length = length;
+    }
+
+    public StorageBlob(byte[] data) {
+        this(ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Wrap the remaining bytes of a buffer, e.g. a cached direct buffer. The
+     * buffer's position and limit are not modified.
+     */
+    public StorageBlob(ByteBuffer data) {
+        this.channel = null;
+        this.buffer = data.duplicate();
+        this.position = 0;
+        this.length = data.remaining();
+    }
+
+    public long length() {
+        return length;
+    }
+
+    /**
+     * Transfer the blob's content to the given channel using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     *
+     * @return the number of bytes transferred
+     */
+    public long transferTo(WritableByteChannel target) throws IOException {
+        return transferTo(target, 0);
+    }
+
+    /**
+     * Transfer the blob's content starting at the given offset to the given
+     * channel
+     *
+     * @return the number of bytes transferred
+     */
+    public long transferTo(WritableByteChannel target, long offset) throws IOException {
+        if (offset < 0 || offset > length) {
+            throw new IllegalArgumentException("Offset " + offset + " exceeds length " + length);
+        }
+        if (buffer != null) {
+            ByteBuffer src = buffer.duplicate();
+            src.position(src.position() + (int) offset);
+            while (src.hasRemaining()) {
+                target.write(src);
+            }
+            return length - offset;
+        }
+        long transferred = 0;
+        while (offset + transferred < length) {
+            long count = channel.transferTo(position + offset + transferred, length - offset - transferred, target);
+            if (count <= 0) {
+                throw new IOException("Unable to transfer blob, " + transferred + " of " + (length - offset) +
+                        " bytes written");
+            }
+            transferred += count;
+        }
+        return transferred;
+    }
+
+    /**
+     * Read the blob's content starting at the given offset into the buffer
+     *
+     * @return the number of bytes read, which is less than the buffer's
+     *         remaining space only at the end of the blob
+     */
+    public int read(ByteBuffer dst, long offset) throws IOException {
+        int count = (int) Math.min(dst.remaining(), Math.max(0, length - offset));
+        if (buffer != null) {
+            ByteBuffer src = buffer.duplicate();
+            src.position(src.position() + (int) offset);
+            src.limit(src.position() + count);
+            dst.put(src);
+            return count;
+        }
+        int read = 0;
+        while (read < count) {
+            ByteBuffer slice = dst.duplicate();
+            slice.limit(slice.position() + count - read);
+            int n = channel.read(slice, position + offset + read);
+            if (n < 0) {
+                break;
+            }
+            dst.position(slice.position());
+            read += n;
+        }
+        return read;
+    }
+
+    public void close() throws IOException {
+        if (channel != null) {
+            channel.close();
+        }
+    }
+}
@@ -0,0 +1,72 @@
+package eu.scape_project;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Optimistic allocation of new version numbers. Instead of locking an entity
+ * while its next version is determined and written, writers claim a version
+ * number with an atomic create-if-absent operation of the storage backend and
+ * retry with the next number if another writer was faster. The allocator
+ * counts the allocations which ran into such a conflict and the retries they
+ * needed.
+ */
+public class VersionAllocator {
+
+    private final AtomicLong allocations = new AtomicLong();
+
+    private final AtomicLong conflicts = new AtomicLong();
+
+    private final AtomicLong retries = new AtomicLong();
+
+    /**
+     * Claim the first free version number starting at the given one
+     *
+     * @return the claimed version number
+     */
+    public int allocate(String id, int version, Slots slots) throws IOException {
+        allocations.incrementAndGet();
+        int attempts = 0;
+        while (!slots.tryClaim(id, version)) {
+            if (attempts++ == 0) {
+                conflicts.incrementAndGet();
+            }
+            retries.incrementAndGet();
+            version++;
+        }
+        return version;
+    }
+
+    public long getAllocations() {
+        return allocations.get();
+    }
+
+    /**
+     * Get the number of allocations which found their first version number
+     * taken
+     */
+    public long getConflicts() {
+        return conflicts.get();
+    }
+
+    /**
+     * Get the total number of version numbers tried in vain
+     */
+    public long getRetries() {
+        return retries.get();
+    }
+
+    /**
+     * The version slots of a storage backend
+     */
+    public interface Slots {
+
+        /**
+         * Atomically claim a version of an entity, the claim has to fail if
+         * the version exists or has been claimed by another writer already
+         *
+         * @return <code>true</code> if the version has been claimed
+         */
+        boolean tryClaim(String id, int version) throws IOException;
+    }
+}
@@ -0,0 +1,178 @@
+package eu.scape_project;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * In-memory catalog of the version numbers available for each entity. The
+ * version numbers of an entity are loaded lazily from the storage backend on
+ * first access and kept in a sorted primitive int array afterwards, so that
+ * lookups of the latest version, existence checks and version lists do not
+ * have to touch the file system.
+ */
+public class VersionCatalog {
+
+    private final ConcurrentMap<String, VersionSet> versions = new ConcurrentHashMap<String, VersionSet>();
+
+    private final Loader loader;
+
+    public VersionCatalog(Loader loader) {
+        this.loader = loader;
+    }
+
+    /**
+     * Register a newly stored version of an entity
+     */
+    public void add(String id, int version) throws IOException {
+        VersionSet set = getVersionSet(id);
+        if (set == null) {
+            set = new VersionSet(new int[0]);
+            VersionSet existing = versions.putIfAbsent(id, set);
+            if (existing != null) {
+                set = existing;
+            }
+        }
+        set.add(version);
+    }
+
+    public void clear() {
+        versions.clear();
+    }
+
+    public boolean contains(String id, int version) throws IOException {
+        VersionSet set = getVersionSet(id);
+        return set != null && set.contains(version);
+    }
+
+    public boolean isEmpty(String id) throws IOException {
+        return getVersionSet(id) == null;
+    }
+
+    /**
+     * Get the highest version number of an entity
+     *
+     * @return the latest version or -1 if no version of the entity exists
+     */
+    public int latest(String id) throws IOException {
+        VersionSet set = getVersionSet(id);
+        return set == null ? -1 : set.last();
+    }
+
+    /**
+     * Get all version numbers of an entity in ascending numerical order
+     */
+    public int[] list(String id) throws IOException {
+        VersionSet set = getVersionSet(id);
+        return set == null ? new int[0] : set.toArray();
+    }
+
+    /**
+     * Get the next lower version of an entity
+     *
+     * @return the version or -1 if there is no lower version
+     */
+    public int lower(String id, int version) throws IOException {
+        VersionSet set = getVersionSet(id);
+        return set == null ? -1 : set.lower(version);
+    }
+
+    /**
+     * Get the next higher version of an entity
+     *
+     * @return the version or -1 if there is no higher version
+     */
+    public int higher(String id, int version) throws IOException {
+        VersionSet set = getVersionSet(id);
+        return set == null ? -1 : set.higher(version);
+    }
+
+    public void remove(String id) {
+        versions.remove(id);
+    }
+
+    private VersionSet getVersionSet(String id) throws IOException {
+        VersionSet set = versions.get(id);
+        if (set != null) {
+            return set;
+        }
+        int[] loaded = loader.load(id);
+        if (loaded.length == 0) {
+            // don't keep empty entries for unknown ids around
+            return null;
+        }
+        set = new VersionSet(loaded);
+        VersionSet existing = versions.putIfAbsent(id, set);
+        return existing == null ? set : existing;
+    }
+
+    /**
+     * Callback used by the catalog to read the version numbers of an entity
+     * from the underlying storage
+     */
+    public interface Loader {
+        int[] load(String id) throws IOException;
+    }
+
+    /**
+     * A sorted set of primitive ints backed by an array
+     */
+    static final class VersionSet {
+
+        private int[] values;
+
+        private int size;
+
+        VersionSet(int[] unsorted) {
+            this.values = unsorted.clone();
+            Arrays.sort(this.values);
+            // remove duplicates in place
+            int n = 0;
+            for (int i = 0; i < values.length; i++) {
+                if (n == 0 || values[n - 1] != values[i]) {
+                    values[n++] = values[i];
+                }
+            }
+            this.size = n;
+        }
+
+        synchronized void add(int version) {
+            int pos = Arrays.binarySearch(values, 0, size, version);
+            if (pos >= 0) {
+                return;
+            }
+            pos = -pos - 1;
+            if (size == values.length) {
+                values = Arrays.copyOf(values, Math.max(4, size * 2));
+            }
+            System.arraycopy(values, pos, values, pos + 1, size - pos);
+            values[pos] = version;
+            size++;
+        }
+
+        synchronized boolean contains(int version) {
+            return Arrays.binarySearch(values, 0, size, version) >= 0;
+        }
+
+        synchronized int last() {
+            return size == 0 ? -1 : values[size - 1];
+        }
+
+        synchronized int lower(int version) {
+            int pos = Arrays.binarySearch(values, 0, size, version);
+            int index = (pos >= 0 ? pos : -pos - 1) - 1;
+            return index >= 0 ? values[index] : -1;
+        }
+
+        synchronized int higher(int version) {
+            int pos = Arrays.binarySearch(values, 0, size, version);
+            int index = pos >= 0 ? pos + 1 : -pos - 1;
+            return index < size ? values[index] : -1;
+        }
+
+        synchronized int[] toArray() {
+            return Arrays.copyOf(values, size);
+        }
+    }
+}
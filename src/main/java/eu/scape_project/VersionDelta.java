@@ -0,0 +1,179 @@
+package eu.scape_project;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import org.apache.commons.io.IOUtils;
+
+/**
+ * Encodes a version of an entity as a compressed delta against a base version.
+ * The delta is a sequence of copy operations referencing ranges of the base
+ * and insert operations carrying literal bytes, which is deflated afterwards.
+ * Matches are found by indexing the base in fixed size blocks and searching the
+ * target for these blocks with a rolling hash, so near-identical documents
+ * like consecutive versions of the same entity shrink to a few bytes.
+ */
+public final class VersionDelta {
+
+    private static final int BLOCK_SIZE = 16;
+
+    private static final int HASH_BASE = 31;
+
+    private static final int OP_COPY = 0;
+
+    private static final int OP_INSERT = 1;
+
+    private VersionDelta() {
+    }
+
+    /**
+     * Create a compressed delta which transforms base into target
+     */
+    public static byte[] encode(byte[] base, byte[] target) throws IOException {
+        Map<Integer, Integer> blocks = new HashMap<Integer, Integer>(base.length / BLOCK_SIZE * 2 + 1);
+        for (int i = 0; i + BLOCK_SIZE <= base.length; i += BLOCK_SIZE) {
+            Integer hash = hash(base, i);
+            if (!blocks.containsKey(hash)) {
+                blocks.put(hash, i);
+            }
+        }
+
+        int power = 1;
+        for (int i = 1; i < BLOCK_SIZE; i++) {
+            power *= HASH_BASE;
+        }
+
+        ByteArrayOutputStream bos = new ByteArrayOutputStream();
+        DeflaterOutputStream out = new DeflaterOutputStream(bos);
+        int pending = 0; // start of the bytes not yet emitted
+        int pos = 0;
+        int hash = target.length >= BLOCK_SIZE ? hash(target, 0) : 0;
+        while (pos + BLOCK_SIZE <= target.length) {
+            Integer candidate = blocks.get(hash);
+            if (candidate != null && matches(base, candidate, target, pos, BLOCK_SIZE)) {
+                int baseStart = candidate;
+                int targetStart = pos;
+                // extend the match backwards into the pending literals and
+                // forwards as far as possible
+                while (baseStart > 0 && targetStart > pending && base[baseStart - 1] == target[targetStart - 1]) {
+                    baseStart--;
+                    targetStart--;
+                }
+                int end = pos + BLOCK_SIZE;
+                int baseEnd = candidate + BLOCK_SIZE;
+                while (end < target.length && baseEnd < base.length && base[baseEnd] == target[end]) {
+                    end++;
+                    baseEnd++;
+                }
+                if (targetStart > pending) {
+                    writeInsert(out, target, pending, targetStart - pending);
+                }
+                writeCopy(out, baseStart, end - targetStart);
+                pending = end;
+                pos = end;
+                if (pos + BLOCK_SIZE <= target.length) {
+                    hash = hash(target, pos);
+                }
+                continue;
+            }
+            if (pos + BLOCK_SIZE < target.length) {
+                hash = (hash - target[pos] * power) * HASH_BASE + target[pos + BLOCK_SIZE];
+            }
+            pos++;
+        }
+        if (pending < target.length) {
+            writeInsert(out, target, pending, target.length - pending);
+        }
+        out.close();
+        return bos.toByteArray();
+    }
+
+    /**
+     * Reconstruct a version by applying a delta created by
+     * {@link #encode(byte[], byte[])} to its base
+     */
+    public static byte[] apply(byte[] base, byte[] delta) throws IOException {
+        InputStream in = new InflaterInputStream(new ByteArrayInputStream(delta));
+        DataInputStream data = new DataInputStream(in);
+        ByteArrayOutputStream target = new ByteArrayOutputStream(base.length + 64);
+        int op;
+        while ((op = in.read()) != -1) {
+            if (op == OP_COPY) {
+                int offset = readVarInt(in);
+                int length = readVarInt(in);
+                if (offset < 0 || length < 0 || offset + length > base.length) {
+                    throw new IOException("Invalid copy operation in delta");
+                }
+                target.write(base, offset, length);
+            } else if (op == OP_INSERT) {
+                byte[] literal = new byte[readVarInt(in)];
+                data.readFully(literal);
+                target.write(literal);
+            } else {
+                throw new IOException("Unknown delta operation " + op);
+            }
+        }
+        IOUtils.closeQuietly(in);
+        return target.toByteArray();
+    }
+
+    private static int hash(byte[] data, int offset) {
+        int h = 0;
+        for (int i = offset; i < offset + BLOCK_SIZE; i++) {
+            h = h * HASH_BASE + data[i];
+        }
+        return h;
+    }
+
+    private static boolean matches(byte[] a, int aOffset, byte[] b, int bOffset, int length) {
+        for (int i = 0; i < length; i++) {
+            if (a[aOffset + i] != b[bOffset + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeCopy(DeflaterOutputStream out, int offset, int length) throws IOException {
+        out.write(OP_COPY);
+        writeVarInt(out, offset);
+        writeVarInt(out, length);
+    }
+
+    private static void writeInsert(DeflaterOutputStream out, byte[] data, int offset, int length) throws IOException {
+        out.write(OP_INSERT);
+        writeVarInt(out, length);
+        out.write(data, offset, length);
+    }
+
+    private static void writeVarInt(DeflaterOutputStream out, int value) throws IOException {
+        while ((value & ~0x7f) != 0) {
+            out.write((value & 0x7f) | 0x80);
+            value >>>= 7;
+        }
+        out.write(value);
+    }
+
+    private static int readVarInt(InputStream in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.read();
+            if (b == -1) {
+                throw new EOFException("Truncated delta");
+            }
+            value |= (b & 0x7f) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Invalid varint in delta");
+    }
+}
@@ -0,0 +1,119 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import eu.scape_project.model.Identifier;
+import eu.scape_project.model.IntellectualEntity;
+
+public class AsyncIngestEngineTest {
+
+    @Test
+    public void testIngestAfterDelay() throws Exception {
+        final BlockingQueue<IntellectualEntity> accepted = new LinkedBlockingQueue<IntellectualEntity>();
+        final BlockingQueue<IntellectualEntity> ingested = new LinkedBlockingQueue<IntellectualEntity>();
+        AsyncIngestEngine engine = new AsyncIngestEngine(new AsyncIngestEngine.Ingester() {
+            public void accepted(IntellectualEntity entity) {
+                accepted.add(entity);
+            }
+
+            public void ingest(IntellectualEntity entity) throws Exception {
+                ingested.add(entity);
+            }
+        }, 2, 10, 200);
+        try {
+            IntellectualEntity entity = createEntity();
+            long start = System.currentTimeMillis();
+            assertTrue(engine.submit(entity));
+            assertSame(entity, accepted.poll());
+            assertSame(entity, engine.getPending(entity.getIdentifier().getValue()));
+            assertSame(entity, ingested.poll(5, TimeUnit.SECONDS));
+            long elapsed = System.currentTimeMillis() - start;
+            assertTrue("ingested after " + elapsed + " ms", elapsed >= 200 && elapsed < 2000);
+            // the entity is removed from the pending ones after the ingester returned
+            for (int i = 0; i < 100 && engine.getPendingCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertNull(engine.getPending(entity.getIdentifier().getValue()));
+            assertEquals(0, engine.getPendingCount());
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testRejectWhenFull() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final BlockingQueue<IntellectualEntity> accepted = new LinkedBlockingQueue<IntellectualEntity>();
+        AsyncIngestEngine engine = new AsyncIngestEngine(new AsyncIngestEngine.Ingester() {
+            public void accepted(IntellectualEntity entity) {
+                accepted.add(entity);
+            }
+
+            public void ingest(IntellectualEntity entity) throws Exception {
+                release.await();
+            }
+        }, 1, 2, 0);
+        try {
+            assertTrue(engine.submit(createEntity()));
+            assertTrue(engine.submit(createEntity()));
+            IntellectualEntity rejected = createEntity();
+            assertFalse(engine.submit(rejected));
+            assertNull(engine.getPending(rejected.getIdentifier().getValue()));
+            assertFalse(accepted.contains(rejected));
+            assertEquals(2, accepted.size());
+            assertEquals(1, engine.getRejected());
+            assertEquals(1, engine.getRetryAfter());
+            release.countDown();
+            for (int i = 0; i < 100 && engine.getPendingCount() > 0; i++) {
+                Thread.sleep(10);
+            }
+            assertTrue(engine.submit(createEntity()));
+        } finally {
+            engine.close();
+        }
+    }
+
+    @Test
+    public void testFailedAcceptReleasesSlot() throws Exception {
+        AsyncIngestEngine engine = new AsyncIngestEngine(new AsyncIngestEngine.Ingester() {
+            public void accepted(IntellectualEntity entity) throws Exception {
+                throw new IOException("unable to record the state");
+            }
+
+            public void ingest(IntellectualEntity entity) throws Exception {
+                fail("the entity must not be scheduled");
+            }
+        }, 1, 1, 0);
+        try {
+            IntellectualEntity entity = createEntity();
+            try {
+                engine.submit(entity);
+                fail("the failure has to be passed on");
+            } catch (IOException e) {
+                // expected
+            }
+            assertNull(engine.getPending(entity.getIdentifier().getValue()));
+            assertEquals(0, engine.getPendingCount());
+        } finally {
+            engine.close();
+        }
+    }
+
+    private static IntellectualEntity createEntity() {
+        return new IntellectualEntity.Builder().identifier(new Identifier(UUID.randomUUID().toString())).build();
+    }
+}
@@ -0,0 +1,104 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.HashSet;
+
+import org.apache.lucene.analysis.SimpleAnalyzer;
+import org.apache.lucene.analysis.standard.StandardAnalyzer;
+import org.apache.lucene.queryParser.ParseException;
+import org.apache.lucene.search.SortField;
+import org.apache.lucene.util.Version;
+import org.junit.Test;
+
+public class CQLParserTest {
+
+    private final CQLParser parser = new CQLParser(new SimpleAnalyzer(Version.LUCENE_36), new String[] { "title",
+            "description" }, new HashSet<String>(Arrays.asList("id")));
+
+    @Test
+    public void testTerms() throws Exception {
+        assertEquals("title:scape description:scape", parse("Scape"));
+        assertEquals("title:scape", parse("dc.title = scape"));
+        assertEquals("title:\"digital preservation\"", parse("dc.title=\"Digital Preservation\""));
+        assertEquals("+title:digital +title:preservation", parse("dc.title all \"digital preservation\""));
+        assertEquals("title:digital title:preservation", parse("dc.title any \"digital preservation\""));
+        assertEquals("title:pres*", parse("dc.title=Pres*"));
+        assertEquals("title:p?es*v", parse("dc.title=p?es*v"));
+        assertEquals("id:Entity-1", parse("rec.identifier=Entity-1"));
+        assertEquals("+*:* -id:Entity-1", parse("rec.identifier<>Entity-1"));
+        assertEquals("title:[m TO *]", parse("dc.title>=M").replace("null", "*"));
+    }
+
+    @Test
+    public void testBooleans() throws Exception {
+        assertEquals("+title:scape -title:planets", parse("dc.title=scape not dc.title=planets"));
+        assertEquals("+(title:a title:b) +description:c", parse("(dc.title=a or dc.title=b) AND dc.description=c"));
+        assertEquals("+title:and +title:or", parse("dc.title=\"and\" and dc.title=\"or\""));
+    }
+
+    @Test
+    public void testProximity() throws Exception {
+        assertEquals("spanNear([title:digital, title:preservation], 2, false)",
+                parse("dc.title=digital prox/unit=word/distance<=3 dc.title=preservation"));
+        assertEquals("spanNear([title:a, spanNear([title:b, title:c], 0, true)], 0, true)",
+                parse("dc.title=a prox/ordered dc.title=\"b c\""));
+    }
+
+    @Test
+    public void testNumericRangesAndSort() throws Exception {
+        CQLParser numeric = new CQLParser(new SimpleAnalyzer(Version.LUCENE_36), new String[] { "title" },
+                new HashSet<String>(Arrays.asList("id")), new HashSet<String>(Arrays.asList("width")));
+        assertEquals("width:{640 TO *]", numeric.parse("width>640").toString());
+        assertEquals("width:[640 TO 640]", numeric.parse("width=640").toString());
+        CQLParser.CompiledQuery compiled = numeric.compile("dc.title=scape sortBy width/sort.descending");
+        assertEquals("title:scape", compiled.getQuery().toString());
+        assertEquals(SortField.LONG, compiled.getSort().getSort()[0].getType());
+        assertEquals(true, compiled.getSort().getSort()[0].getReverse());
+    }
+
+    @Test(expected = ParseException.class)
+    public void testSortByAnalyzedField() throws Exception {
+        parser.compile("dc.title=scape sortBy title");
+    }
+
+    @Test
+    public void testIndexNamesAreCaseInsensitive() throws Exception {
+        CQLParser numeric = new CQLParser(new SimpleAnalyzer(Version.LUCENE_36), new String[] { "title" },
+                new HashSet<String>(Arrays.asList("id")), new HashSet<String>(Arrays.asList("mix.imageWidth")));
+        assertEquals("title:scape", numeric.parse("DC.Title=scape").toString());
+        assertEquals("marc.245a:scape", numeric.parse("MARC.245A=scape").toString());
+        assertEquals("mix.imageWidth:[640 TO 640]", numeric.parse("MIX.imagewidth=640").toString());
+    }
+
+    @Test
+    public void testStopWordsInPhrases() throws Exception {
+        CQLParser standard = new CQLParser(new StandardAnalyzer(Version.LUCENE_36), new String[] { "title" },
+                new HashSet<String>(Arrays.asList("id")));
+        assertEquals("title:\"scans ? ? archive\"", standard.parse("dc.title=\"scans of the archive\"").toString());
+        assertEquals("title:2012", standard.parse("dc.title=2012").toString());
+        assertEquals("", standard.parse("dc.title=\"the\"").toString());
+        assertEquals("spanNear([title:old, spanNear([title:scans, title:archive], 2, true)], 0, true)", standard
+                .parse("dc.title=old prox/ordered dc.title=\"scans of the archive\"").toString());
+    }
+
+    @Test
+    public void testNormalize() throws Exception {
+        assertEquals("dc.title = \"a  b\" and x", CQLParser.normalize("  dc.title   =  \"a  b\"\tand x "));
+    }
+
+    @Test(expected = ParseException.class)
+    public void testUnbalancedParentheses() throws Exception {
+        parse("(dc.title=a or dc.title=b");
+    }
+
+    @Test(expected = ParseException.class)
+    public void testProximityOfBooleans() throws Exception {
+        parse("(dc.title=a and dc.title=b) prox dc.title=c");
+    }
+
+    private String parse(String cql) throws ParseException {
+        return parser.parse(cql).toString();
+    }
+}
@@ -0,0 +1,175 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.nio.channels.Channels;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class CachingStorageTest {
+
+    private File directory;
+
+    private PosixStorage storage;
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-cache-" + UUID.randomUUID());
+        storage = new PosixStorage(directory.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testHitsAndMisses() throws Exception {
+        CachingStorage cache = new CachingStorage(storage, 1024 * 1024, false);
+        String id = UUID.randomUUID().toString();
+        cache.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        assertArrayEquals("<version>1</version>".getBytes(), cache.getXML(id));
+        assertArrayEquals("<version>1</version>".getBytes(), cache.getXML(id, 1));
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getHits());
+        assertEquals(20, cache.getSize());
+    }
+
+    @Test
+    public void testSaveInvalidates() throws Exception {
+        CachingStorage cache = new CachingStorage(storage, 1024 * 1024, false);
+        String id = UUID.randomUUID().toString();
+        cache.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        cache.getXML(id, 1);
+        cache.saveXML("<version>one</version>".getBytes(), id, 1, true);
+        assertArrayEquals("<version>one</version>".getBytes(), cache.getXML(id, 1));
+        assertEquals(2, cache.getMisses());
+
+        // the latest version is resolved before the cache is consulted
+        cache.saveXML("<version>2</version>".getBytes(), id, 2, false);
+        assertArrayEquals("<version>2</version>".getBytes(), cache.getXML(id));
+    }
+
+    @Test
+    public void testUnrelatedSaveKeepsFill() throws Exception {
+        final CountDownLatch reading = new CountDownLatch(1);
+        final CountDownLatch saved = new CountDownLatch(1);
+        final String slow = UUID.randomUUID().toString();
+        // only one storage may be open on the directory
+        storage.close();
+        PosixStorage blocking = new PosixStorage(directory.getAbsolutePath()) {
+            @Override
+            public StorageBlob openXML(String id, Integer version) throws Exception {
+                StorageBlob blob = super.openXML(id, version);
+                if (id.equals(slow)) {
+                    reading.countDown();
+                    saved.await();
+                }
+                return blob;
+            }
+        };
+        storage = blocking;
+        final CachingStorage cache = new CachingStorage(blocking, 1024 * 1024, false);
+        cache.saveXML("<version>1</version>".getBytes(), slow, 1, false);
+        String other = UUID.randomUUID().toString();
+        while (CachingStorage.stripe(CachingStorage.key(other, 1)) == CachingStorage.stripe(CachingStorage.key(slow,
+                1))) {
+            other = UUID.randomUUID().toString();
+        }
+        Thread reader = new Thread() {
+            public void run() {
+                try {
+                    cache.getXML(slow, 1);
+                } catch (Exception e) {
+                    throw new IllegalStateException(e);
+                }
+            }
+        };
+        reader.start();
+        reading.await();
+        // saving a version in another stripe while the read is in progress
+        cache.saveXML("<version>1</version>".getBytes(), other, 1, false);
+        saved.countDown();
+        reader.join();
+
+        long misses = cache.getMisses();
+        cache.getXML(slow, 1);
+        assertEquals(misses, cache.getMisses());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedIsEvicted() throws Exception {
+        CachingStorage cache = new CachingStorage(storage, 4 * 1000, false);
+        String id = UUID.randomUUID().toString();
+        for (int version = 1; version <= 5; version++) {
+            cache.saveXML(new byte[1000], id, version, false);
+        }
+        for (int version : new int[] { 1, 2, 3, 4, 1, 5 }) {
+            cache.getXML(id, version);
+        }
+        assertEquals(1, cache.getEvictions());
+        assertEquals(4000, cache.getSize());
+
+        // version 2 has been evicted, version 1 is still cached
+        long misses = cache.getMisses();
+        cache.getXML(id, 1);
+        assertEquals(misses, cache.getMisses());
+        cache.getXML(id, 2);
+        assertEquals(misses + 1, cache.getMisses());
+    }
+
+    @Test
+    public void testOffHeapBlob() throws Exception {
+        CachingStorage cache = new CachingStorage(storage, 1024 * 1024, true);
+        String id = UUID.randomUUID().toString();
+        cache.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        for (int i = 0; i < 2; i++) {
+            StorageBlob blob = cache.openXML(id, 1);
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            assertEquals(20, blob.transferTo(Channels.newChannel(sink)));
+            blob.close();
+            assertArrayEquals("<version>1</version>".getBytes(), sink.toByteArray());
+        }
+        assertEquals(1, cache.getHits());
+    }
+
+    @Test
+    public void testLargeVersionsArePassedThrough() throws Exception {
+        CachingStorage cache = new CachingStorage(storage, 4 * 1000, true);
+        String id = UUID.randomUUID().toString();
+        byte[] large = new byte[1001];
+        large[1000] = 1;
+        cache.saveXML(large, id, 1, false);
+        for (int i = 0; i < 2; i++) {
+            StorageBlob blob = cache.openXML(id, 1);
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            assertEquals(1001, blob.transferTo(Channels.newChannel(sink)));
+            blob.close();
+            assertArrayEquals(large, sink.toByteArray());
+        }
+        assertArrayEquals(large, cache.getXML(id, 1));
+        assertEquals(0, cache.getSize());
+        assertEquals(3, cache.getMisses());
+    }
+
+    @Test
+    public void testPurgeClearsCache() throws Exception {
+        CachingStorage cache = new CachingStorage(storage, 1024 * 1024, false);
+        String id = UUID.randomUUID().toString();
+        cache.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        cache.getXML(id, 1);
+        cache.purge();
+        assertEquals(0, cache.getSize());
+        assertFalse(cache.exists(id, null));
+    }
+}
@@ -7,18 +7,26 @@ import static org.junit.Assert.fail;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
 import java.net.URI;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.Random;
 import java.util.UUID;
 
 import javax.xml.bind.JAXBElement;
 import javax.xml.namespace.QName;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.transform.Transformer;
+import javax.xml.transform.TransformerFactory;
+import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.stream.StreamResult;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.commons.lang3.RandomStringUtils;
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
@@ -32,17 +40,18 @@ import org.purl.dc.elements._1.ElementContainer;
 import org.purl.dc.elements._1.SimpleLiteral;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
 
 import eu.scape_project.model.BitStream;
 import eu.scape_project.model.BitStream.Type;
 import eu.scape_project.model.Identifier;
 import eu.scape_project.model.IntellectualEntity;
-import eu.scape_project.model.IntellectualEntityCollection;
 import eu.scape_project.model.LifecycleState;
 import eu.scape_project.model.LifecycleState.State;
 import eu.scape_project.model.Representation;
 import eu.scape_project.model.VersionList;
-import eu.scape_project.util.DefaultConverter;
 import eu.scape_project.util.ScapeMarshaller;
 import gov.loc.mets.MetsType;
 
@@ -312,6 +321,40 @@ public class ConnectorAPIMockTest {
         assertTrue(xml.length() > 10); // check for some content
         get.releaseConnection();
     }
+    @Test
+    public void testRetrieveFileContentRange() throws Exception {
+        IntellectualEntity entity = ModelUtil.createEntity(Arrays.asList(ModelUtil.createImageRepresentation(URI
+                .create("https://upload.wikimedia.org/wikipedia/en/7/71/Quebec_citadelles_200x200.png"), null)));
+        HttpPost post = UTIL.createPostEntity(entity);
+        HttpResponse resp = CLIENT.execute(post);
+        post.releaseConnection();
+        assertTrue(resp.getStatusLine().getStatusCode() == 201);
+
+        byte[] content = new byte[1024 * 1024];
+        new Random(42).nextBytes(content);
+        eu.scape_project.model.File f = entity.getRepresentations().get(0).getFiles().iterator().next();
+        HttpPut put = UTIL.createPutFileContent(f, new ByteArrayInputStream(content));
+        resp = CLIENT.execute(put);
+        assertEquals(201, resp.getStatusLine().getStatusCode());
+        assertEquals(ContentHash.of(content), IOUtils.toString(resp.getEntity().getContent()));
+        put.releaseConnection();
+
+        HttpGet get = UTIL.createGetFile(f);
+        get.setHeader("Range", "bytes=1000-1999");
+        resp = CLIENT.execute(get);
+        assertEquals(206, resp.getStatusLine().getStatusCode());
+        assertEquals("bytes 1000-1999/" + content.length, resp.getFirstHeader("Content-Range").getValue());
+        assertTrue(Arrays.equals(Arrays.copyOfRange(content, 1000, 2000), IOUtils.toByteArray(resp.getEntity()
+                .getContent())));
+        get.releaseConnection();
+
+        get = UTIL.createGetFile(f);
+        resp = CLIENT.execute(get);
+        assertEquals(200, resp.getStatusLine().getStatusCode());
+        assertTrue(Arrays.equals(content, IOUtils.toByteArray(resp.getEntity().getContent())));
+        get.releaseConnection();
+    }
+
     @Test
     public void testRetrieveIntellectualEntityWithRefs() throws Exception {
         IntellectualEntity ie = new IntellectualEntity.Builder()
@@ -387,55 +430,80 @@ public class ConnectorAPIMockTest {
 
     @Test
     public void testSearchEntity() throws Exception {
-        // ingest an entity to search in
+        // ingest an entity with a title no other test uses
+        String word = RandomStringUtils.randomAlphabetic(16).toLowerCase();
+        ElementContainer dc = createDCElementContainer();
+        SimpleLiteral title = new SimpleLiteral();
+        title.getContent().add("Searching for " + word);
+        dc.getAny().add(new JAXBElement<SimpleLiteral>(new QName("http://purl.org/dc/elements/1.1/", "title"), SimpleLiteral.class, title));
         IntellectualEntity.Builder ie = new IntellectualEntity.Builder()
                 .identifier(new Identifier(UUID.randomUUID().toString()))
-                .descriptive(createDCElementContainer());
+                .descriptive(dc);
         HttpPost post = UTIL.createPostEntity(ie.build());
         HttpResponse resp = CLIENT.execute(post);
         post.releaseConnection();
         assertTrue(resp.getStatusLine().getStatusCode() == 201);
 
         // and search for the ingested entity
-        HttpGet get = UTIL.createGetSRUEntity("should");
-        resp = CLIENT.execute(get);
-        assertTrue(resp.getStatusLine().getStatusCode() == 200);
-        IntellectualEntityCollection resultSet = (IntellectualEntityCollection) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
-        get.releaseConnection();
-        //assertTrue(resultSet.getEntities().size() == 1);
-        DefaultConverter conv = new DefaultConverter();
-
-       //IntellectualEntity searched = conv.convertMets(resultSet.getEntities().get(0));
-        MetsType mets = (MetsType) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
-        IntellectualEntity searched = conv.convertMets(mets);
-        assertEquals(ie.lifecycleState(new LifecycleState("", State.INGESTED)).build(), searched);
+        List<IntellectualEntity> records = searchSRU(false, "dc.title=" + word, 1);
+        assertEquals(1, records.size());
+        assertEquals(ie.lifecycleState(new LifecycleState("", State.INGESTED)).build(), records.get(0));
     }
 
     @Test
     public void testSearchRepresentation() throws Exception {
-        // ingest an entity to search in
+        // ingest an entity with two representations with a title no other test uses
+        String word = RandomStringUtils.randomAlphabetic(16).toLowerCase();
         IntellectualEntity.Builder ie = new IntellectualEntity.Builder()
                 .identifier(new Identifier(UUID.randomUUID().toString()))
-                .representations(Arrays.asList(ModelUtil.createTestRepresentation("testingestrepresentation-" + System.currentTimeMillis())))
+                .representations(Arrays.asList(ModelUtil.createTestRepresentation("first " + word),
+                        ModelUtil.createTestRepresentation("second " + word)))
                 .descriptive(createDCElementContainer());
         HttpPost post = UTIL.createPostEntity(ie.build());
         HttpResponse resp = CLIENT.execute(post);
         post.releaseConnection();
         assertTrue(resp.getStatusLine().getStatusCode() == 201);
 
-        // and search for the ingested entity
-        HttpGet get = UTIL.createGetSRUrepresentation("testingestrepresentation");
-        resp = CLIENT.execute(get);
-        assertTrue(resp.getStatusLine().getStatusCode() == 200);
-        IntellectualEntityCollection resultSet = (IntellectualEntityCollection) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
-        get.releaseConnection();
-        assertTrue(resultSet.getEntities().size() == 1);
-        DefaultConverter conv = new DefaultConverter();
+        // and search for the ingested representations, which yield the entity once
+        List<IntellectualEntity> records = searchSRU(true, "dc.title=" + word, 1);
+        assertEquals(1, records.size());
+        assertEquals(ie.build().getIdentifier(), records.get(0).getIdentifier());
+    }
+
+    /*
+     * the near real time index picks up new documents on its next refresh, so
+     * search until the expected number of records is found or 15 secs passed
+     */
+    private List<IntellectualEntity> searchSRU(boolean representations, String query, int expected) throws Exception {
+        long deadline = System.currentTimeMillis() + 15000;
+        while (true) {
+            HttpGet get = representations ? UTIL.createGetSRUrepresentation(query) : UTIL.createGetSRUEntity(query);
+            HttpResponse resp = CLIENT.execute(get);
+            assertTrue(resp.getStatusLine().getStatusCode() == 200);
+            List<IntellectualEntity> records = readSRURecords(resp.getEntity().getContent());
+            get.releaseConnection();
+            if (records.size() >= expected || System.currentTimeMillis() > deadline) {
+                return records;
+            }
+            Thread.sleep(50);
+        }
+    }
 
-        //IntellectualEntity searched = conv.convertMets(resultSet.getEntities().get(0));
-        MetsType mets = (MetsType) ScapeMarshaller.newInstance().deserialize(resp.getEntity().getContent());
-        IntellectualEntity searched = conv.convertMets(mets);
-        assertEquals(ie.lifecycleState(new LifecycleState("", State.INGESTED)).build(), searched);
+    private List<IntellectualEntity> readSRURecords(InputStream response) throws Exception {
+        DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+        factory.setNamespaceAware(true);
+        Document doc = factory.newDocumentBuilder().parse(response);
+        NodeList data = doc.getElementsByTagNameNS(SRUResponseWriter.SRU_NAMESPACE, "recordData");
+        List<IntellectualEntity> records = new ArrayList<IntellectualEntity>();
+        Transformer transformer = TransformerFactory.newInstance().newTransformer();
+        for (int i = 0; i < data.getLength(); i++) {
+            Element mets = (Element) data.item(i).getFirstChild();
+            ByteArrayOutputStream bos = new ByteArrayOutputStream();
+            transformer.transform(new DOMSource(mets), new StreamResult(bos));
+            records.add(ScapeMarshaller.newInstance().deserialize(IntellectualEntity.class,
+                    new ByteArrayInputStream(bos.toByteArray())));
+        }
+        return records;
     }
 
     @Test
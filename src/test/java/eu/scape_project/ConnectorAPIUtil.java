@@ -2,11 +2,15 @@
 package eu.scape_project;
 
 import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.URLEncoder;
 
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.client.methods.HttpPut;
 import org.apache.http.entity.ByteArrayEntity;
+import org.apache.http.entity.InputStreamEntity;
 
 import eu.scape_project.model.File;
 import eu.scape_project.model.IntellectualEntity;
@@ -72,22 +76,36 @@ public class ConnectorAPIUtil {
         return new HttpGet(mockUrl + REPRESENTATION_PATH + "/" + id);
     }
 
-    public HttpGet createGetSRUEntity(String term) {
+    /**
+     * @param query
+     *            a CQL query, e.g. <code>dc.title="digital preservation"</code>
+     */
+    public HttpGet createGetSRUEntity(String query) {
         // TODO: Schema for entitylists
-        // TODO: use CQL
         return new HttpGet(mockUrl + ENTITY_SRU_PATH +
-                "?operation=searchRetrieve&query=" + term +
+                "?operation=searchRetrieve&query=" + encode(query) +
                 "&recordPacking=xml&recordSchema=entitylist.xsd");
     }
 
-    public HttpGet createGetSRUrepresentation(String term) {
+    /**
+     * @param query
+     *            a CQL query, e.g. <code>dc.title="digital preservation"</code>
+     */
+    public HttpGet createGetSRUrepresentation(String query) {
         // TODO Schema for representations
-        // TODO: use CQL, not only the term
         return new HttpGet(mockUrl + REPRESENTATION_SRU_PATH +
-                "?operation=searchRetrieve&query=" + term +
+                "?operation=searchRetrieve&query=" + encode(query) +
                 "&recordPacking=xml&recordSchema=entitylist.xsd");
     }
 
+    private static String encode(String query) {
+        try {
+            return URLEncoder.encode(query, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
     public HttpPost createGetUriList(String string) {
         HttpPost post = new HttpPost(mockUrl + ENTITY_LIST_PATH);
         post.setEntity(new ByteArrayEntity(string.getBytes()));
@@ -125,6 +143,16 @@ public class ConnectorAPIUtil {
         return put;
     }
 
+    public HttpPut createPutFileContent(File f, InputStream content) {
+        HttpPut put =
+                new HttpPut(mockUrl + FILE_PATH + "/" +
+                        f.getIdentifier().getValue());
+        InputStreamEntity entity = new InputStreamEntity(content, -1);
+        entity.setChunked(true);
+        put.setEntity(entity);
+        return put;
+    }
+
     public HttpPut createPutMetadata(String id, Object data) throws Exception {
         HttpPut put = new HttpPut(mockUrl + METADATA_PATH + "/" + id);
         ByteArrayOutputStream bos = new ByteArrayOutputStream();
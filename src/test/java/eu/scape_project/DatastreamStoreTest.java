@@ -0,0 +1,164 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class DatastreamStoreTest {
+
+    private File directory;
+
+    private DatastreamStore store;
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-datastreams-" + UUID.randomUUID());
+        store = new DatastreamStore(directory);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testSaveAndReadRange() throws Exception {
+        byte[] content = new byte[300 * 1024];
+        new Random(1).nextBytes(content);
+        String id = UUID.randomUUID().toString();
+        DatastreamStore.Datastream saved = store.save(id, new ByteArrayInputStream(content), "image/png");
+        assertEquals(content.length, saved.getLength());
+        assertEquals(ContentHash.of(content), saved.getChecksum());
+
+        DatastreamStore.Datastream ds = store.get(id);
+        assertEquals(content.length, ds.getLength());
+        assertEquals(ContentHash.of(content), ds.getChecksum());
+        assertEquals("image/png", ds.getMimetype());
+        assertArrayEquals(Arrays.copyOfRange(content, 70000, 140000), read(ds, 70000, 70000));
+        assertArrayEquals(content, read(ds, 0, content.length));
+    }
+
+    @Test
+    public void testReplaceContent() throws Exception {
+        String id = UUID.randomUUID().toString();
+        store.save(id, new ByteArrayInputStream("first".getBytes()), null);
+        store.save(id, new ByteArrayInputStream("second".getBytes()), null);
+        DatastreamStore.Datastream ds = store.get(id);
+        assertNull(ds.getMimetype());
+        assertArrayEquals("second".getBytes(), read(ds, 0, ds.getLength()));
+        // only the latest generation and no temporary files are left behind
+        File dir = new DirectoryLayout(2).resolve(directory, id);
+        assertArrayEquals(new String[] { "2" }, dir.list());
+        assertEquals(2, new File(dir, "2").list().length);
+    }
+
+    @Test
+    public void testConcurrentSaves() throws Exception {
+        final String id = UUID.randomUUID().toString();
+        store.save(id, new ByteArrayInputStream(new byte[0]), null);
+        final CountDownLatch start = new CountDownLatch(1);
+        final AtomicInteger running = new AtomicInteger(8);
+        final List<Throwable> failures = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            final byte[] content = new byte[1024 * (i + 1)];
+            new Random(i).nextBytes(content);
+            threads.add(new Thread() {
+                public void run() {
+                    try {
+                        start.await();
+                        for (int j = 0; j < 20; j++) {
+                            store.save(id, new ByteArrayInputStream(content), null);
+                            check(store.get(id));
+                        }
+                    } catch (Throwable e) {
+                        failures.add(e);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                }
+            });
+        }
+        // a reader which must see content while the writers replace it
+        threads.add(new Thread() {
+            public void run() {
+                try {
+                    start.await();
+                    while (running.get() > 0) {
+                        check(store.get(id));
+                    }
+                } catch (Throwable e) {
+                    failures.add(e);
+                }
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        start.countDown();
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertEquals(Collections.emptyList(), failures);
+        File dir = new DirectoryLayout(2).resolve(directory, id);
+        assertArrayEquals(new String[] { "161" }, dir.list());
+    }
+
+    @Test
+    public void testMissingAndPurged() throws Exception {
+        String id = UUID.randomUUID().toString();
+        assertNull(store.get(id));
+        store.save(id, new ByteArrayInputStream(new byte[0]), null);
+        assertEquals(0, store.get(id).getLength());
+        store.purge();
+        assertNull(store.get(id));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testRangeBeyondContent() throws Exception {
+        String id = UUID.randomUUID().toString();
+        store.save(id, new ByteArrayInputStream(new byte[10]), null);
+        store.get(id).open(5, 10);
+    }
+
+    /* the content always matches the properties of its own upload */
+    private static void check(DatastreamStore.Datastream ds) throws Exception {
+        assertNotNull(ds);
+        try {
+            assertEquals(ContentHash.of(read(ds, 0, ds.getLength())), ds.getChecksum());
+        } catch (FileNotFoundException e) {
+            // replaced by another writer before it could be opened
+        }
+    }
+
+    private static byte[] read(DatastreamStore.Datastream ds, long position, long count) throws Exception {
+        StorageBlob blob = ds.open(position, count);
+        try {
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            blob.transferTo(Channels.newChannel(sink));
+            return sink.toByteArray();
+        } finally {
+            blob.close();
+        }
+    }
+}
@@ -0,0 +1,70 @@
+package eu.scape_project;
+
+import java.io.File;
+import java.util.Random;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Compares the latency of entity directory lookups in a flat tree and in
+ * sharded trees for growing numbers of entities. Run it manually with an
+ * optional list of entity counts, e.g.
+ * <code>java eu.scape_project.DirectoryLayoutBenchmark 10000 100000 1000000</code>
+ */
+public class DirectoryLayoutBenchmark {
+
+    private static final int LOOKUPS = 100000;
+
+    public static void main(String[] args) throws Exception {
+        int[] counts = new int[] { 10000, 100000, 1000000 };
+        if (args.length > 0) {
+            counts = new int[args.length];
+            for (int i = 0; i < args.length; i++) {
+                counts[i] = Integer.parseInt(args[i]);
+            }
+        }
+        File root = new File(System.getProperty("java.io.tmpdir"), "scape-tck-layout-benchmark");
+        System.out.println("entities\tlevels\tcreate [s]\tlookup [us]\tmiss [us]");
+        for (int count : counts) {
+            for (int levels = 0; levels <= 2; levels++) {
+                FileUtils.deleteQuietly(root);
+                root.mkdirs();
+                run(root, count, new DirectoryLayout(levels));
+            }
+        }
+        FileUtils.deleteQuietly(root);
+    }
+
+    private static void run(File root, int count, DirectoryLayout layout) throws Exception {
+        String[] ids = new String[count];
+        long start = System.nanoTime();
+        for (int i = 0; i < count; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            File dir = layout.resolve(root, ids[i]);
+            dir.mkdirs();
+            FileUtils.touch(new File(dir, "version-1.xml"));
+        }
+        double create = (System.nanoTime() - start) / 1e9d;
+
+        // the same lookups PosixStorage does: resolve the directory and stat
+        // a version file in it
+        Random rand = new Random(count);
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            File dir = layout.resolve(root, ids[rand.nextInt(count)]);
+            if (!new File(dir, "version-1.xml").exists()) {
+                throw new IllegalStateException("missing entity " + dir);
+            }
+        }
+        double hit = (System.nanoTime() - start) / 1e3d / LOOKUPS;
+
+        start = System.nanoTime();
+        for (int i = 0; i < LOOKUPS; i++) {
+            layout.resolve(root, UUID.randomUUID().toString()).exists();
+        }
+        double miss = (System.nanoTime() - start) / 1e3d / LOOKUPS;
+
+        System.out.println(String.format("%d\t%d\t%.2f\t%.2f\t%.2f", count, layout.getLevels(), create, hit, miss));
+    }
+}
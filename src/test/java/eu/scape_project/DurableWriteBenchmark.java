@@ -0,0 +1,76 @@
+package eu.scape_project;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.commons.io.FileUtils;
+
+/**
+ * Measures the throughput of {@link PosixStorage#saveXML(byte[], String, int, boolean)}
+ * for each {@link DurableWriter.Durability} with a number of concurrent
+ * writers. Run it manually with the optional number of writers, versions per
+ * writer and entities the writers spread over, e.g.
+ * <code>java eu.scape_project.DurableWriteBenchmark 16 500 4</code>. Writers
+ * sharing an entity share its directory, whose syncs group commits combine.
+ */
+public class DurableWriteBenchmark {
+
+    private static final int VERSION_SIZE = 8192;
+
+    public static void main(String[] args) throws Exception {
+        int writers = args.length > 0 ? Integer.parseInt(args[0]) : 16;
+        int versions = args.length > 1 ? Integer.parseInt(args[1]) : 500;
+        int entities = args.length > 2 ? Integer.parseInt(args[2]) : writers;
+        File root = new File(System.getProperty("java.io.tmpdir"), "scape-tck-durability-benchmark");
+        // warm up the JIT, so that the first mode isn't at a disadvantage
+        FileUtils.deleteQuietly(root);
+        run(root, DurableWriter.Durability.NONE, writers, versions, entities, false);
+        System.out.println("mode\twriters\tentities\tversions/s\tfile syncs\tdirectory syncs\tbatches");
+        for (DurableWriter.Durability durability : DurableWriter.Durability.values()) {
+            FileUtils.deleteQuietly(root);
+            run(root, durability, writers, versions, entities, true);
+        }
+        FileUtils.deleteQuietly(root);
+    }
+
+    private static void run(File root, DurableWriter.Durability durability, int writers, final int versions,
+            int entities, boolean report) throws Exception {
+        final PosixStorage storage = new PosixStorage.Builder(root.getAbsolutePath()).durability(durability).build();
+        final byte[] data = new byte[VERSION_SIZE];
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        List<Future<Void>> results = new ArrayList<Future<Void>>();
+        long start = System.nanoTime();
+        for (int w = 0; w < writers; w++) {
+            final String id = "entity-" + (w % entities);
+            final int first = (w / entities) * versions;
+            results.add(executor.submit(new Callable<Void>() {
+                public Void call() throws Exception {
+                    for (int v = 1; v <= versions; v++) {
+                        storage.saveXML(data, id, first + v, false);
+                    }
+                    return null;
+                }
+            }));
+        }
+        for (Future<Void> result : results) {
+            result.get();
+        }
+        double seconds = (System.nanoTime() - start) / 1e9d;
+        executor.shutdown();
+        long total = (long) writers * versions;
+        long fileSyncs = storage.getDurableWriter().getForcedWrites();
+        long directorySyncs = storage.getDurableWriter().getForcedDirectories();
+        long batches = storage.getDurableWriter().getGroupCommits();
+        storage.close();
+        if (!report) {
+            return;
+        }
+        System.out.println(durability.name().toLowerCase() + "\t" + writers + "\t" + entities + "\t" +
+                String.format("%.0f", total / seconds) + "\t" + fileSyncs + "\t" + directorySyncs + "\t" + batches);
+    }
+}
@@ -0,0 +1,82 @@
+package eu.scape_project;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import eu.scape_project.model.IntellectualEntity;
+
+/**
+ * Measures how the entity index grows with the number of versions per
+ * entity, of which only the most recent ones are kept in documents of their
+ * own, and what that costs searches of the latest versions. Run it manually
+ * with an optional number of entities and list of versions per entity, e.g.
+ * <code>java eu.scape_project.IndexGrowthBenchmark 1000 1 10 100</code>. The
+ * number of versions kept is set by {@link LuceneIndex#PROPERTY_VERSION_DOCUMENTS}.
+ */
+public class IndexGrowthBenchmark {
+
+    private static final int SEARCHES = 1000;
+
+    public static void main(String[] args) throws Exception {
+        int entities = 1000;
+        int[] versions = new int[] { 1, 10, 100 };
+        if (args.length > 0) {
+            entities = Integer.parseInt(args[0]);
+        }
+        if (args.length > 1) {
+            versions = new int[args.length - 1];
+            for (int i = 1; i < args.length; i++) {
+                versions[i - 1] = Integer.parseInt(args[i]);
+            }
+        }
+        File root = new File(System.getProperty("java.io.tmpdir"), "scape-tck-index-benchmark");
+        System.out.println("entities\tversions\tindex [KB]\tlatest search [us]\tversion search [us]");
+        for (int count : versions) {
+            FileUtils.deleteQuietly(root);
+            run(root, entities, count);
+        }
+        FileUtils.deleteQuietly(root);
+    }
+
+    private static void run(File root, int entities, int versions) throws Exception {
+        LuceneIndex index = new LuceneIndex(root, "nio", 3600000, Integer.MAX_VALUE, 3600000);
+        double latest;
+        double version;
+        try {
+            List<IntellectualEntity> created = new ArrayList<IntellectualEntity>(entities);
+            for (int i = 0; i < entities; i++) {
+                created.add(ModelUtil.createEntity(null));
+            }
+            // every update adds a version of each entity
+            for (int v = 1; v <= versions; v++) {
+                for (IntellectualEntity entity : created) {
+                    index.addEntity(entity, v);
+                }
+            }
+            index.refresh();
+            index.commit();
+
+            // distinct queries, so that the result cache doesn't answer them
+            long start = System.nanoTime();
+            for (int i = 0; i < SEARCHES; i++) {
+                index.searchEntity("test not rec.identifier=" + i, 1, 10);
+            }
+            latest = (System.nanoTime() - start) / 1e3d / SEARCHES;
+
+            start = System.nanoTime();
+            for (int i = 0; i < SEARCHES; i++) {
+                index.searchEntity("test not rec.identifier=" + i, versions);
+            }
+            version = (System.nanoTime() - start) / 1e3d / SEARCHES;
+        } finally {
+            // closing waits for the merges reclaiming the replaced documents
+            index.close();
+        }
+        long size = FileUtils.sizeOfDirectory(new File(root, "entity"));
+        System.out.println(String.format("%d\t%d\t%d\t%.1f\t%.1f", entities, versions, size / 1024, latest,
+                version));
+    }
+}
@@ -0,0 +1,99 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import eu.scape_project.model.LifecycleState;
+import eu.scape_project.model.LifecycleState.State;
+
+public class LifecycleFeedTest {
+
+    private final LifecycleFeed feed = new LifecycleFeed(4);
+
+    private final BlockingQueue<LifecycleFeed.Page> pages = new LinkedBlockingQueue<LifecycleFeed.Page>();
+
+    private final LifecycleFeed.Listener listener = new LifecycleFeed.Listener() {
+        public void deliver(LifecycleFeed.Page page) {
+            pages.add(page);
+        }
+    };
+
+    @After
+    public void tearDown() {
+        feed.close();
+    }
+
+    @Test
+    public void testReadFromSequence() throws Exception {
+        feed.append("entity-1", new LifecycleState("async ingest", State.INGESTING));
+        feed.append("entity-1", new LifecycleState("ingested", State.INGESTED));
+        feed.append("entity-2", new LifecycleState("async ingest", State.INGESTING));
+        LifecycleFeed.Page page = feed.read(2, 10);
+        assertEquals(1, page.getFirst());
+        assertEquals(4, page.getNext());
+        assertEquals(2, page.getTransitions().size());
+        assertEquals("entity-1", page.getTransitions().get(0).getId());
+        assertEquals(2, page.getTransitions().get(0).getSequence());
+        assertEquals("entity-2", page.getTransitions().get(1).getId());
+        page = feed.read(1, 2);
+        assertEquals(2, page.getTransitions().size());
+        assertEquals(3, page.getNext());
+        assertTrue(feed.read(4, 10).getTransitions().isEmpty());
+        assertEquals(4, feed.read(4, 10).getNext());
+    }
+
+    @Test
+    public void testOverflowLeavesGap() throws Exception {
+        for (int i = 1; i <= 6; i++) {
+            feed.append("entity-" + i, new LifecycleState("ingested", State.INGESTED));
+        }
+        LifecycleFeed.Page page = feed.read(1, 10);
+        assertEquals(3, page.getFirst());
+        assertEquals(4, page.getTransitions().size());
+        assertEquals("entity-3", page.getTransitions().get(0).getId());
+        assertEquals(7, page.getNext());
+    }
+
+    @Test
+    public void testPollAnswersImmediately() throws Exception {
+        feed.append("entity-1", new LifecycleState("ingested", State.INGESTED));
+        feed.poll(1, 10, 60000, listener);
+        LifecycleFeed.Page page = pages.poll();
+        assertNotNull(page);
+        assertEquals(1, page.getTransitions().size());
+    }
+
+    @Test
+    public void testPollWaitsForTransition() throws Exception {
+        feed.poll(feed.getNextSequence(), 10, 60000, listener);
+        assertNull(pages.poll(100, TimeUnit.MILLISECONDS));
+        feed.append("entity-1", new LifecycleState("ingested", State.INGESTED));
+        LifecycleFeed.Page page = pages.poll(5, TimeUnit.SECONDS);
+        assertNotNull(page);
+        assertEquals("entity-1", page.getTransitions().get(0).getId());
+        assertEquals(2, page.getNext());
+        // the listener is called only once
+        feed.append("entity-2", new LifecycleState("ingested", State.INGESTED));
+        assertNull(pages.poll(100, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testPollTimesOut() throws Exception {
+        long start = System.currentTimeMillis();
+        feed.poll(feed.getNextSequence(), 10, 100, listener);
+        LifecycleFeed.Page page = pages.poll(5, TimeUnit.SECONDS);
+        assertNotNull(page);
+        assertTrue(page.getTransitions().isEmpty());
+        assertEquals(1, page.getNext());
+        assertTrue(System.currentTimeMillis() - start >= 100);
+    }
+}
@@ -0,0 +1,45 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import org.junit.Test;
+
+import eu.scape_project.model.LifecycleState;
+import eu.scape_project.model.LifecycleState.State;
+
+public class LifecycleStateTableTest {
+
+    @Test
+    public void testTransitions() throws Exception {
+        LifecycleStateTable table = new LifecycleStateTable();
+        assertNull(table.get("entity-1"));
+        LifecycleState ingesting = new LifecycleState("async ingest", State.INGESTING);
+        table.update("entity-1", ingesting, "<ingesting/>".getBytes());
+        assertSame(ingesting, table.get("entity-1").getState());
+        LifecycleState ingested = new LifecycleState("ingested", State.INGESTED);
+        table.update("entity-1", ingested, "<ingested/>".getBytes());
+        assertSame(ingested, table.get("entity-1").getState());
+        assertArrayEquals("<ingested/>".getBytes(), table.get("entity-1").getXML());
+        assertEquals(1, table.size());
+        table.remove("entity-1");
+        assertNull(table.get("entity-1"));
+    }
+
+    @Test
+    public void testInitKeepsRecordedState() throws Exception {
+        LifecycleStateTable table = new LifecycleStateTable();
+        LifecycleState ingesting = new LifecycleState("async ingest", State.INGESTING);
+        table.update("entity-1", ingesting, "<ingesting/>".getBytes());
+        LifecycleStateTable.Entry entry =
+                table.init("entity-1", new LifecycleState("ingested", State.INGESTED), "<ingested/>".getBytes());
+        assertSame(ingesting, entry.getState());
+        assertSame(ingesting, table.get("entity-1").getState());
+        LifecycleState stored = new LifecycleState("ingested", State.INGESTED);
+        assertSame(stored, table.init("entity-2", stored, "<ingested/>".getBytes()).getState());
+        table.clear();
+        assertEquals(0, table.size());
+    }
+}
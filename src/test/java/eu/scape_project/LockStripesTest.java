@@ -0,0 +1,99 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.locks.Lock;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+
+public class LockStripesTest {
+
+    private static final int WRITERS = 64;
+
+    @Test
+    public void testSameKeySameLock() throws Exception {
+        LockStripes stripes = new LockStripes(16);
+        String id = UUID.randomUUID().toString();
+        assertSame(stripes.get(id), stripes.get(new String(id)));
+    }
+
+    /**
+     * Concurrent ingests and representation updates of the same entities,
+     * saved the way the {@link MockContainer} saves them
+     */
+    @Test
+    public void testNoVersionsLostOrDuplicated() throws Exception {
+        File directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-stripes-" + UUID.randomUUID());
+        final Storage storage = MockContainer.createStorage(directory.getAbsolutePath());
+        final LockStripes stripes = new LockStripes(64);
+        final String[] ids = new String[] { UUID.randomUUID().toString(), UUID.randomUUID().toString() };
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            for (String id : ids) {
+                MockContainer.saveIngestedVersion(storage, id, 1, "<ingested/>".getBytes());
+            }
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < WRITERS; i++) {
+                final String id = ids[i % ids.length];
+                final boolean update = (i / ids.length) % 2 == 1;
+                final byte[] xml = ("<version writer=\"" + i + "\"/>").getBytes();
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        startSignal.await();
+                        if (!update) {
+                            // a repeated ingest of the entity
+                            return MockContainer.saveIngestedVersion(storage, id, 1, xml);
+                        }
+                        // representation updates hold the entity's lock
+                        Lock lock = stripes.get(id);
+                        lock.lock();
+                        try {
+                            storage.getXML(id);
+                            return MockContainer.saveUpdatedVersion(storage, id, xml);
+                        } finally {
+                            lock.unlock();
+                        }
+                    }
+                }));
+            }
+            startSignal.countDown();
+            for (Future<Integer> result : results) {
+                result.get();
+            }
+            for (int i = 0; i < ids.length; i++) {
+                List<String> expectedVersions = new ArrayList<String>();
+                Set<String> expected = new HashSet<String>();
+                expected.add("<ingested/>");
+                expectedVersions.add("1");
+                for (int writer = i; writer < WRITERS; writer += ids.length) {
+                    expected.add("<version writer=\"" + writer + "\"/>");
+                    expectedVersions.add(String.valueOf(expectedVersions.size() + 1));
+                }
+                assertEquals(expectedVersions, storage.getVersionList(ids[i]));
+                Set<String> stored = new HashSet<String>();
+                for (String version : storage.getVersionList(ids[i])) {
+                    stored.add(new String(storage.getXML(ids[i], Integer.valueOf(version))));
+                }
+                assertEquals(expected, stored);
+            }
+        } finally {
+            executor.shutdown();
+            storage.close();
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+}
@@ -0,0 +1,334 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+
+import javax.xml.bind.JAXBElement;
+import javax.xml.namespace.QName;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Test;
+import org.purl.dc.elements._1.ElementContainer;
+import org.purl.dc.elements._1.SimpleLiteral;
+
+import eu.scape_project.model.Identifier;
+import eu.scape_project.model.IntellectualEntity;
+import eu.scape_project.model.Representation;
+import gov.loc.marc21.slim.ControlFieldType;
+import gov.loc.marc21.slim.DataFieldType;
+import gov.loc.marc21.slim.RecordType;
+import gov.loc.marc21.slim.SubfieldatafieldType;
+
+public class LuceneIndexTest {
+
+    private LuceneIndex index;
+
+    private File directory;
+
+    @After
+    public void tearDown() throws Exception {
+        index.close();
+        if (directory != null) {
+            FileUtils.deleteQuietly(directory);
+        }
+    }
+
+    @Test
+    public void testDocumentsBecomeSearchableOnRefresh() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        Representation rep = ModelUtil.createTestRepresentation("near real time");
+        IntellectualEntity entity = ModelUtil.createEntity(Arrays.asList(rep));
+        index.addEntity(entity);
+        assertTrue(index.searchEntity("test").isEmpty());
+
+        index.refresh();
+        assertEquals(Arrays.asList(entity.getIdentifier().getValue()), index.searchEntity("test"));
+        assertEquals(Arrays.asList(rep.getIdentifier().getValue()), index.searchRepresentation("real"));
+    }
+
+    @Test
+    public void testRefreshAfterDocumentCount() throws Exception {
+        index = new LuceneIndex(3600000, 5, 3600000);
+        for (int i = 0; i < 5; i++) {
+            index.addEntity(ModelUtil.createEntity(null));
+        }
+        List<String> hits = index.searchEntity("test");
+        for (int i = 0; i < 100 && hits.isEmpty(); i++) {
+            Thread.sleep(20);
+            hits = index.searchEntity("test");
+        }
+        assertEquals(5, hits.size());
+    }
+
+    @Test
+    public void testRefreshInterval() throws Exception {
+        index = new LuceneIndex(20, 1000, 3600000);
+        index.addEntity(ModelUtil.createEntity(null));
+        List<String> hits = index.searchEntity("test");
+        for (int i = 0; i < 100 && hits.isEmpty(); i++) {
+            Thread.sleep(20);
+            hits = index.searchEntity("test");
+        }
+        assertEquals(1, hits.size());
+    }
+
+    @Test
+    public void testConcurrentSearchesDuringIngest() throws Exception {
+        index = new LuceneIndex(5, 10, 3600000);
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        List<Thread> searchers = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            searchers.add(new Thread() {
+                public void run() {
+                    try {
+                        for (int j = 0; j < 200; j++) {
+                            index.searchEntity("test");
+                        }
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread searcher : searchers) {
+            searcher.start();
+        }
+        for (int i = 0; i < 200; i++) {
+            index.addEntity(ModelUtil.createEntity(null));
+        }
+        for (Thread searcher : searchers) {
+            searcher.join();
+        }
+        assertTrue(errors.isEmpty());
+        index.refresh();
+        assertEquals(10, index.searchEntity("test").size());
+    }
+
+    @Test
+    public void testReopenMappedIndex() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-index-" + UUID.randomUUID());
+        index = new LuceneIndex(directory, "mmap", 3600000, 1000, 3600000);
+        IntellectualEntity entity = ModelUtil.createEntity(null);
+        index.addEntity(entity);
+        index.close();
+
+        index = new LuceneIndex(directory, "mmap", 3600000, 1000, 3600000);
+        String id = entity.getIdentifier().getValue();
+        assertEquals(new HashSet<String>(Arrays.asList(id)), index.getEntityIds());
+        assertEquals(Arrays.asList(id), index.searchEntity("test"));
+    }
+
+    @Test
+    public void testDeleteAndPurge() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        IntellectualEntity first = ModelUtil.createEntity(null);
+        IntellectualEntity second = ModelUtil.createEntity(null);
+        index.addEntity(first);
+        index.addEntity(second);
+        index.deleteEntity(first.getIdentifier().getValue());
+        assertEquals(new HashSet<String>(Arrays.asList(second.getIdentifier().getValue())), index.getEntityIds());
+
+        index.purge();
+        assertTrue(index.getEntityIds().isEmpty());
+        assertTrue(index.searchEntity("test").isEmpty());
+    }
+
+    @Test
+    public void testUpdatesReplaceDocuments() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        Representation rep = ModelUtil.createTestRepresentation("first title");
+        IntellectualEntity entity = ModelUtil.createEntity(Arrays.asList(rep));
+        String id = entity.getIdentifier().getValue();
+        index.addEntity(entity, 1);
+        index.addEntity(entity, 1);
+        ElementContainer dc = new ElementContainer();
+        SimpleLiteral title = new SimpleLiteral();
+        title.getContent().add("A revised entity");
+        dc.getAny().add(new JAXBElement<SimpleLiteral>(new QName("http://purl.org/dc/elements/1.1/", "title"),
+                SimpleLiteral.class, title));
+        Representation updatedRep = new Representation.Builder(rep).title("second title").build();
+        IntellectualEntity updated = new IntellectualEntity.Builder(entity).descriptive(dc).representations(
+                Arrays.asList(updatedRep)).build();
+        index.addEntity(updated, 2);
+        index.refresh();
+
+        assertTrue(index.searchEntity("test").isEmpty());
+        assertEquals(Arrays.asList(id), index.searchEntity("revised"));
+        assertEquals(Arrays.asList(id), index.searchEntity("test", 1));
+        assertTrue(index.searchEntity("revised", 1).isEmpty());
+        assertEquals(Arrays.asList(id), index.searchEntity("entity", 2));
+
+        assertTrue(index.searchRepresentation("first").isEmpty());
+        assertEquals(Arrays.asList(rep.getIdentifier().getValue()), index.searchRepresentation("title"));
+    }
+
+    @Test
+    public void testOldVersionDocumentsExpire() throws Exception {
+        System.setProperty(LuceneIndex.PROPERTY_VERSION_DOCUMENTS, "2");
+        try {
+            index = new LuceneIndex(3600000, 1000, 3600000);
+        } finally {
+            System.clearProperty(LuceneIndex.PROPERTY_VERSION_DOCUMENTS);
+        }
+        IntellectualEntity entity = ModelUtil.createEntity(null);
+        List<String> id = Arrays.asList(entity.getIdentifier().getValue());
+        for (int version = 1; version <= 4; version++) {
+            index.addEntity(entity, version);
+        }
+        index.refresh();
+
+        assertEquals(id, index.searchEntity("test"));
+        assertEquals(id, index.searchEntity("test", 4));
+        assertEquals(id, index.searchEntity("test", 3));
+        assertTrue(index.searchEntity("test", 2).isEmpty());
+        assertTrue(index.searchEntity("test", 1).isEmpty());
+    }
+
+    @Test
+    public void testOnlyLatestVersionDocuments() throws Exception {
+        System.setProperty(LuceneIndex.PROPERTY_VERSION_DOCUMENTS, "0");
+        try {
+            index = new LuceneIndex(3600000, 1000, 3600000);
+        } finally {
+            System.clearProperty(LuceneIndex.PROPERTY_VERSION_DOCUMENTS);
+        }
+        IntellectualEntity entity = ModelUtil.createEntity(null);
+        List<String> id = Arrays.asList(entity.getIdentifier().getValue());
+        index.addEntity(entity, 1);
+        index.addEntity(entity, 2);
+        index.refresh();
+
+        assertEquals(id, index.searchEntity("test"));
+        assertEquals(id, index.searchEntity("test", 2));
+        assertTrue(index.searchEntity("test", 1).isEmpty());
+    }
+
+    @Test
+    public void testQueriesAreAnalyzedLikeDocuments() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        Representation rep = ModelUtil.createTestRepresentation("Scans 2012 of the archive");
+        index.addEntity(ModelUtil.createEntity(Arrays.asList(rep)));
+        index.refresh();
+
+        List<String> ids = Arrays.asList(rep.getIdentifier().getValue());
+        assertEquals(ids, index.searchRepresentation("2012"));
+        assertEquals(ids, index.searchRepresentation("DC.Title=\"scans 2012\""));
+        assertEquals(ids, index.searchRepresentation("dc.title=\"2012 of the archive\""));
+        assertTrue(index.searchRepresentation("dc.title=\"2012 archive\"").isEmpty());
+    }
+
+    @Test
+    public void testPaging() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        Set<String> ids = new HashSet<String>();
+        for (int i = 0; i < 25; i++) {
+            IntellectualEntity entity = ModelUtil.createEntity(null);
+            ids.add(entity.getIdentifier().getValue());
+            index.addEntity(entity);
+        }
+        index.refresh();
+
+        SearchResult page = index.searchEntity("test", 21, 10);
+        assertEquals(25, page.getTotalHits());
+        assertEquals(5, page.getIds().size());
+        assertEquals(0, page.getNextRecordPosition());
+        assertNull(page.getCursor());
+
+        // entities added after the first page don't show up in the following pages
+        page = index.searchEntity("test", 1, 10);
+        index.addEntity(ModelUtil.createEntity(null));
+        index.refresh();
+        Set<String> found = new HashSet<String>(page.getIds());
+        while (page.getCursor() != null) {
+            page = index.searchEntity("test", page.getCursor(), 10);
+            found.addAll(page.getIds());
+        }
+        assertEquals(21, page.getStartRecord());
+        assertEquals(ids, found);
+        assertEquals(26, index.searchEntity("test", 1, 0).getTotalHits());
+    }
+
+    @Test
+    public void testResultCacheFollowsIndexGeneration() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        index.addEntity(ModelUtil.createEntity(null));
+        index.refresh();
+        assertEquals(1, index.searchEntity("test").size());
+        assertEquals(1, index.searchEntity("  test ").size());
+        assertEquals(1, index.getResultCache().getHits());
+
+        index.addEntity(ModelUtil.createEntity(null));
+        index.refresh();
+        assertEquals(2, index.searchEntity("test").size());
+        assertEquals(1, index.getResultCache().getHits());
+        assertEquals(2, index.getResultCache().getMisses());
+    }
+
+    @Test
+    public void testNumericRangesAndSorting() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        List<String> ids = new ArrayList<String>();
+        for (int width : new int[] { 640, 1024, 4096 }) {
+            Representation rep = new Representation.Builder(new Identifier(UUID.randomUUID().toString())).title(
+                    "image").technical(ModelUtil.createNisoMetadata(width, 480)).build();
+            IntellectualEntity entity = ModelUtil.createEntity(Arrays.asList(rep));
+            ids.add(entity.getIdentifier().getValue());
+            index.addEntity(entity);
+        }
+        index.refresh();
+
+        assertEquals(new HashSet<String>(ids.subList(1, 3)), new HashSet<String>(index.searchEntity(
+                "mix.imageWidth>=1024")));
+        assertEquals(Arrays.asList(ids.get(1)), index.searchEntity("mix.imageWidth>640 and mix.imageWidth<4096"));
+        assertEquals(Arrays.asList(ids.get(2), ids.get(1), ids.get(0)), index.searchEntity(
+                "dc.title=test sortBy mix.imageWidth/sort.descending"));
+        assertEquals(3, index.searchRepresentation("mix.imageHeight=480").size());
+
+        // sorted pages are continued by position on the same searcher
+        SearchResult page = index.searchEntity("test sortBy mix.imageWidth", 1, 2);
+        assertEquals(ids.subList(0, 2), page.getIds());
+        page = index.searchEntity("test sortBy mix.imageWidth", page.getCursor(), 2);
+        assertEquals(ids.subList(2, 3), page.getIds());
+    }
+
+    @Test
+    public void testDescriptiveFields() throws Exception {
+        index = new LuceneIndex(3600000, 1000, 3600000);
+        IntellectualEntity dcEntity = ModelUtil.createEntity(null);
+
+        RecordType record = new RecordType();
+        ControlFieldType control = new ControlFieldType();
+        control.setTag("001");
+        control.setValue("ocm-4711");
+        record.getControlfield().add(control);
+        DataFieldType data = new DataFieldType();
+        data.setTag("245");
+        SubfieldatafieldType title = new SubfieldatafieldType();
+        title.setCode("a");
+        title.setValue("Marcellous records");
+        data.getSubfield().add(title);
+        record.getDatafield().add(data);
+        IntellectualEntity marcEntity = new IntellectualEntity.Builder().identifier(
+                new Identifier(UUID.randomUUID().toString())).descriptive(record).build();
+        index.addEntity(dcEntity);
+        index.addEntity(marcEntity);
+        index.refresh();
+
+        assertEquals(Arrays.asList(dcEntity.getIdentifier().getValue()), index.searchEntity("dc.language=en"));
+        String marcId = marcEntity.getIdentifier().getValue();
+        assertEquals(Arrays.asList(marcId), index.searchEntity("marc.001=ocm-4711"));
+        assertEquals(Arrays.asList(marcId), index.searchEntity("marc.245a=marcellous"));
+        assertEquals(Arrays.asList(marcId), index.searchEntity("records"));
+    }
+}
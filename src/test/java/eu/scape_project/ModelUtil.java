@@ -70,12 +70,18 @@ public class ModelUtil {
     }
 
     private static Mix createNisoMetadata() {
+        return createNisoMetadata(0, 0);
+    }
+
+    public static Mix createNisoMetadata(long width, long height) {
         Mix mix = new Mix();
-        PositiveIntegerType height = new PositiveIntegerType();
-        height.setValue(new BigInteger("0"));
+        PositiveIntegerType w = new PositiveIntegerType();
+        w.setValue(BigInteger.valueOf(width));
+        PositiveIntegerType h = new PositiveIntegerType();
+        h.setValue(BigInteger.valueOf(height));
         BasicImageCharacteristics ch = new BasicImageCharacteristics();
-        ch.setImageHeight(height);
-        ch.setImageWidth(height);
+        ch.setImageHeight(h);
+        ch.setImageWidth(w);
         BasicImageInformationType ii = new BasicImageInformationType();
         mix.setBasicImageInformation(ii);
         mix.getBasicImageInformation().setBasicImageCharacteristics(ch);
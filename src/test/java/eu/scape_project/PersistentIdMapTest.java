@@ -0,0 +1,93 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PersistentIdMapTest {
+
+    private File directory;
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-idmap-" + UUID.randomUUID());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testJournalIsReplayed() throws Exception {
+        PersistentIdMap map = new PersistentIdMap(directory, 1000);
+        assertFalse(map.isRestored());
+        map.put("file-1", "entity-1");
+        map.put("file-2", "entity-1");
+        map.put("file-1", "entity-2");
+
+        // no close, so the entries have to be replayed from the journal
+        PersistentIdMap reopened = new PersistentIdMap(directory, 1000);
+        assertTrue(reopened.isRestored());
+        assertEquals(2, reopened.size());
+        assertEquals("entity-2", reopened.get("file-1"));
+        assertEquals("entity-1", reopened.get("file-2"));
+    }
+
+    @Test
+    public void testSnapshots() throws Exception {
+        PersistentIdMap map = new PersistentIdMap(directory, 100);
+        for (int i = 0; i < 1050; i++) {
+            map.put("file-" + i, "entity-" + (i / 10));
+        }
+        map.close();
+        // only the final snapshot and the empty journal following it are left
+        assertEquals(2, directory.list().length);
+
+        PersistentIdMap reopened = new PersistentIdMap(directory, 100);
+        assertEquals(1050, reopened.size());
+        for (int i = 0; i < 1050; i++) {
+            assertEquals("entity-" + (i / 10), reopened.get("file-" + i));
+        }
+        reopened.put("file-new", "entity-new");
+        assertEquals("entity-new", new PersistentIdMap(directory, 100).get("file-new"));
+    }
+
+    @Test
+    public void testTornJournalRecordIsTruncated() throws Exception {
+        PersistentIdMap map = new PersistentIdMap(directory, 1000);
+        map.put("file-1", "entity-1");
+        FileOutputStream out = new FileOutputStream(new File(directory, "journal-0"), true);
+        out.write(new byte[] { 0, 20, 'f', 'i' });
+        out.close();
+
+        PersistentIdMap reopened = new PersistentIdMap(directory, 1000);
+        assertEquals(1, reopened.size());
+        reopened.put("file-2", "entity-2");
+        reopened = new PersistentIdMap(directory, 1000);
+        assertEquals(2, reopened.size());
+        assertEquals("entity-2", reopened.get("file-2"));
+    }
+
+    @Test
+    public void testClear() throws Exception {
+        PersistentIdMap map = new PersistentIdMap(directory, 10);
+        for (int i = 0; i < 25; i++) {
+            map.put("file-" + i, "entity-1");
+        }
+        map.clear();
+        assertNull(map.get("file-1"));
+        map.close();
+        assertEquals(0, new PersistentIdMap(directory, 10).size());
+    }
+}
@@ -0,0 +1,393 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.nio.channels.Channels;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class PosixStorageTest {
+
+    private File directory;
+
+    private PosixStorage storage;
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-storage-" + UUID.randomUUID());
+        storage = new PosixStorage(directory.getAbsolutePath());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testConcurrentNewVersions() throws Exception {
+        VersionAllocatorTest.assertDistinctVersions(storage, 64);
+    }
+
+    @Test
+    public void testStaleClaimsAreRemovedAfterCrash() throws Exception {
+        String id = UUID.randomUUID().toString();
+        assertEquals(1, storage.saveNewVersion("<version>1</version>".getBytes(), id, 1));
+        // a writer which crashed after claiming the second version
+        File claim = new File(new DirectoryLayout(2).resolve(new File(directory, "foxml"), id), "version-2.claim");
+        assertTrue(claim.createNewFile());
+        assertEquals(3, storage.saveNewVersion("<version>3</version>".getBytes(), id, 2));
+
+        // a crash leaves the marker behind, but doesn't keep it locked
+        storage.close();
+        assertTrue(new File(directory, ".running").createNewFile());
+        storage = new PosixStorage(directory.getAbsolutePath());
+        assertFalse(claim.exists());
+        assertEquals(4, storage.saveNewVersion("<version>4</version>".getBytes(), id, 4));
+        storage.close();
+        assertFalse(new File(directory, ".running").exists());
+    }
+
+    @Test
+    public void testStorageInUseIsRejected() throws Exception {
+        String id = UUID.randomUUID().toString();
+        File claim = new File(new DirectoryLayout(2).resolve(new File(directory, "foxml"), id), "version-1.claim");
+        claim.getParentFile().mkdirs();
+        assertTrue(claim.createNewFile());
+        try {
+            new PosixStorage(directory.getAbsolutePath());
+            fail("A second storage has been opened on a directory in use");
+        } catch (RuntimeException e) {
+            assertTrue(e.getMessage().contains("in use"));
+            // the claims of the running storage are left alone
+            assertTrue(claim.exists());
+        }
+    }
+
+    @Test
+    public void testVersionListIsSortedNumerically() throws Exception {
+        String id = UUID.randomUUID().toString();
+        for (int version : new int[] { 2, 10, 1, 9 }) {
+            storage.saveXML(("<version>" + version + "</version>").getBytes(), id, version, false);
+        }
+        assertEquals(Arrays.asList("1", "2", "9", "10"), storage.getVersionList(id));
+        assertEquals(10, storage.getLatestVersionNumber(id));
+        assertEquals(11, storage.getNewVersionNumber(id));
+        assertTrue(storage.exists(id, null));
+        assertTrue(storage.exists(id, 9));
+        assertFalse(storage.exists(id, 3));
+    }
+
+    @Test
+    public void testVersionCatalogIsLoadedFromDisk() throws Exception {
+        String id = UUID.randomUUID().toString();
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        storage.saveXML("<version>2</version>".getBytes(), id, 2, false);
+
+        storage.close();
+        storage = new PosixStorage(directory.getAbsolutePath());
+        assertEquals(2, storage.getLatestVersionNumber(id));
+        assertArrayEquals("<version>2</version>".getBytes(), storage.getXML(id));
+    }
+
+    @Test
+    public void testOpenXML() throws Exception {
+        String id = UUID.randomUUID().toString();
+        byte[] xml = "<entity>streamed</entity>".getBytes();
+        storage.saveXML(xml, id, 1, false);
+
+        StorageBlob blob = storage.openXML(id, null);
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        try {
+            assertEquals(xml.length, blob.length());
+            assertEquals(xml.length, blob.transferTo(Channels.newChannel(sink)));
+        } finally {
+            blob.close();
+        }
+        assertArrayEquals(xml, sink.toByteArray());
+    }
+
+    @Test(expected = FileNotFoundException.class)
+    public void testOpenMissingXML() throws Exception {
+        storage.openXML(UUID.randomUUID().toString(), null);
+    }
+
+    @Test
+    public void testMigrateFlatLayout() throws Exception {
+        File flatDirectory = new File(directory, "flat");
+        PosixStorage flat = new PosixStorage.Builder(flatDirectory.getAbsolutePath()).layout(new DirectoryLayout(0)).build();
+        String[] ids = new String[10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            flat.saveXML(("<entity>" + i + "</entity>").getBytes(), ids[i], 1, false);
+        }
+        assertTrue(new File(flatDirectory, "foxml/" + ids[0]).isDirectory());
+        flat.close();
+
+        DirectoryLayout sharded = new DirectoryLayout(2);
+        PosixStorage migrated = new PosixStorage.Builder(flatDirectory.getAbsolutePath()).layout(sharded).build();
+        for (int i = 0; i < ids.length; i++) {
+            assertArrayEquals(("<entity>" + i + "</entity>").getBytes(), migrated.getXML(ids[i]));
+            assertTrue(sharded.resolve(new File(flatDirectory, "foxml"), ids[i]).isDirectory());
+        }
+        assertFalse(new File(flatDirectory, "foxml/" + ids[0]).exists());
+        assertEquals(ids.length, sharded.listEntityDirectories(new File(flatDirectory, "foxml")).size());
+        migrated.close();
+    }
+
+    @Test
+    public void testResumeInterruptedMigration() throws Exception {
+        File flatDirectory = new File(directory, "interrupted");
+        PosixStorage flat = new PosixStorage.Builder(flatDirectory.getAbsolutePath()).layout(new DirectoryLayout(0)).build();
+        String[] ids = new String[10];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            flat.saveXML(("<entity>" + i + "</entity>").getBytes(), ids[i], 1, false);
+        }
+        flat.close();
+        // a migration to two levels which stopped after half of the entities
+        File root = new File(flatDirectory, "foxml");
+        FileUtils.writeStringToFile(new File(root, ".layout-migration"), "0 2");
+        DirectoryLayout sharded = new DirectoryLayout(2);
+        for (int i = 0; i < ids.length / 2; i++) {
+            File target = sharded.resolve(root, ids[i]);
+            target.getParentFile().mkdirs();
+            assertTrue(new File(root, ids[i]).renameTo(target));
+        }
+
+        // the migration is completed before the tree is moved on to the configured layout
+        DirectoryLayout layout = new DirectoryLayout(1);
+        PosixStorage migrated = new PosixStorage.Builder(flatDirectory.getAbsolutePath()).layout(layout).build();
+        for (int i = 0; i < ids.length; i++) {
+            assertArrayEquals(("<entity>" + i + "</entity>").getBytes(), migrated.getXML(ids[i]));
+            assertTrue(layout.resolve(root, ids[i]).isDirectory());
+        }
+        assertEquals(ids.length, layout.listEntityDirectories(root).size());
+        assertEquals("1", FileUtils.readFileToString(new File(root, ".layout")));
+        assertFalse(new File(root, ".layout-migration").exists());
+        migrated.close();
+    }
+
+    @Test
+    public void testDeltaEncodedVersions() throws Exception {
+        PosixStorage deltaStorage = new PosixStorage.Builder(new File(directory, "delta").getAbsolutePath())
+                .maxDeltaChain(3)
+                .build();
+        String id = UUID.randomUUID().toString();
+        List<byte[]> versions = new ArrayList<byte[]>();
+        for (int i = 1; i <= 10; i++) {
+            byte[] xml = createVersion(i);
+            versions.add(xml);
+            deltaStorage.saveXML(xml, id, i, false);
+        }
+        File entityDir = new DirectoryLayout(2).resolve(new File(directory, "delta/foxml"), id);
+        // a snapshot followed by three deltas, repeatedly
+        for (int i = 1; i <= 10; i++) {
+            if (i % 4 == 1) {
+                assertTrue("version " + i, new File(entityDir, "version-" + i + ".xml").exists());
+            } else {
+                File delta = new File(entityDir, "version-" + i + ".delta");
+                assertTrue("version " + i, delta.exists());
+                assertTrue(delta.length() < versions.get(i - 1).length / 10);
+            }
+        }
+        for (int i = 1; i <= 10; i++) {
+            assertArrayEquals(versions.get(i - 1), deltaStorage.getXML(id, i));
+        }
+        assertEquals(10, deltaStorage.getLatestVersionNumber(id));
+
+        // overwriting a base version has to keep its successor intact
+        deltaStorage.saveXML(createVersion(42), id, 2, true);
+        assertArrayEquals(createVersion(42), deltaStorage.getXML(id, 2));
+        assertArrayEquals(versions.get(2), deltaStorage.getXML(id, 3));
+
+        ByteArrayOutputStream sink = new ByteArrayOutputStream();
+        StorageBlob blob = deltaStorage.openXML(id, 10);
+        try {
+            blob.transferTo(Channels.newChannel(sink));
+        } finally {
+            blob.close();
+        }
+        assertArrayEquals(versions.get(9), sink.toByteArray());
+    }
+
+    @Test
+    public void testDeduplication() throws Exception {
+        File dedupDirectory = new File(directory, "dedup");
+        PosixStorage dedupStorage = new PosixStorage.Builder(dedupDirectory.getAbsolutePath())
+                .deduplication(true)
+                .build();
+        byte[] xml = createVersion(1);
+        String id = UUID.randomUUID().toString();
+        String otherId = UUID.randomUUID().toString();
+        dedupStorage.saveXML(xml, id, 1, false);
+        dedupStorage.saveXML(xml, id, 2, false);
+        dedupStorage.saveXML(xml, otherId, 1, false);
+
+        assertEquals(1, FileUtils.listFiles(new File(dedupDirectory, "blobs"), null, true).size());
+        assertEquals(ContentHash.of(xml), dedupStorage.getContentHash(id, 2));
+        assertEquals(ContentHash.of(xml), dedupStorage.getContentHash(otherId, null));
+        assertArrayEquals(xml, dedupStorage.getXML(id, 1));
+        assertArrayEquals(xml, dedupStorage.getXML(otherId));
+        assertEquals(Arrays.asList("1", "2"), dedupStorage.getVersionList(id));
+
+        StorageBlob blob = dedupStorage.openXML(id, 2);
+        try {
+            assertEquals(xml.length, blob.length());
+        } finally {
+            blob.close();
+        }
+    }
+
+    @Test
+    public void testSweepUnreferencedBlobs() throws Exception {
+        File dedupDirectory = new File(directory, "sweep");
+        PosixStorage dedupStorage = new PosixStorage.Builder(dedupDirectory.getAbsolutePath())
+                .deduplication(true)
+                .build();
+        String id = UUID.randomUUID().toString();
+        String otherId = UUID.randomUUID().toString();
+        dedupStorage.saveXML(createVersion(1), id, 1, false);
+        dedupStorage.saveXML(createVersion(1), otherId, 1, false);
+        dedupStorage.saveXML(createVersion(2), id, 2, false);
+        // the blob of version 2 is orphaned, the one of version 1 is still referenced by the other entity
+        dedupStorage.saveXML(createVersion(3), id, 2, true);
+        dedupStorage.saveXML(createVersion(3), id, 1, true);
+
+        assertEquals(3, FileUtils.listFiles(new File(dedupDirectory, "blobs"), null, true).size());
+        assertEquals(1, dedupStorage.sweepBlobs());
+        assertEquals(2, FileUtils.listFiles(new File(dedupDirectory, "blobs"), null, true).size());
+        assertArrayEquals(createVersion(3), dedupStorage.getXML(id, 1));
+        assertArrayEquals(createVersion(1), dedupStorage.getXML(otherId, 1));
+        assertEquals(0, dedupStorage.sweepBlobs());
+        dedupStorage.close();
+    }
+
+    @Test
+    public void testContentHash() throws Exception {
+        String id = UUID.randomUUID().toString();
+        byte[] xml = createVersion(1);
+        storage.saveXML(xml, id, 1, false);
+        assertEquals(ContentHash.of(xml), storage.getContentHash(id, 1));
+    }
+
+    @Test
+    public void testDurableWritesOfConcurrentWriters() throws Exception {
+        String id = writeConcurrently(DurableWriter.Durability.PER_WRITE);
+        assertEquals(8, storage.getDurableWriter().getForcedWrites());
+        // the directory is forced after every rename where the runtime allows it
+        assertTrue(storage.getDurableWriter().getForcedDirectories() == 0 ||
+                storage.getDurableWriter().getForcedDirectories() == 8);
+
+        // only the renamed versions are left in the entity directory
+        File entityDir = new DirectoryLayout(2).resolve(new File(directory, "foxml"), id);
+        assertEquals(8, entityDir.list().length);
+    }
+
+    @Test
+    public void testGroupCommitOfConcurrentWriters() throws Exception {
+        String id = writeConcurrently(DurableWriter.Durability.GROUP);
+        DurableWriter writer = storage.getDurableWriter();
+        assertEquals(8, writer.getForcedWrites());
+        // every batch forces the entity directory once
+        assertTrue(writer.getGroupCommits() >= 1 && writer.getGroupCommits() <= 8);
+        assertTrue(writer.getForcedDirectories() == 0 || writer.getForcedDirectories() == writer.getGroupCommits());
+
+        File entityDir = new DirectoryLayout(2).resolve(new File(directory, "foxml"), id);
+        assertEquals(8, entityDir.list().length);
+    }
+
+    private String writeConcurrently(DurableWriter.Durability durability) throws Exception {
+        storage.close();
+        storage = new PosixStorage.Builder(directory.getAbsolutePath()).durability(durability).build();
+        final String id = UUID.randomUUID().toString();
+        List<Thread> writers = new ArrayList<Thread>();
+        final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+        for (int i = 1; i <= 8; i++) {
+            final int version = i;
+            writers.add(new Thread() {
+                public void run() {
+                    try {
+                        storage.saveXML(createVersion(version), id, version, false);
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            });
+        }
+        for (Thread writer : writers) {
+            writer.start();
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        assertTrue(errors.isEmpty());
+        assertEquals(8, storage.getVersionList(id).size());
+        for (int version = 1; version <= 8; version++) {
+            assertArrayEquals(createVersion(version), storage.getXML(id, version));
+        }
+        return id;
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        String id = UUID.randomUUID().toString();
+        storage.saveXML(createVersion(1), id, 1, false);
+        storage.purge();
+        assertFalse(storage.exists(id, null));
+        assertTrue(new File(directory, "foxml").isDirectory());
+
+        // the purged trees are deleted in the background
+        storage.saveXML(createVersion(2), id, 1, false);
+        assertArrayEquals(createVersion(2), storage.getXML(id, 1));
+        assertTrue(awaitEmpty(new File(directory, "trash")));
+    }
+
+    @Test
+    public void testPendingPurgeIsResumed() throws Exception {
+        File leftover = new File(new File(directory, "trash"), "purge-0-0");
+        FileUtils.writeStringToFile(new File(leftover, "foxml/version-1.xml"), "<version>1</version>");
+        storage.close();
+        storage = new PosixStorage(directory.getAbsolutePath());
+        assertTrue(awaitEmpty(new File(directory, "trash")));
+    }
+
+    private static boolean awaitEmpty(File dir) throws InterruptedException {
+        for (int i = 0; i < 100 && dir.list().length > 0; i++) {
+            Thread.sleep(50);
+        }
+        return dir.list().length == 0;
+    }
+
+    private static byte[] createVersion(int version) {
+        StringBuilder xml = new StringBuilder("<entity version=\"" + version + "\">");
+        for (int i = 0; i < 200; i++) {
+            xml.append("<representation id=\"rep-" + i + "\"><title>title " + (i == version ? "changed" : "original") +
+                    "</title></representation>");
+        }
+        return xml.append("</entity>").toString().getBytes();
+    }
+
+    @Test
+    public void testUnknownEntity() throws Exception {
+        String id = UUID.randomUUID().toString();
+        assertFalse(storage.exists(id, null));
+        assertTrue(storage.getVersionList(id).isEmpty());
+        assertEquals(1, storage.getLatestVersionNumber(id));
+    }
+}
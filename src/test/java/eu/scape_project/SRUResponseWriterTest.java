@@ -0,0 +1,70 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+public class SRUResponseWriterTest {
+
+    private static final String METS = "<mets:mets xmlns:mets=\"http://www.loc.gov/METS/\" OBJID=\"%s\"/>";
+
+    @Test
+    public void testPrologLength() throws Exception {
+        assertEquals(0, SRUResponseWriter.prologLength(new StorageBlob("<a/>".getBytes())));
+        assertEquals(39, SRUResponseWriter.prologLength(new StorageBlob(
+                "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<a/>".getBytes())));
+        byte[] bom = new byte[] { (byte) 0xef, (byte) 0xbb, (byte) 0xbf, '<', '?', 'x', 'm', 'l', '?', '>', '<' };
+        assertEquals(10, SRUResponseWriter.prologLength(new StorageBlob(bom)));
+    }
+
+    @Test
+    public void testWriteResponse() throws Exception {
+        File file = File.createTempFile("scape-tck-sru", ".xml");
+        try {
+            FileUtils.writeStringToFile(file, "<?xml version=\"1.0\" encoding=\"UTF-8\" standalone=\"yes\"?>\n" +
+                    String.format(METS, "first"), "UTF-8");
+            ByteArrayOutputStream sink = new ByteArrayOutputStream();
+            SRUResponseWriter writer = new SRUResponseWriter(Channels.newChannel(sink));
+            writer.start(12);
+            FileChannel channel = new FileInputStream(file).getChannel();
+            StorageBlob blob = new StorageBlob(channel, 0, channel.size());
+            try {
+                writer.writeRecord(blob, 11);
+            } finally {
+                blob.close();
+            }
+            writer.writeRecord(new StorageBlob(String.format(METS, "second").getBytes()), 12);
+            writer.finish(0, "1:2:3:13");
+
+            DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(true);
+            Document doc = factory.newDocumentBuilder().parse(new ByteArrayInputStream(sink.toByteArray()));
+            assertEquals("12", doc.getElementsByTagNameNS(SRUResponseWriter.SRU_NAMESPACE, "numberOfRecords").item(0)
+                    .getTextContent());
+            NodeList mets = doc.getElementsByTagNameNS("http://www.loc.gov/METS/", "mets");
+            assertEquals(2, mets.getLength());
+            assertEquals("first", ((Element) mets.item(0)).getAttribute("OBJID"));
+            assertEquals("second", ((Element) mets.item(1)).getAttribute("OBJID"));
+            assertEquals("12", doc.getElementsByTagNameNS(SRUResponseWriter.SRU_NAMESPACE, "recordPosition").item(1)
+                    .getTextContent());
+            assertEquals(0, doc.getElementsByTagNameNS(SRUResponseWriter.SRU_NAMESPACE, "nextRecordPosition")
+                    .getLength());
+            assertEquals("1:2:3:13", doc.getElementsByTagName("x-cursor").item(0).getTextContent());
+        } finally {
+            file.delete();
+        }
+    }
+}
@@ -0,0 +1,38 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+public class SearchResultCacheTest {
+
+    @Test
+    public void testEviction() throws Exception {
+        SearchResultCache cache = new SearchResultCache(2);
+        SearchResult first = new SearchResult(Arrays.asList("a"), 1, 1, null);
+        cache.put("first", first, 3000000);
+        cache.put("second", new SearchResult(Arrays.asList("b"), 1, 1, null), 1000000);
+        assertSame(first, cache.get("first"));
+        // the second page is the least recently used one now
+        cache.put("third", new SearchResult(Arrays.asList("c"), 1, 1, null), 1000000);
+        assertNull(cache.get("second"));
+        assertSame(first, cache.get("first"));
+        assertEquals(2, cache.getSize());
+        assertEquals(2, cache.getHits());
+        assertEquals(1, cache.getMisses());
+        assertEquals(1, cache.getEvictions());
+        assertEquals(6, cache.getSavedMillis());
+    }
+
+    @Test
+    public void testDisabled() throws Exception {
+        SearchResultCache cache = new SearchResultCache(0);
+        cache.put("first", new SearchResult(Arrays.asList("a"), 1, 1, null), 1);
+        assertNull(cache.get("first"));
+        assertEquals(0, cache.getSize());
+    }
+}
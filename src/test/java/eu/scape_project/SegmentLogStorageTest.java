@@ -0,0 +1,152 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+import org.apache.commons.io.FileUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public class SegmentLogStorageTest {
+
+    private File directory;
+
+    private SegmentLogStorage storage;
+
+    @Before
+    public void setup() throws Exception {
+        directory = new File(System.getProperty("java.io.tmpdir"), "scape-tck-segments-" + UUID.randomUUID());
+        storage = new SegmentLogStorage(directory.getAbsolutePath(), 1024, 0);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        storage.close();
+        FileUtils.deleteQuietly(directory);
+    }
+
+    @Test
+    public void testConcurrentNewVersions() throws Exception {
+        VersionAllocatorTest.assertDistinctVersions(storage, 64);
+    }
+
+    @Test
+    public void testSaveAndRetrieve() throws Exception {
+        String id = UUID.randomUUID().toString();
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        storage.saveXML("<version>2</version>".getBytes(), id, 2, false);
+        assertTrue(storage.exists(id, null));
+        assertTrue(storage.exists(id, 1));
+        assertFalse(storage.exists(id, 3));
+        assertEquals(2, storage.getLatestVersionNumber(id));
+        assertEquals(Arrays.asList("1", "2"), storage.getVersionList(id));
+        assertArrayEquals("<version>2</version>".getBytes(), storage.getXML(id));
+        assertArrayEquals("<version>1</version>".getBytes(), storage.getXML(id, 1));
+    }
+
+    @Test(expected = java.io.IOException.class)
+    public void testSaveExistingVersion() throws Exception {
+        String id = UUID.randomUUID().toString();
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+    }
+
+    @Test
+    public void testRebuildIndexFromSegments() throws Exception {
+        String[] ids = new String[50];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = UUID.randomUUID().toString();
+            storage.saveXML(("<entity>" + i + "</entity>").getBytes(), ids[i], 1, false);
+        }
+        // several sealed segments plus the active one
+        assertTrue(new File(directory, "segments").list().length > 2);
+        storage.close();
+
+        storage = new SegmentLogStorage(directory.getAbsolutePath(), 1024, 0);
+        for (int i = 0; i < ids.length; i++) {
+            assertArrayEquals(("<entity>" + i + "</entity>").getBytes(), storage.getXML(ids[i]));
+        }
+    }
+
+    @Test
+    public void testRecoverFromTruncatedRecord() throws Exception {
+        String id = UUID.randomUUID().toString();
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        storage.saveXML("<version>2</version>".getBytes(), id, 2, false);
+
+        // simulate a crash in the middle of writing the last record
+        File segment = new File(directory, "segments/segment-00000001.log");
+        RandomAccessFile raf = new RandomAccessFile(segment, "rw");
+        raf.setLength(segment.length() - 5);
+        raf.close();
+
+        storage = new SegmentLogStorage(directory.getAbsolutePath(), 1024, 0);
+        assertEquals(1, storage.getLatestVersionNumber(id));
+        assertArrayEquals("<version>1</version>".getBytes(), storage.getXML(id));
+        storage.saveXML("<version>2</version>".getBytes(), id, 2, false);
+        assertArrayEquals("<version>2</version>".getBytes(), storage.getXML(id));
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        String id = UUID.randomUUID().toString();
+        byte[] payload = new byte[200];
+        for (int i = 0; i < 20; i++) {
+            Arrays.fill(payload, (byte) ('a' + i));
+            storage.saveXML(payload, id, 1, true);
+        }
+        int before = new File(directory, "segments").list().length;
+        storage.compact();
+        assertTrue(new File(directory, "segments").list().length < before);
+        Arrays.fill(payload, (byte) ('a' + 19));
+        assertArrayEquals(payload, storage.getXML(id, 1));
+    }
+
+    @Test
+    public void testPurgeDuringCompaction() throws Exception {
+        final String id = UUID.randomUUID().toString();
+        byte[] payload = new byte[200];
+        for (int round = 0; round < 20; round++) {
+            for (int i = 0; i < 20; i++) {
+                storage.saveXML(payload, id, 1 + i % 2, true);
+            }
+            final List<Exception> errors = Collections.synchronizedList(new ArrayList<Exception>());
+            Thread compaction = new Thread() {
+                public void run() {
+                    try {
+                        storage.compact();
+                    } catch (Exception e) {
+                        errors.add(e);
+                    }
+                }
+            };
+            compaction.start();
+            storage.purge();
+            compaction.join();
+            assertEquals(Collections.emptyList(), errors);
+            // purged records are never moved into the new segments
+            assertFalse(storage.exists(id, null));
+        }
+    }
+
+    @Test
+    public void testPurge() throws Exception {
+        String id = UUID.randomUUID().toString();
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        storage.purge();
+        assertFalse(storage.exists(id, null));
+        storage.saveXML("<version>1</version>".getBytes(), id, 1, false);
+        assertTrue(storage.exists(id, 1));
+    }
+}
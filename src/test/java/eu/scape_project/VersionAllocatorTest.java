@@ -0,0 +1,80 @@
+package eu.scape_project;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class VersionAllocatorTest {
+
+    @Test
+    public void testCountsConflictsAndRetries() throws Exception {
+        final Set<String> taken = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+        VersionAllocator.Slots slots = new VersionAllocator.Slots() {
+            public boolean tryClaim(String id, int version) throws IOException {
+                return taken.add(id + "/" + version);
+            }
+        };
+        VersionAllocator allocator = new VersionAllocator();
+        assertEquals(1, allocator.allocate("a", 1, slots));
+        assertEquals(0, allocator.getConflicts());
+        assertEquals(2, allocator.allocate("a", 1, slots));
+        assertEquals(3, allocator.allocate("a", 1, slots));
+        assertEquals(1, allocator.allocate("b", 1, slots));
+        assertEquals(4, allocator.getAllocations());
+        assertEquals(2, allocator.getConflicts());
+        assertEquals(3, allocator.getRetries());
+    }
+
+    /**
+     * Let the given number of writers save new versions of a single entity at
+     * the same time and check that every writer got a version of its own
+     */
+    static void assertDistinctVersions(final Storage storage, int writers) throws Exception {
+        final String id = UUID.randomUUID().toString();
+        final CountDownLatch startSignal = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(writers);
+        try {
+            List<Future<Integer>> results = new ArrayList<Future<Integer>>();
+            for (int i = 0; i < writers; i++) {
+                final byte[] blob = ("<version writer=\"" + i + "\"/>").getBytes();
+                results.add(executor.submit(new Callable<Integer>() {
+                    public Integer call() throws Exception {
+                        startSignal.await();
+                        return storage.saveNewVersion(blob, id, storage.exists(id, null) ? storage
+                                .getNewVersionNumber(id) : 1);
+                    }
+                }));
+            }
+            startSignal.countDown();
+            List<String> versions = new ArrayList<String>();
+            for (Future<Integer> result : results) {
+                versions.add(String.valueOf(result.get()));
+            }
+            assertEquals(writers, storage.getVersionList(id).size());
+            assertEquals(writers, storage.getLatestVersionNumber(id));
+            assertEquals(writers, storage.getVersionAllocator().getAllocations());
+            Collections.sort(versions, new Comparator<String>() {
+                public int compare(String a, String b) {
+                    return Integer.valueOf(a).compareTo(Integer.valueOf(b));
+                }
+            });
+            assertEquals(storage.getVersionList(id), versions);
+        } finally {
+            executor.shutdown();
+        }
+    }
+}